@@ -58,6 +58,10 @@ public class MainActivity extends AppCompatActivity implements WebServerCallback
 
         // enable debugging
         Config.DEBUG = true;
+        // keep up to 4 MB of hot assets in memory
+        Config.ASSETS_CACHE_SIZE = 4 * 1024 * 1024;
+        // serve the element imports as one document instead of dozens of requests
+        Config.HTML_IMPORT_BUNDLES = new String[] { "elements/elements.html" };
 
         final CustomTabsHelper customTabsHelper = new CustomTabsHelper(getApplicationContext());
         customTabsHelper.warmup();
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.res;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * JVM stand-in for the Android asset manager which serves the assets from a directory.
+ */
+public final class AssetManager {
+    public static final int ACCESS_UNKNOWN = 0;
+    public static final int ACCESS_RANDOM = 1;
+    public static final int ACCESS_STREAMING = 2;
+    public static final int ACCESS_BUFFER = 3;
+
+    private final File root;
+
+    public AssetManager(File root) {
+        this.root = root;
+    }
+
+    public InputStream open(String fileName) throws IOException {
+        return open(fileName, ACCESS_STREAMING);
+    }
+
+    public InputStream open(String fileName, int accessMode) throws IOException {
+        final File file = new File(root, fileName);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(fileName);
+        }
+        return new FileInputStream(file);
+    }
+
+    public String[] list(String path) throws IOException {
+        final String[] names = new File(root, path).list();
+        return names != null ? names : new String[0];
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the Android LRU cache, with the same sizing and statistics.
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final int maxSize;
+
+    private int size;
+    private int putCount;
+    private int evictionCount;
+    private int hitCount;
+    private int missCount;
+
+    public LruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    public final synchronized V get(K key) {
+        final V value = map.get(key);
+        if (value != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return value;
+    }
+
+    public final V put(K key, V value) {
+        final V previous;
+        synchronized (this) {
+            putCount++;
+            size += sizeOf(key, value);
+            previous = map.put(key, value);
+            if (previous != null) {
+                size -= sizeOf(key, previous);
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    public final V remove(K key) {
+        final V previous;
+        synchronized (this) {
+            previous = map.remove(key);
+            if (previous != null) {
+                size -= sizeOf(key, previous);
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    private void trimToSize(int maxSize) {
+        while (true) {
+            final K key;
+            final V value;
+            synchronized (this) {
+                if (size <= maxSize || map.isEmpty()) {
+                    break;
+                }
+                final Map.Entry<K, V> eldest = map.entrySet().iterator().next();
+                key = eldest.getKey();
+                value = eldest.getValue();
+                map.remove(key);
+                size -= sizeOf(key, value);
+                evictionCount++;
+            }
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    public final synchronized int size() {
+        return size;
+    }
+
+    public final synchronized int maxSize() {
+        return maxSize;
+    }
+
+    public final synchronized int hitCount() {
+        return hitCount;
+    }
+
+    public final synchronized int missCount() {
+        return missCount;
+    }
+
+    public final synchronized int putCount() {
+        return putCount;
+    }
+
+    public final synchronized int evictionCount() {
+        return evictionCount;
+    }
+}
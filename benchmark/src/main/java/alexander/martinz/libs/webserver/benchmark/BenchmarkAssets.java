@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.benchmark;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+import alexander.martinz.libs.webserver.WebServerCallbacks;
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A temporary asset directory resembling a small web app, optionally with the manifest the build generates.
+ */
+public class BenchmarkAssets implements WebServerCallbacks {
+    private final File root;
+    private final Context context;
+
+    public BenchmarkAssets(boolean withManifest) throws IOException {
+        root = File.createTempFile("benchmark-assets", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Could not create " + root);
+        }
+
+        final Map<String, byte[]> assets = new TreeMap<String, byte[]>();
+        assets.put("index.html", text("<!doctype html><html><head><link rel=\"stylesheet\" href=\"/assets/css/site.css\">"
+                + "</head><body><script src=\"/assets/js/app.js\"></script></body></html>", 1));
+        assets.put("favicon.ico", binary(1150));
+        assets.put("assets/css/site.css", text("body { margin: 0; padding: 0; font-family: sans-serif; }\n", 200));
+        assets.put("assets/js/app.js", text("function render(model) { return model.items.map(item); }\n", 600));
+        assets.put("assets/js/vendor.js", text("(function(){var a=[];for(var i=0;i<10;i++){a.push(i);}})();\n", 2000));
+        for (int i = 0; i < 24; i++) {
+            assets.put("assets/img/icon-" + i + ".png", binary(2048));
+        }
+        // the variants the build precompresses
+        assets.put("assets/css/site.css.gz", gzip(assets.get("assets/css/site.css")));
+        assets.put("assets/js/app.js.gz", gzip(assets.get("assets/js/app.js")));
+        assets.put("assets/js/vendor.js.gz", gzip(assets.get("assets/js/vendor.js")));
+
+        for (final Map.Entry<String, byte[]> asset : assets.entrySet()) {
+            write(asset.getKey(), asset.getValue());
+        }
+        if (withManifest) {
+            writeManifest(assets);
+        }
+
+        final AssetManager assetManager = new AssetManager(root);
+        context = new Context() {
+            @Override public AssetManager getAssets() {
+                return assetManager;
+            }
+
+            @Override public String getPackageCodePath() {
+                return root.getPath();
+            }
+
+            @Override public File getCacheDir() {
+                return new File(System.getProperty("java.io.tmpdir"));
+            }
+        };
+    }
+
+    @Override public Context getContext() {
+        return context;
+    }
+
+    public void delete() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void write(String path, byte[] data) throws IOException {
+        final File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        final FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    // the same format precompress-assets.gradle writes
+    private void writeManifest(Map<String, byte[]> assets) throws IOException {
+        final TreeSet<String> lines = new TreeSet<String>();
+        final TreeSet<String> directories = new TreeSet<String>();
+        directories.add("");
+        for (final Map.Entry<String, byte[]> asset : assets.entrySet()) {
+            final String path = asset.getKey();
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                directories.add(path.substring(0, slash));
+            }
+            final String mimeType = NanoHTTPD.getMimeTypeForFile(path);
+            lines.add(path + '\t' + asset.getValue().length + '\t' + sha1(asset.getValue()) + '\t'
+                    + (mimeType != null ? mimeType : "") + '\t' + (path.endsWith(".png") || path.endsWith(".gz") ? '0' : '1'));
+        }
+        for (final String directory : directories) {
+            lines.add(directory + "\td");
+        }
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(root, "asset-manifest.tsv")), "UTF-8");
+        try {
+            writer.write("# asset-manifest 1\n");
+            for (final String line : lines) {
+                writer.write(line + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static byte[] text(String line, int repeat) throws IOException {
+        final StringBuilder builder = new StringBuilder(line.length() * repeat);
+        for (int i = 0; i < repeat; i++) {
+            builder.append(line);
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] binary(int length) {
+        final byte[] data = new byte[length];
+        long seed = length;
+        for (int i = 0; i < length; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            data[i] = (byte) (seed >>> 56);
+        }
+        return data;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream);
+        gzipStream.write(data);
+        gzipStream.close();
+        return outputStream.toByteArray();
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            final StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A parsed request without a connection behind it, so benchmarks only measure what happens after parsing.
+ */
+public class BenchmarkSession implements NanoHTTPD.IHTTPSession {
+    private final NanoHTTPD.Method method;
+    private final String uri;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private final Map<String, String> parms = new HashMap<String, String>();
+
+    public BenchmarkSession(NanoHTTPD.Method method, String uri) {
+        this.method = method;
+        this.uri = uri;
+        headers.put("host", "localhost:8080");
+        headers.put("user-agent", "Mozilla/5.0 (Linux; Android 6.0) AppleWebKit/537.36 Chrome/47.0 Mobile");
+        headers.put("accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        headers.put("accept-language", "en-US,en;q=0.8");
+        headers.put("connection", "keep-alive");
+    }
+
+    public BenchmarkSession header(String name, String value) {
+        headers.put(name.toLowerCase(), value);
+        return this;
+    }
+
+    @Override public void execute() {
+    }
+
+    @Override public NanoHTTPD.CookieHandler getCookies() {
+        return null;
+    }
+
+    @Override public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Override public InputStream getInputStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override public NanoHTTPD.Method getMethod() {
+        return method;
+    }
+
+    @Override public Map<String, String> getParms() {
+        return parms;
+    }
+
+    @Override public String getQueryParameterString() {
+        return null;
+    }
+
+    @Override public String getUri() {
+        return uri;
+    }
+
+    @Override public void parseBody(Map<String, String> files) {
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.benchmark;
+
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+/**
+ * Route tables like the ones of an app serving a web app together with a REST api.
+ */
+public final class RouteTables {
+    public static final String[] PATHS = {
+            // literal route
+            "/version",
+            // route with parameters
+            "/api/resource3/42/comments/7",
+            // regular expression route
+            "/assets/css/site.css",
+            // falls through to the wildcard route
+            "/does/not/exist.png",
+    };
+
+    private RouteTables() { }
+
+    /**
+     * @param resources number of api resources, each one adds four routes
+     */
+    public static RouterNanoHTTPD.UriRouter create(int resources) {
+        final RouterNanoHTTPD.UriRouter router = new RouterNanoHTTPD.UriRouter();
+        router.setNotFoundHandler(RouterNanoHTTPD.Error404UriHandler.class);
+        router.setNotImplemented(RouterNanoHTTPD.NotImplementedHandler.class);
+
+        final OkHandler handler = new OkHandler();
+        final RouterNanoHTTPD.UriRouter.RouteBatch routeBatch = router.newRouteBatch()
+                .addRoute("/assets/", handler)
+                .addRoute("/assets/(.)+", handler)
+                .addRoute("/version", handler)
+                .addRoute("/metrics", handler)
+                .addRoute("/", handler)
+                .addRoute("/index.html", handler)
+                .addRoute("/favicon.ico", handler);
+        for (int i = 0; i < resources; i++) {
+            final String resource = "/api/resource" + i;
+            routeBatch.addRoute(resource, handler)
+                    .addRoute(resource + "/:id", handler)
+                    .addRoute(resource + "/:id/comments", handler)
+                    .addRoute(resource + "/:id/comments/:comment", handler);
+        }
+        routeBatch.addRoute("/(.)+", handler).commit();
+        return router;
+    }
+
+    public static class OkHandler extends RouterNanoHTTPD.DefaultHandler {
+        @Override public String getText() {
+            return "ok";
+        }
+
+        @Override public String getMimeType() {
+            return NanoHTTPD.MIME_PLAINTEXT;
+        }
+
+        @Override public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import alexander.martinz.libs.webserver.routers.DefaultRouter;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.ResponseEncoder;
+
+/**
+ * A request through the default router up to the encoded response, without a socket and without parsing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServeBenchmark {
+    @Param({ "/version", "/index.html", "/assets/js/vendor.js", "/assets/img/icon-7.png", "/does/not/exist" })
+    public String path;
+
+    /**
+     * Whether the client accepts gzip, which picks precompressed variants or lets the compressor encode the
+     * response.
+     */
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    private BenchmarkAssets assets;
+    private DefaultRouter router;
+    private NanoHTTPD.IHTTPSession session;
+    private final CountingOutputStream outputStream = new CountingOutputStream();
+
+    @Setup public void setup() throws IOException {
+        assets = new BenchmarkAssets(true);
+        router = new DefaultRouter(assets, 0);
+        // off by default, the benchmark covers the encoding
+        router.setCompressionThreshold(1024);
+        final BenchmarkSession benchmarkSession = new BenchmarkSession(NanoHTTPD.Method.GET, path);
+        if (gzip) {
+            benchmarkSession.header("accept-encoding", "gzip, deflate");
+        }
+        session = benchmarkSession;
+    }
+
+    @TearDown public void tearDown() {
+        router.stop();
+        assets.delete();
+    }
+
+    @Benchmark public long serve() throws IOException {
+        final NanoHTTPD.Response response = router.serve(session);
+        try {
+            ResponseEncoder.send(router, session, response, outputStream);
+        } finally {
+            response.close();
+        }
+        return outputStream.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override public void write(int b) {
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
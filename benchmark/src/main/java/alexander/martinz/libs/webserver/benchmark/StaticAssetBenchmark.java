@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import alexander.martinz.libs.webserver.cache.AssetManifest;
+import alexander.martinz.libs.webserver.handlers.StaticAssetHandler;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+/**
+ * Resolving request paths to assets, probing for precompressed variants and listing directories, with the
+ * routes of the default router. The response is only created, not sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StaticAssetBenchmark {
+    @Param({ "/", "/assets/css/site.css", "/assets/img/icon-7.png", "/assets/img/", "/assets/missing.png" })
+    public String path;
+
+    @Param({ "true", "false" })
+    public boolean manifest;
+
+    private BenchmarkAssets assets;
+    private StaticAssetHandler handler;
+    private RouterNanoHTTPD.UriResource resource;
+    private NanoHTTPD.IHTTPSession session;
+
+    @Setup public void setup() throws IOException {
+        assets = new BenchmarkAssets(manifest);
+        if ("/".equals(path)) {
+            handler = new StaticAssetHandler(assets, "index.html");
+        } else if (path.startsWith("/assets/")) {
+            handler = new StaticAssetHandler(assets, "assets", true);
+        } else {
+            handler = new StaticAssetHandler(assets);
+        }
+        handler.setAssetManifest(AssetManifest.load(assets.getContext().getAssets()));
+        resource = new RouterNanoHTTPD.UriResource(path.startsWith("/assets/") ? "/assets/(.)+" : "/", 100, handler);
+        session = new BenchmarkSession(NanoHTTPD.Method.GET, path).header("accept-encoding", "gzip, deflate");
+    }
+
+    @TearDown public void tearDown() {
+        assets.delete();
+    }
+
+    @Benchmark public NanoHTTPD.Response get() throws IOException {
+        final NanoHTTPD.Response response =
+                handler.get(resource, Collections.<String, String>emptyMap(), session);
+        // releases the asset
+        response.close();
+        return response;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+/**
+ * Matching a single route and normalizing request uris.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UriResourceBenchmark {
+    @State(Scope.Benchmark)
+    public static class Route {
+        /**
+         * literal: no parameters, params: matched by the route trie, pattern: needs a regular expression
+         */
+        @Param({ "literal", "params", "pattern" })
+        public String route;
+
+        private RouterNanoHTTPD.UriResource resource;
+        private String url;
+
+        @Setup public void setup() {
+            final RouteTables.OkHandler handler = new RouteTables.OkHandler();
+            if ("literal".equals(route)) {
+                resource = new RouterNanoHTTPD.UriResource("/api/users/help", 100, handler);
+                url = "api/users/help";
+            } else if ("params".equals(route)) {
+                resource = new RouterNanoHTTPD.UriResource("/api/users/:user/posts/:post", 100, handler);
+                url = "api/users/4711/posts/42";
+            } else {
+                resource = new RouterNanoHTTPD.UriResource("/download/:id/(.)+", 100, handler);
+                url = "download/4711/reports/2015/summary.pdf";
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Uri {
+        public String uri = "/api/users/4711/posts/42/";
+    }
+
+    @Benchmark public Map<String, String> match(Route route) {
+        return route.resource.match(route.url);
+    }
+
+    @Benchmark public String normalizeUri(Uri uri) {
+        return RouterNanoHTTPD.normalizeUri(uri.uri);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.iki.elonen;
+
+import java.io.OutputStream;
+
+/**
+ * Writes a response like {@link NanoHTTPD.HTTPSession#execute()} does after serving it, which is only
+ * possible from within the package of NanoHTTPD.
+ */
+public final class ResponseEncoder {
+    private ResponseEncoder() { }
+
+    public static void send(NanoHTTPD server, NanoHTTPD.IHTTPSession session, NanoHTTPD.Response response,
+            OutputStream outputStream) {
+        final String acceptEncoding = session.getHeaders().get("accept-encoding");
+        response.setRequestMethod(session.getMethod());
+        response.setGzipEncoding(server.useGzipWhenAccepted(response) && acceptEncoding != null
+                && acceptEncoding.contains("gzip"));
+        response.setKeepAlive(true);
+        response.send(outputStream);
+    }
+}
@@ -16,9 +16,105 @@
 
 package alexander.martinz.libs.webserver;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import alexander.martinz.libs.webserver.runners.WorkerPoolAsyncRunner;
+import fi.iki.elonen.router.RateLimiter;
+
 public class Config {
     public static boolean DEBUG = false;
 
     /** Whether to enable directory listing when serving files with {@link alexander.martinz.libs.webserver.handlers.StaticAssetHandler} */
     public static boolean ENABLE_ASSETS_DIRECTORY_LISTING = true;
+
+    /** Whether to serve request counts and latencies of all routes at /metrics */
+    public static boolean ENABLE_METRICS = false;
+
+    /**
+     * Asset paths of html documents to serve with their html imports, scripts and stylesheets inlined,
+     * for example "elements/elements.html"
+     */
+    public static String[] HTML_IMPORT_BUNDLES = new String[0];
+
+    /**
+     * Number of preload links announcing the scripts and stylesheets of html assets and their imports, closest
+     * first, 0 disables them
+     */
+    public static int MAX_PRELOAD_LINKS = 32;
+
+    /** Memory budget in bytes for caching hot assets in memory, 0 disables the cache */
+    public static int ASSETS_CACHE_SIZE = 0;
+
+    /**
+     * Number of selector event loops serving connections, 0 uses a blocking socket per connection instead.
+     * With event loops, {@link #WORKER_POOL_SIZE} workers run the handlers and idle connections hold no thread.
+     */
+    public static int SELECTOR_EVENT_LOOPS = 0;
+
+    /**
+     * Number of worker threads serving the streams of cleartext HTTP/2 connections, 0 only speaks HTTP/1.1.
+     * Browsers only use HTTP/2 over TLS, h2c serves clients like curl and reverse proxies.
+     * Ignored with {@link #SELECTOR_EVENT_LOOPS}.
+     */
+    public static int HTTP2_WORKERS = 0;
+
+    /** Number of worker threads kept for serving connections, 0 starts a thread per connection instead */
+    public static int WORKER_POOL_SIZE = 4;
+
+    /**
+     * Number of worker threads the pool grows to before connections have to wait. A worker is held by its
+     * connection while it idles between keep-alive requests, so this should cover
+     * {@link #MAX_KEEP_ALIVE_CONNECTIONS} plus the connections being served.
+     */
+    public static int WORKER_POOL_MAX_SIZE = 32;
+
+    /** Number of connections waiting for a worker once all {@link #WORKER_POOL_MAX_SIZE} workers are busy */
+    public static int WORKER_QUEUE_SIZE = 32;
+
+    /** What happens to connections once all workers are busy and the queue is full */
+    public static WorkerPoolAsyncRunner.OverflowPolicy WORKER_OVERFLOW_POLICY = WorkerPoolAsyncRunner.OverflowPolicy.REJECT;
+
+    /**
+     * Number of open WebSockets, further ones are answered with 503, 0 disables the limit. Every socket holds a
+     * worker for as long as it is open, so this has to stay well below {@link #WORKER_POOL_MAX_SIZE}.
+     */
+    public static int MAX_WEB_SOCKETS = 8;
+
+    /**
+     * Number of open server-sent event streams of all topics, further subscriptions are answered with 503, 0 disables
+     * the limit. Like a WebSocket every stream holds a worker, so together with {@link #MAX_WEB_SOCKETS} this has to
+     * stay well below {@link #WORKER_POOL_MAX_SIZE}.
+     */
+    public static int MAX_EVENT_STREAMS = 8;
+
+    /** Milliseconds a keep-alive connection may wait for its next request, 0 disables the limit */
+    public static int KEEP_ALIVE_IDLE_TIMEOUT = 5000;
+
+    /** Number of idle keep-alive connections, the oldest idle ones get closed first, 0 disables the limit */
+    public static int MAX_KEEP_ALIVE_CONNECTIONS = 16;
+
+    /** Number of requests served over one connection before it gets closed, 0 disables the limit */
+    public static int MAX_REQUESTS_PER_CONNECTION = 100;
+
+    /** Requests per second a client may send to all routes together, 0 disables the limit */
+    public static double RATE_LIMIT_PER_SECOND = 0;
+
+    /** Requests a client which was idle may send at once, on top of {@link #RATE_LIMIT_PER_SECOND} */
+    public static int RATE_LIMIT_BURST = 100;
+
+    /**
+     * Per client limits of single routes, by the pattern the route is registered with,
+     * for example "/assets/(.)+" for the assets or "/api/(.)+" for an api of the application
+     */
+    public static Map<String, RateLimiter.Limit> ROUTE_RATE_LIMITS = new HashMap<String, RateLimiter.Limit>();
+
+    /** Bytes of an uploaded request body kept in memory before it spills to a file in the cache directory */
+    public static int REQUEST_BODY_MEMORY_THRESHOLD = 64 * 1024;
+
+    /**
+     * Smallest dynamic response which gets gzip encoded on the fly, for example 1024, 0 leaves text responses to
+     * NanoHTTPD
+     */
+    public static int COMPRESSION_MIN_SIZE = 0;
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.cache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RangeRequest;
+
+/**
+ * Size bounded in-memory LRU cache for the bytes of hot assets.
+ * Cached buffers are immutable and shared between all responses serving them.
+ */
+public class AssetCache {
+    private final LruCache<String, CachedAsset> cache;
+    private final int maxEntrySize;
+
+    public static class CachedAsset {
+        private final byte[] data;
+        private final String mimeType;
+        private final String etag;
+
+        public CachedAsset(@NonNull byte[] data, @Nullable String mimeType, @Nullable String etag) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.etag = etag;
+        }
+
+        public int getLength() {
+            return data.length;
+        }
+
+        @Nullable public String getMimeType() {
+            return mimeType;
+        }
+
+        @Nullable public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return a fixed length response, backed by the shared buffer
+         */
+        public NanoHTTPD.Response createResponse(NanoHTTPD.Response.IStatus status) {
+            return NanoHTTPD.newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(data), data.length);
+        }
+
+        /**
+         * @return a source for byte range responses, backed by the shared buffer
+         */
+        public RangeRequest.Source createRangeSource() {
+            return RangeRequest.bytesSource(data);
+        }
+    }
+
+    /**
+     * @param maxSize the memory budget in bytes, entries bigger than an eighth of it are not cached
+     */
+    public AssetCache(int maxSize) {
+        this(maxSize, maxSize / 8);
+    }
+
+    public AssetCache(int maxSize, int maxEntrySize) {
+        this.cache = new LruCache<String, CachedAsset>(maxSize) {
+            @Override protected int sizeOf(String key, CachedAsset value) {
+                return value.getLength();
+            }
+        };
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    @Nullable public CachedAsset get(@NonNull String path) {
+        return cache.get(path);
+    }
+
+    public void put(@NonNull String path, @NonNull CachedAsset asset) {
+        if (asset.getLength() <= maxEntrySize) {
+            cache.put(path, asset);
+        }
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return cache.maxSize();
+    }
+
+    public int getHitCount() {
+        return cache.hitCount();
+    }
+
+    public int getMissCount() {
+        return cache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+
+    @Override public String toString() {
+        return String.format("AssetCache[size=%d,maxSize=%d,hits=%d,misses=%d,evictions=%d]",
+                getSize(), getMaxSize(), getHitCount(), getMissCount(), getEvictionCount());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.cache;
+
+import android.content.res.AssetManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import alexander.martinz.libs.webserver.Config;
+
+/**
+ * Index of all assets, generated at build time by precompress-assets.gradle.
+ * Lookups are allocation free and do not touch the {@link AssetManager}, so unknown paths can be
+ * rejected without opening or listing anything.
+ */
+public class AssetManifest {
+    private static final String TAG = AssetManifest.class.getSimpleName();
+
+    public static final String FILE_NAME = "asset-manifest.tsv";
+
+    private static final String FORMAT_VERSION = "# asset-manifest 1";
+
+    private static final long DIRECTORY = -1;
+
+    // open addressing with linear probing, all arrays are indexed by slot
+    private final String[] paths;
+    private final int[] hashes;
+    private final long[] sizes;
+    private final String[] etags;
+    private final String[] mimeTypes;
+    private final boolean[] compressed;
+    private final int mask;
+    private final int count;
+
+    private AssetManifest(List<String[]> entries) {
+        int capacity = 16;
+        while (capacity < entries.size() * 2) {
+            capacity <<= 1;
+        }
+        this.paths = new String[capacity];
+        this.hashes = new int[capacity];
+        this.sizes = new long[capacity];
+        this.etags = new String[capacity];
+        this.mimeTypes = new String[capacity];
+        this.compressed = new boolean[capacity];
+        this.mask = capacity - 1;
+        this.count = entries.size();
+
+        for (final String[] entry : entries) {
+            final String path = entry[0];
+            final int hash = hash(path);
+            int slot = hash & mask;
+            while (paths[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            paths[slot] = path;
+            hashes[slot] = hash;
+            if ("d".equals(entry[1])) {
+                sizes[slot] = DIRECTORY;
+            } else {
+                sizes[slot] = Long.parseLong(entry[1]);
+                etags[slot] = '"' + entry[2] + '"';
+                mimeTypes[slot] = entry[3].isEmpty() ? null : entry[3];
+                compressed[slot] = "1".equals(entry[4]);
+            }
+        }
+    }
+
+    /**
+     * @return the manifest of the application or null if it was not built with one
+     */
+    @Nullable public static AssetManifest load(@NonNull AssetManager assetManager) {
+        InputStream inputStream = null;
+        try {
+            inputStream = assetManager.open(FILE_NAME, AssetManager.ACCESS_STREAMING);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            if (!FORMAT_VERSION.equals(reader.readLine())) {
+                Log.w(TAG, "unsupported asset manifest version, ignoring it");
+                return null;
+            }
+
+            final List<String[]> entries = new ArrayList<String[]>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] entry = line.split("\t", -1);
+                if (entry.length != 5 && !(entry.length == 2 && "d".equals(entry[1]))) {
+                    Log.w(TAG, "malformed asset manifest entry, ignoring manifest: " + line);
+                    return null;
+                }
+                entries.add(entry);
+            }
+
+            final AssetManifest assetManifest = new AssetManifest(entries);
+            if (Config.DEBUG) {
+                Log.d(TAG, "loaded asset manifest with " + assetManifest.count + " entries");
+            }
+            return assetManifest;
+        } catch (IOException ioe) {
+            if (Config.DEBUG) {
+                Log.d(TAG, "no asset manifest available");
+            }
+            return null;
+        } catch (NumberFormatException nfe) {
+            Log.w(TAG, "malformed asset manifest, ignoring it", nfe);
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static int hash(String path) {
+        final int hash = path.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param path the asset path, relative to the assets root and without leading slash
+     * @return the index of the asset or directory, or -1 if it does not exist
+     */
+    public int indexOf(@NonNull String path) {
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        final int hash = hash(path);
+        int slot = hash & mask;
+        String candidate;
+        while ((candidate = paths[slot]) != null) {
+            if (hashes[slot] == hash && candidate.equals(path)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean isFile(@NonNull String path) {
+        final int index = indexOf(path);
+        return index >= 0 && sizes[index] != DIRECTORY;
+    }
+
+    public boolean isDirectory(@NonNull String path) {
+        final int index = indexOf(path);
+        return index >= 0 && sizes[index] == DIRECTORY;
+    }
+
+    /**
+     * @return the uncompressed size in bytes
+     */
+    public long getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * @return a strong entity tag from the content hash
+     */
+    @Nullable public String getETag(int index) {
+        return etags[index];
+    }
+
+    @Nullable public String getMimeType(int index) {
+        return mimeTypes[index];
+    }
+
+    /**
+     * @return whether the asset is deflated in the apk, which makes seeking in it expensive
+     */
+    public boolean isCompressed(int index) {
+        return compressed[index];
+    }
+
+    public int size() {
+        return count;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.handlers;
+
+import android.content.res.AssetManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import alexander.martinz.libs.webserver.Config;
+import alexander.martinz.libs.webserver.cache.AssetManifest;
+
+/**
+ * The scripts and stylesheets html assets and their html imports depend on, announced with a <code>Link</code>
+ * header of preload links, so the browser fetches them in parallel instead of discovering them level by level while
+ * parsing.
+ * <p/>
+ * The imports themselves are not announced: browsers do not reuse a preload as a document, an import would be
+ * fetched twice. They are still found by the parser one level at a time, serve them as a bundle to avoid that.
+ * <p/>
+ * Assets can only change with an update of the apk, so the graph is built once per document and kept.
+ */
+public class AssetDependencyGraph {
+    private static final String TAG = AssetDependencyGraph.class.getSimpleName();
+
+    // not a destination of preload links, marks the html imports which are followed
+    private static final String AS_IMPORT = "import";
+    private static final String AS_SCRIPT = "script";
+    private static final String AS_STYLE = "style";
+    private static final String AS_MODULE = "module";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final AssetManager assetManager;
+    private final int maxLinks;
+    // served with their imports inlined, so the imports are not fetched
+    private final Set<String> bundles;
+
+    // direct dependencies and the finished header of every document
+    private final ConcurrentHashMap<String, List<Dependency>> dependencies =
+            new ConcurrentHashMap<String, List<Dependency>>();
+    private final ConcurrentHashMap<String, String> linkHeaders = new ConcurrentHashMap<String, String>();
+
+    @Nullable private AssetManifest assetManifest;
+
+    private static class Dependency {
+        private final String path;
+        private final String as;
+
+        private Dependency(String path, String as) {
+            this.path = path;
+            this.as = as;
+        }
+    }
+
+    /**
+     * @param maxLinks the number of links per document, the closest dependencies come first
+     * @param bundles  asset paths of documents served as html import bundles
+     */
+    public AssetDependencyGraph(@NonNull AssetManager assetManager, int maxLinks, @NonNull String... bundles) {
+        this.assetManager = assetManager;
+        this.maxLinks = maxLinks;
+        this.bundles = new HashSet<String>(Arrays.asList(bundles));
+    }
+
+    /**
+     * @param assetManifest the build generated index of all assets, dependencies missing in it are not preloaded
+     */
+    public void setAssetManifest(@Nullable AssetManifest assetManifest) {
+        this.assetManifest = assetManifest;
+    }
+
+    /**
+     * @param path the asset path of an html document, without leading slash
+     * @return the value of the <code>Link</code> header with urls relative to the document, or null if it has no
+     * dependencies
+     */
+    @Nullable public String getLinkHeader(@NonNull String path) {
+        String linkHeader = linkHeaders.get(path);
+        if (linkHeader == null) {
+            linkHeader = buildLinkHeader(path);
+            linkHeaders.put(path, linkHeader);
+        }
+        return linkHeader.isEmpty() ? null : linkHeader;
+    }
+
+    static boolean isHtml(String path) {
+        final String lowerPath = path.toLowerCase(Locale.US);
+        return lowerPath.endsWith(".html") || lowerPath.endsWith(".htm");
+    }
+
+    /**
+     * Walks the imports breadth first, so the links are ordered by the depth the browser would find them at.
+     * Only scripts and stylesheets become links.
+     */
+    private String buildLinkHeader(String entry) {
+        final LinkedHashMap<String, Dependency> preloads = new LinkedHashMap<String, Dependency>();
+        final Set<String> visited = new HashSet<String>();
+        final Queue<String> documents = new ArrayDeque<String>();
+        visited.add(entry);
+        documents.add(entry);
+        while (!documents.isEmpty() && preloads.size() < maxLinks) {
+            final String document = documents.poll();
+            for (final Dependency dependency : getDependencies(document)) {
+                if (preloads.size() >= maxLinks) {
+                    break;
+                }
+                if (AS_IMPORT.equals(dependency.as)) {
+                    if (!bundles.contains(dependency.path) && visited.add(dependency.path)) {
+                        documents.add(dependency.path);
+                    }
+                    continue;
+                }
+                if (!preloads.containsKey(dependency.path)) {
+                    preloads.put(dependency.path, dependency);
+                }
+            }
+        }
+
+        final String entryDir = HtmlImportBundler.directoryOf(entry);
+        final StringBuilder builder = new StringBuilder();
+        for (final Dependency dependency : preloads.values()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append('<').append(encodeUrl(HtmlImportBundler.relativize(entryDir, dependency.path)))
+                    .append('>');
+            if (AS_MODULE.equals(dependency.as)) {
+                builder.append("; rel=modulepreload");
+            } else {
+                builder.append("; rel=preload; as=").append(dependency.as);
+            }
+        }
+        if (Config.DEBUG) {
+            Log.v(TAG, "preloading " + preloads.size() + " dependencies of " + entry);
+        }
+        return builder.toString();
+    }
+
+    private List<Dependency> getDependencies(String path) {
+        List<Dependency> documentDependencies = dependencies.get(path);
+        if (documentDependencies == null) {
+            documentDependencies = scan(path);
+            dependencies.put(path, documentDependencies);
+        }
+        return documentDependencies;
+    }
+
+    /**
+     * @return the dependencies of the document in the order they appear, empty if it can not be read
+     */
+    private List<Dependency> scan(String path) {
+        final String html;
+        try {
+            html = HtmlImportBundler.readAsset(assetManager, path);
+        } catch (IOException ioe) {
+            if (Config.DEBUG) {
+                Log.w(TAG, "could not read " + path + " for its dependencies");
+            }
+            return Collections.emptyList();
+        }
+
+        final String documentDir = HtmlImportBundler.directoryOf(path);
+        final List<Dependency> documentDependencies = new ArrayList<Dependency>();
+        final int length = html.length();
+        int index = 0;
+        while (index < length) {
+            final int open = html.indexOf('<', index);
+            if (open < 0) {
+                break;
+            }
+            if (html.startsWith("<!--", open)) {
+                final int close = html.indexOf("-->", open + 4);
+                index = (close < 0) ? length : close + 3;
+                continue;
+            }
+            final HtmlImportBundler.Tag tag = HtmlImportBundler.parseTag(html, open);
+            if (tag == null) {
+                index = open + 1;
+                continue;
+            }
+            index = tag.end;
+
+            if (tag.name.equals("script")) {
+                final HtmlImportBundler.Attribute src = tag.get("src");
+                final HtmlImportBundler.Attribute type = tag.get("type");
+                final boolean isModule = type != null && "module".equalsIgnoreCase(type.value);
+                addDependency(documentDependencies, documentDir, src, isModule ? AS_MODULE : AS_SCRIPT);
+                // the script itself may contain anything looking like a tag
+                final int end = HtmlImportBundler.indexOfIgnoreCase(html, "</script", index);
+                index = (end < 0) ? length : end;
+            } else if (tag.name.equals("style")) {
+                final int end = HtmlImportBundler.indexOfIgnoreCase(html, "</style", index);
+                index = (end < 0) ? length : end;
+            } else if (tag.name.equals("link")) {
+                final HtmlImportBundler.Attribute rel = tag.get("rel");
+                if (rel == null || rel.value == null) {
+                    continue;
+                }
+                final String relValue = " " + rel.value.toLowerCase(Locale.US) + " ";
+                final HtmlImportBundler.Attribute type = tag.get("type");
+                if (relValue.contains(" import ")) {
+                    final boolean isCss = type != null && "css".equalsIgnoreCase(type.value);
+                    addDependency(documentDependencies, documentDir, tag.get("href"), isCss ? AS_STYLE : AS_IMPORT);
+                } else if (relValue.contains(" stylesheet ")) {
+                    addDependency(documentDependencies, documentDir, tag.get("href"), AS_STYLE);
+                }
+            }
+        }
+        return documentDependencies;
+    }
+
+    private void addDependency(List<Dependency> documentDependencies, String documentDir,
+            @Nullable HtmlImportBundler.Attribute url, String as) {
+        final String path = (url != null) ? HtmlImportBundler.resolve(documentDir, url.value) : null;
+        if (path == null || path.isEmpty() || path.endsWith("/")) {
+            return;
+        }
+        if ((AS_IMPORT.equals(as) && !isHtml(path)) || (assetManifest != null && !assetManifest.isFile(path))) {
+            return;
+        }
+        documentDependencies.add(new Dependency(path, as));
+    }
+
+    // the characters which would end the url or the link in the header
+    private static String encodeUrl(String url) {
+        final StringBuilder builder = new StringBuilder(url.length());
+        for (final byte b : url.getBytes(UTF_8)) {
+            final int c = b & 0xff;
+            if (c <= ' ' || c >= 0x7f || c == '<' || c == '>' || c == ',' || c == ';' || c == '"') {
+                builder.append('%').append(String.format(Locale.US, "%02X", c));
+            } else {
+                builder.append((char) c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.libs.webserver.handlers;
+
+import android.content.res.AssetManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import alexander.martinz.libs.webserver.Config;
+import alexander.martinz.libs.webserver.cache.AssetManifest;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.BufferPool;
+
+/**
+ * Directory listings of the assets, as html page or as json.
+ * Assets can not change at runtime, so the entries of a directory are only listed once and small pages are
+ * only rendered once. Pages of big directories are rendered entry by entry while they are sent.
+ */
+class AssetDirectoryListing {
+    private static final String TAG = AssetDirectoryListing.class.getSimpleName();
+
+    private static final String MIME_JSON = "application/json";
+
+    // directories with more entries get streamed instead of cached as a whole
+    private static final int STREAM_THRESHOLD = 256;
+
+    private final AssetManager assetManager;
+    private final ConcurrentHashMap<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+    @Nullable private volatile AssetManifest assetManifest;
+
+    private static class Directory {
+        private final String[] names;
+        private final boolean[] isDirectory;
+
+        // rendered pages, the html one depends on the path it got requested with
+        private volatile RenderedPage html;
+        private volatile RenderedPage json;
+
+        private Directory(String[] names, boolean[] isDirectory) {
+            this.names = names;
+            this.isDirectory = isDirectory;
+        }
+    }
+
+    private static class RenderedPage {
+        private final String path;
+        private final byte[] data;
+
+        private RenderedPage(String path, byte[] data) {
+            this.path = path;
+            this.data = data;
+        }
+    }
+
+    AssetDirectoryListing(@NonNull AssetManager assetManager) {
+        this.assetManager = assetManager;
+    }
+
+    void setAssetManifest(@Nullable AssetManifest assetManifest) {
+        this.assetManifest = assetManifest;
+        directories.clear();
+    }
+
+    /**
+     * @param fullPath  the requested path, used for the links
+     * @param assetPath the path of the directory in the assets
+     * @return the listing or null if there is no such directory
+     */
+    @Nullable NanoHTTPD.Response createResponse(@NonNull NanoHTTPD.IHTTPSession session, @NonNull String fullPath,
+            @NonNull String assetPath) {
+        final Directory directory = getDirectory(assetPath);
+        if (directory == null) {
+            return null;
+        }
+
+        if (fullPath.endsWith("/")) {
+            fullPath = fullPath.substring(0, fullPath.length() - 1);
+        }
+        final boolean json = wantsJson(session);
+        final String mimeType = json ? MIME_JSON : "text/html";
+
+        final NanoHTTPD.Response response;
+        if (directory.names.length > STREAM_THRESHOLD) {
+            response = NanoHTTPD.newChunkedResponse(NanoHTTPD.Response.Status.OK, mimeType,
+                    new ListingInputStream(directory, fullPath, json));
+        } else {
+            RenderedPage page = json ? directory.json : directory.html;
+            if (page == null || !page.path.equals(fullPath)) {
+                page = new RenderedPage(fullPath, render(directory, fullPath, json));
+                if (json) {
+                    directory.json = page;
+                } else {
+                    directory.html = page;
+                }
+            }
+            response = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, mimeType,
+                    new ByteArrayInputStream(page.data), page.data.length);
+        }
+        response.addHeader("Vary", "Accept");
+        return response;
+    }
+
+    static boolean wantsJson(NanoHTTPD.IHTTPSession session) {
+        final String format = session.getParms().get("format");
+        if (format != null) {
+            return "json".equalsIgnoreCase(format);
+        }
+        final String accept = session.getHeaders().get("accept");
+        return accept != null && accept.contains(MIME_JSON) && !accept.contains("text/html");
+    }
+
+    @Nullable private Directory getDirectory(String assetPath) {
+        if (assetPath.endsWith("/")) {
+            assetPath = assetPath.substring(0, assetPath.length() - 1);
+        }
+        Directory directory = directories.get(assetPath);
+        if (directory != null) {
+            return directory;
+        }
+
+        final AssetManifest manifest = assetManifest;
+        if (manifest != null && !manifest.isDirectory(assetPath)) {
+            return null;
+        }
+        final String[] files;
+        try {
+            files = assetManager.list(assetPath);
+        } catch (IOException ioe) {
+            if (Config.DEBUG) {
+                Log.e(TAG, "Could not open asset!", ioe);
+            }
+            return null;
+        }
+        // the apk does not contain empty directories, so there is nothing
+        if (files == null || files.length == 0) {
+            return null;
+        }
+
+        final Set<String> fileSet = new HashSet<String>(Arrays.asList(files));
+        final List<String> names = new ArrayList<String>(files.length);
+        for (final String file : files) {
+            if (!isPrecompressedVariant(file, fileSet)) {
+                names.add(file);
+            }
+        }
+        final boolean[] isDirectory = new boolean[names.size()];
+        for (int i = 0; i < isDirectory.length; i++) {
+            final String child = assetPath.isEmpty() ? names.get(i) : assetPath + '/' + names.get(i);
+            isDirectory[i] = isDirectory(manifest, child);
+        }
+        directory = new Directory(names.toArray(new String[names.size()]), isDirectory);
+        directories.put(assetPath, directory);
+        return directory;
+    }
+
+    private boolean isDirectory(@Nullable AssetManifest manifest, String path) {
+        if (manifest != null) {
+            return manifest.isDirectory(path);
+        }
+        try {
+            final String[] files = assetManager.list(path);
+            return files != null && files.length > 0;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    static boolean isPrecompressedVariant(String file, Set<String> files) {
+        for (final String suffix : StaticAssetHandler.ENCODING_SUFFIXES) {
+            if (file.endsWith(suffix) && files.contains(file.substring(0, file.length() - suffix.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] render(Directory directory, String fullPath, boolean json) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final ListingInputStream inputStream = new ListingInputStream(directory, fullPath, json);
+        final byte[] buffer = BufferPool.shared().acquire(4096);
+        try {
+            int read;
+            while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Renders the page one entry at a time.
+     */
+    private static class ListingInputStream extends InputStream {
+        private final Directory directory;
+        private final String fullPath;
+        private final boolean json;
+
+        // -1 is the header, names.length the footer
+        private int index = -1;
+        private byte[] current;
+        private int position;
+
+        private ListingInputStream(Directory directory, String fullPath, boolean json) {
+            this.directory = directory;
+            this.fullPath = fullPath;
+            this.json = json;
+        }
+
+        private boolean nextPart() {
+            if (index > directory.names.length) {
+                return false;
+            }
+            final StringBuilder builder = new StringBuilder();
+            if (index == -1) {
+                if (json) {
+                    builder.append("{\"path\":").append(escapeJson(fullPath)).append(",\"entries\":[");
+                } else {
+                    final String title = escapeHtml(fullPath);
+                    builder.append("<html>");
+                    builder.append("<head><title>Index of ").append(title).append("</title></head>");
+                    builder.append("<body>");
+                    builder.append("<h1>Index of ").append(title).append("</h1>");
+                    builder.append("<hr>");
+                }
+            } else if (index < directory.names.length) {
+                final String name = directory.names[index];
+                if (json) {
+                    if (index > 0) {
+                        builder.append(',');
+                    }
+                    builder.append("{\"name\":").append(escapeJson(name))
+                            .append(",\"directory\":").append(directory.isDirectory[index]).append('}');
+                } else {
+                    builder.append("<a href=\"").append(escapeHtml(fullPath + '/' + name)).append("\">")
+                            .append(escapeHtml(name)).append("</a>");
+                    builder.append("<br/>");
+                }
+            } else {
+                if (json) {
+                    builder.append("]}");
+                } else {
+                    builder.append("<hr>");
+                    builder.append("</body>");
+                    builder.append("</html>");
+                }
+            }
+            index++;
+            try {
+                current = builder.toString().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException uee) {
+                throw new RuntimeException(uee);
+            }
+            position = 0;
+            return true;
+        }
+
+        @Override public int read() {
+            final byte[] single = new byte[1];
+            return (read(single, 0, 1) == -1) ? -1 : single[0] & 0xff;
+        }
+
+        @Override public int read(@NonNull byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            while (current == null || position == current.length) {
+                if (!nextPart()) {
+                    return -1;
+                }
+            }
+            final int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    private static String escapeHtml(String value) {
+        final StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                case '"':
+                    builder.append("&quot;");
+                    break;
+                default:
+                    builder.append(c);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    static String escapeJson(String value) {
+        final StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
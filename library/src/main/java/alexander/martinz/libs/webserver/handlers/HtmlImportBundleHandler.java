@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.handlers;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import alexander.martinz.libs.webserver.Config;
+import alexander.martinz.libs.webserver.WebServerCallbacks;
+import alexander.martinz.libs.webserver.cache.AssetManifest;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+/**
+ * Serves an html document with all its html imports, scripts and stylesheets inlined, which saves a round trip
+ * per referenced asset. Register it on the path of the entry, so relative urls keep working.
+ * <p/>
+ * The bundle is built on the first request and kept together with a gzipped copy. Its entity tag is derived
+ * from the asset manifest entries of all inputs, if a manifest is set, and otherwise from the bundle itself. The
+ * gzipped copy is a different representation, its entity tag carries a "-gzip" suffix.
+ */
+public class HtmlImportBundleHandler extends RouterNanoHTTPD.StaticPageHandler {
+    private static final String TAG = HtmlImportBundleHandler.class.getSimpleName();
+
+    private static final String MIME_TYPE = "text/html; charset=utf-8";
+
+    private final String entry;
+    private final HtmlImportBundler bundler;
+
+    // assets can only change with an update of the apk
+    private final long lastModified;
+
+    @Nullable private volatile AssetManifest assetManifest;
+    @Nullable private volatile CachedBundle cachedBundle;
+
+    private static class CachedBundle {
+        private final byte[] data;
+        // null if compressing does not pay off
+        @Nullable private final byte[] gzipped;
+        private final String etag;
+        private final String gzipETag;
+        private final List<String> inputs;
+        // the manifest the entity tag got derived from
+        @Nullable private final AssetManifest assetManifest;
+
+        private CachedBundle(byte[] data, @Nullable byte[] gzipped, String etag, List<String> inputs,
+                @Nullable AssetManifest assetManifest) {
+            this.data = data;
+            this.gzipped = gzipped;
+            this.etag = etag;
+            this.gzipETag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            this.inputs = inputs;
+            this.assetManifest = assetManifest;
+        }
+    }
+
+    /**
+     * @param entry the asset path of the document to bundle, for example "elements/elements.html"
+     */
+    public HtmlImportBundleHandler(@NonNull WebServerCallbacks webServerCallbacks, @NonNull String entry) {
+        final Context context = webServerCallbacks.getContext();
+        this.entry = entry.startsWith("/") ? entry.substring(1) : entry;
+        this.bundler = new HtmlImportBundler(context.getAssets());
+        this.lastModified = new File(context.getPackageCodePath()).lastModified();
+    }
+
+    /**
+     * @param assetManifest the build generated index of all assets, keys the bundle by the hashes of its inputs
+     */
+    public void setAssetManifest(@Nullable AssetManifest assetManifest) {
+        this.assetManifest = assetManifest;
+    }
+
+    @Override
+    public NanoHTTPD.Response get(RouterNanoHTTPD.UriResource res, Map<String, String> params, NanoHTTPD.IHTTPSession session) {
+        final CachedBundle bundle;
+        try {
+            bundle = getBundle();
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not bundle " + entry, ioe);
+            return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT,
+                    "Error 404, file not found.");
+        }
+
+        final boolean gzip = bundle.gzipped != null
+                && StaticAssetHandler.acceptsEncoding(session.getHeaders().get("accept-encoding"), "gzip");
+        final String etag = gzip ? bundle.gzipETag : bundle.etag;
+        final NanoHTTPD.Response response;
+        if (isNotModified(session, etag, lastModified)) {
+            response = newNotModifiedResponse(etag, lastModified);
+        } else {
+            final byte[] data = gzip ? bundle.gzipped : bundle.data;
+            response = NanoHTTPD.newFixedLengthResponse(getStatus(), MIME_TYPE, new ByteArrayInputStream(data),
+                    data.length);
+            addValidators(response, etag, lastModified);
+            if (gzip) {
+                response.addHeader("Content-Encoding", "gzip");
+            }
+        }
+        if (bundle.gzipped != null) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        return response;
+    }
+
+    private CachedBundle getBundle() throws IOException {
+        final AssetManifest manifest = assetManifest;
+        CachedBundle bundle = cachedBundle;
+        if (bundle != null && bundle.assetManifest == manifest) {
+            return bundle;
+        }
+        synchronized (this) {
+            bundle = cachedBundle;
+            if (bundle != null && bundle.assetManifest == manifest) {
+                return bundle;
+            }
+            if (bundle != null && manifest != null && bundle.etag.equals(createManifestETag(manifest, bundle.inputs))) {
+                // none of the inputs changed
+                bundle = new CachedBundle(bundle.data, bundle.gzipped, bundle.etag, bundle.inputs, manifest);
+            } else {
+                bundle = createBundle(manifest);
+            }
+            cachedBundle = bundle;
+            return bundle;
+        }
+    }
+
+    private CachedBundle createBundle(@Nullable AssetManifest manifest) throws IOException {
+        final long start = System.currentTimeMillis();
+        final HtmlImportBundler.Bundle bundle = bundler.bundle(entry);
+        final byte[] data = encode(bundle.html);
+
+        String etag = (manifest != null) ? createManifestETag(manifest, bundle.inputs) : null;
+        if (etag == null) {
+            final MessageDigest digest = createDigest();
+            digest.update(data);
+            etag = toETag(digest);
+        }
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 4);
+        final GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream);
+        gzipStream.write(data);
+        gzipStream.close();
+        final byte[] gzipped = (outputStream.size() < data.length * 0.9) ? outputStream.toByteArray() : null;
+
+        if (Config.DEBUG) {
+            Log.d(TAG, String.format("bundled %s from %d assets into %d bytes in %d ms", entry, bundle.inputs.size(),
+                    data.length, System.currentTimeMillis() - start));
+        }
+        return new CachedBundle(data, gzipped, etag, bundle.inputs, manifest);
+    }
+
+    /**
+     * @return the entity tag for the inputs or null if the manifest does not know all of them
+     */
+    @Nullable private static String createManifestETag(AssetManifest manifest, List<String> inputs) {
+        final MessageDigest digest = createDigest();
+        for (final String input : inputs) {
+            final int index = manifest.indexOf(input);
+            if (index < 0 || manifest.getETag(index) == null) {
+                return null;
+            }
+            digest.update(encode(input + '\t' + manifest.getETag(index) + '\n'));
+        }
+        return toETag(digest);
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new RuntimeException(uee);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+    }
+
+    private static String toETag(MessageDigest digest) {
+        final byte[] bytes = digest.digest();
+        final StringBuilder builder = new StringBuilder(bytes.length * 2 + 2).append('"');
+        for (final byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.append('"').toString();
+    }
+}
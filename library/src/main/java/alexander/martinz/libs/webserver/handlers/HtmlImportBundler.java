@@ -0,0 +1,557 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.handlers;
+
+import android.content.res.AssetManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import alexander.martinz.libs.webserver.Config;
+import fi.iki.elonen.router.BufferPool;
+
+/**
+ * Inlines a tree of html imports into a single document, like vulcanize does at build time.
+ * <p/>
+ * Starting from an entry asset, <code>&lt;link rel="import"&gt;</code> is replaced by the imported document,
+ * every document only once, <code>&lt;script src&gt;</code> by an inline script and stylesheets by an inline
+ * style. Relative urls of the inlined documents are rewritten to stay valid at the location of the entry, as
+ * the bundle is served in its place. Comments and the content of scripts are copied as they are.
+ * References which are absolute or can not be read are left to the browser.
+ */
+class HtmlImportBundler {
+    private static final String TAG = HtmlImportBundler.class.getSimpleName();
+
+    private static final Pattern CSS_URL = Pattern.compile("url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)");
+
+    // attributes holding an url which needs to be rewritten when a document moves
+    private static final String[] URL_ATTRIBUTES = { "src", "href", "action", "poster" };
+
+    private final AssetManager assetManager;
+
+    /**
+     * The result of bundling, with all assets it was built from.
+     */
+    static class Bundle {
+        final String html;
+        final List<String> inputs;
+
+        private Bundle(String html, List<String> inputs) {
+            this.html = html;
+            this.inputs = inputs;
+        }
+    }
+
+    static class Attribute {
+        final String name;
+        String value;
+
+        private Attribute(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    static class Tag {
+        final String name;
+        final List<Attribute> attributes = new ArrayList<Attribute>();
+        boolean selfClosing;
+        // index after the closing '>'
+        int end;
+
+        private Tag(String name) {
+            this.name = name;
+        }
+
+        @Nullable Attribute get(String attributeName) {
+            for (final Attribute attribute : attributes) {
+                if (attribute.name.equalsIgnoreCase(attributeName)) {
+                    return attribute;
+                }
+            }
+            return null;
+        }
+
+        private void remove(String attributeName) {
+            final Attribute attribute = get(attributeName);
+            if (attribute != null) {
+                attributes.remove(attribute);
+            }
+        }
+
+        private String toHtml() {
+            final StringBuilder builder = new StringBuilder().append('<').append(name);
+            for (final Attribute attribute : attributes) {
+                builder.append(' ').append(attribute.name);
+                if (attribute.value != null) {
+                    builder.append("=\"").append(attribute.value.replace("\"", "&quot;")).append('"');
+                }
+            }
+            return builder.append(selfClosing ? "/>" : ">").toString();
+        }
+    }
+
+    HtmlImportBundler(@NonNull AssetManager assetManager) {
+        this.assetManager = assetManager;
+    }
+
+    /**
+     * @param entry the asset path of the document to start from, without leading slash
+     * @throws IOException if the entry can not be read
+     */
+    @NonNull Bundle bundle(@NonNull String entry) throws IOException {
+        final Set<String> inputs = new LinkedHashSet<String>();
+        final StringBuilder builder = new StringBuilder();
+        inputs.add(entry);
+        inlineDocument(builder, readAsset(assetManager, entry), entry, directoryOf(entry), inputs, true);
+        return new Bundle(builder.toString(), new ArrayList<String>(inputs));
+    }
+
+    /**
+     * @param path       the asset path of the document
+     * @param bundleDir  the directory the bundle is served from, urls get rewritten relative to it
+     * @param inputs     all assets read so far, imports already in it are dropped
+     */
+    private void inlineDocument(StringBuilder out, String html, String path, String bundleDir, Set<String> inputs,
+            boolean isEntry) {
+        final String documentDir = directoryOf(path);
+        final boolean moved = !documentDir.equals(bundleDir);
+        final int length = html.length();
+        int index = 0;
+        while (index < length) {
+            final int open = html.indexOf('<', index);
+            if (open < 0) {
+                out.append(html, index, length);
+                break;
+            }
+            out.append(html, index, open);
+
+            if (html.startsWith("<!--", open)) {
+                final int close = html.indexOf("-->", open + 4);
+                index = (close < 0) ? length : close + 3;
+                out.append(html, open, index);
+                continue;
+            }
+
+            final Tag tag = parseTag(html, open);
+            if (tag == null) {
+                out.append('<');
+                index = open + 1;
+                continue;
+            }
+            index = tag.end;
+
+            if (!isEntry && (tag.name.equals("!doctype") || tag.name.equals("html") || tag.name.equals("/html")
+                    || tag.name.equals("head") || tag.name.equals("/head")
+                    || tag.name.equals("body") || tag.name.equals("/body"))) {
+                // the document becomes part of another one
+                continue;
+            }
+
+            if (tag.name.equals("script")) {
+                final int bodyEnd = indexOfIgnoreCase(html, "</script", index);
+                final int end = (bodyEnd < 0) ? length : bodyEnd;
+                final Attribute src = tag.get("src");
+                // inline scripts can not be deferred
+                final boolean deferred = tag.get("async") != null || tag.get("defer") != null;
+                final String scriptPath = (src != null && !deferred) ? resolve(documentDir, src.value) : null;
+                final String script = (scriptPath != null) ? tryReadAsset(scriptPath) : null;
+                if (script != null) {
+                    inputs.add(scriptPath);
+                    tag.remove("src");
+                    out.append(tag.toHtml()).append(escapeScript(script));
+                } else {
+                    if (moved) {
+                        rewriteUrls(tag, documentDir, bundleDir);
+                    }
+                    out.append(tag.toHtml()).append(html, index, end);
+                }
+                index = end;
+                continue;
+            }
+
+            if (tag.name.equals("style")) {
+                final int bodyEnd = indexOfIgnoreCase(html, "</style", index);
+                final int end = (bodyEnd < 0) ? length : bodyEnd;
+                final String css = html.substring(index, end);
+                out.append(tag.toHtml()).append(moved ? rewriteCssUrls(css, documentDir, bundleDir) : css);
+                index = end;
+                continue;
+            }
+
+            if (tag.name.equals("link")) {
+                if (inlineLink(out, tag, documentDir, bundleDir, inputs)) {
+                    continue;
+                }
+            }
+
+            boolean changed = false;
+            if (moved && tag.name.equals("dom-module") && tag.get("assetpath") == null) {
+                // lets polymer resolve urls relative to the original document
+                tag.attributes.add(new Attribute("assetpath", relativize(bundleDir, documentDir)));
+                changed = true;
+            }
+            if (moved && !tag.name.startsWith("/")) {
+                changed |= rewriteUrls(tag, documentDir, bundleDir);
+            }
+            if (changed) {
+                out.append(tag.toHtml());
+            } else {
+                out.append(html, open, tag.end);
+            }
+        }
+    }
+
+    /**
+     * @return true if the link got inlined or dropped, false if it should be copied
+     */
+    private boolean inlineLink(StringBuilder out, Tag tag, String documentDir, String bundleDir,
+            Set<String> inputs) {
+        final Attribute rel = tag.get("rel");
+        final Attribute href = tag.get("href");
+        if (rel == null || rel.value == null || href == null) {
+            return false;
+        }
+        final String relValue = " " + rel.value.toLowerCase(Locale.US) + " ";
+        final Attribute type = tag.get("type");
+        final boolean isImport = relValue.contains(" import ");
+        final boolean isStylesheet = relValue.contains(" stylesheet ")
+                || (isImport && type != null && "css".equalsIgnoreCase(type.value));
+        if (!isImport && !isStylesheet) {
+            return false;
+        }
+
+        final String path = resolve(documentDir, href.value);
+        if (path == null) {
+            return false;
+        }
+        if (!isStylesheet && inputs.contains(path)) {
+            // imports are only loaded once
+            return true;
+        }
+        final String content = tryReadAsset(path);
+        if (content == null) {
+            return false;
+        }
+        inputs.add(path);
+
+        if (isStylesheet) {
+            final String css = rewriteCssUrls(content, directoryOf(path), bundleDir);
+            final Attribute media = tag.get("media");
+            out.append("<style");
+            if (media != null && media.value != null) {
+                out.append(" media=\"").append(media.value.replace("\"", "&quot;")).append('"');
+            }
+            out.append('>').append(css).append("</style>");
+        } else {
+            inlineDocument(out, content, path, bundleDir, inputs, false);
+        }
+        return true;
+    }
+
+    private static boolean rewriteUrls(Tag tag, String documentDir, String bundleDir) {
+        boolean changed = false;
+        for (final String attributeName : URL_ATTRIBUTES) {
+            final Attribute attribute = tag.get(attributeName);
+            if (attribute == null || attribute.value == null) {
+                continue;
+            }
+            final String rewritten = rewriteUrl(attribute.value, documentDir, bundleDir);
+            if (!rewritten.equals(attribute.value)) {
+                attribute.value = rewritten;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static String rewriteCssUrls(String css, String documentDir, String bundleDir) {
+        if (documentDir.equals(bundleDir)) {
+            return css;
+        }
+        final Matcher matcher = CSS_URL.matcher(css);
+        final StringBuffer buffer = new StringBuffer(css.length());
+        while (matcher.find()) {
+            final String url = rewriteUrl(matcher.group(2), documentDir, bundleDir);
+            matcher.appendReplacement(buffer, Matcher.quoteReplacement(
+                    "url(" + matcher.group(1) + url + matcher.group(1) + ")"));
+        }
+        matcher.appendTail(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * @return the url relative to the bundle, or the url itself if it is not relative
+     */
+    private static String rewriteUrl(String url, String documentDir, String bundleDir) {
+        if (!isRelative(url)) {
+            return url;
+        }
+        int suffixStart = url.length();
+        final int query = url.indexOf('?');
+        final int fragment = url.indexOf('#');
+        if (query >= 0) {
+            suffixStart = query;
+        }
+        if (fragment >= 0 && fragment < suffixStart) {
+            suffixStart = fragment;
+        }
+        final String path = normalize(documentDir + url.substring(0, suffixStart));
+        if (path == null) {
+            return url;
+        }
+        return relativize(bundleDir, path) + url.substring(suffixStart);
+    }
+
+    /**
+     * @return the asset path the url refers to, or null if it does not refer to an asset
+     */
+    @Nullable static String resolve(String documentDir, @Nullable String url) {
+        if (url == null || url.isEmpty() || isTemplated(url) || url.startsWith("//") || hasScheme(url)) {
+            return null;
+        }
+        int end = url.length();
+        final int query = url.indexOf('?');
+        final int fragment = url.indexOf('#');
+        if (query >= 0) {
+            end = query;
+        }
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        final String path = url.substring(0, end);
+        if (path.isEmpty()) {
+            return null;
+        }
+        return normalize(path.startsWith("/") ? path.substring(1) : documentDir + path);
+    }
+
+    private static boolean isRelative(String url) {
+        return !url.isEmpty() && !url.startsWith("/") && !url.startsWith("#") && !url.startsWith("?")
+                && !isTemplated(url) && !hasScheme(url);
+    }
+
+    // polymer data bindings are resolved by the client
+    private static boolean isTemplated(String url) {
+        return url.contains("{{") || url.contains("[[");
+    }
+
+    private static boolean hasScheme(String url) {
+        for (int i = 0; i < url.length(); i++) {
+            final char c = url.charAt(i);
+            if (c == ':') {
+                return i > 0;
+            }
+            if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolves "." and ".." segments.
+     *
+     * @return the normalized path or null if it leaves the assets
+     */
+    @Nullable private static String normalize(String path) {
+        final List<String> segments = new ArrayList<String>();
+        for (final String segment : path.split("/", -1)) {
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.remove(segments.size() - 1);
+            } else if (!segment.equals(".") && !segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (final String segment : segments) {
+            if (builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(segment);
+        }
+        if (path.endsWith("/") && builder.length() > 0) {
+            builder.append('/');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param fromDir a directory, empty or ending with a slash
+     * @return the path relative to the directory
+     */
+    static String relativize(String fromDir, String path) {
+        int common = 0;
+        for (int i = 0; i < Math.min(fromDir.length(), path.length()); i++) {
+            if (fromDir.charAt(i) != path.charAt(i)) {
+                break;
+            }
+            if (fromDir.charAt(i) == '/') {
+                common = i + 1;
+            }
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (int i = common; i < fromDir.length(); i++) {
+            if (fromDir.charAt(i) == '/') {
+                builder.append("../");
+            }
+        }
+        return builder.append(path.substring(common)).toString();
+    }
+
+    /**
+     * @return the directory of the asset path including the trailing slash, or an empty string for the root
+     */
+    static String directoryOf(String path) {
+        final int slash = path.lastIndexOf('/');
+        return (slash < 0) ? "" : path.substring(0, slash + 1);
+    }
+
+    /**
+     * Parses the start or end tag at the given index, the tag name is lower cased.
+     *
+     * @return the tag or null if there is no tag at the index
+     */
+    @Nullable static Tag parseTag(String html, int open) {
+        final int length = html.length();
+        int index = open + 1;
+        final int nameStart = index;
+        if (index < length && (html.charAt(index) == '/' || html.charAt(index) == '!')) {
+            index++;
+        }
+        while (index < length && isNameChar(html.charAt(index))) {
+            index++;
+        }
+        if (index == nameStart || (index == nameStart + 1 && !isNameChar(html.charAt(nameStart)))) {
+            return null;
+        }
+        final Tag tag = new Tag(html.substring(nameStart, index).toLowerCase(Locale.US));
+
+        while (index < length) {
+            final char c = html.charAt(index);
+            if (c == '>') {
+                tag.end = index + 1;
+                return tag;
+            }
+            if (c == '/' && index + 1 < length && html.charAt(index + 1) == '>') {
+                tag.selfClosing = true;
+                tag.end = index + 2;
+                return tag;
+            }
+            if (Character.isWhitespace(c) || c == '/') {
+                index++;
+                continue;
+            }
+
+            final int attributeStart = index;
+            while (index < length && !Character.isWhitespace(html.charAt(index)) && html.charAt(index) != '='
+                    && html.charAt(index) != '>' && !html.startsWith("/>", index)) {
+                index++;
+            }
+            final String name = html.substring(attributeStart, index);
+            while (index < length && Character.isWhitespace(html.charAt(index))) {
+                index++;
+            }
+            String value = null;
+            if (index < length && html.charAt(index) == '=') {
+                index++;
+                while (index < length && Character.isWhitespace(html.charAt(index))) {
+                    index++;
+                }
+                if (index < length && (html.charAt(index) == '"' || html.charAt(index) == '\'')) {
+                    final char quote = html.charAt(index);
+                    final int valueEnd = html.indexOf(quote, index + 1);
+                    if (valueEnd < 0) {
+                        return null;
+                    }
+                    value = html.substring(index + 1, valueEnd).replace("&quot;", "\"");
+                    index = valueEnd + 1;
+                } else {
+                    final int valueStart = index;
+                    while (index < length && !Character.isWhitespace(html.charAt(index))
+                            && html.charAt(index) != '>') {
+                        index++;
+                    }
+                    value = html.substring(valueStart, index);
+                }
+            }
+            tag.attributes.add(new Attribute(name, value));
+        }
+        return null;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':';
+    }
+
+    static int indexOfIgnoreCase(String html, String needle, int from) {
+        for (int i = from; i <= html.length() - needle.length(); i++) {
+            if (html.regionMatches(true, i, needle, 0, needle.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // an inlined script must not end the script element early
+    private static String escapeScript(String script) {
+        return script.replaceAll("(?i)</script", "<\\\\/script");
+    }
+
+    @Nullable private String tryReadAsset(String path) {
+        try {
+            return readAsset(assetManager, path);
+        } catch (IOException ioe) {
+            if (Config.DEBUG) {
+                Log.w(TAG, "could not inline " + path + ", leaving it to the browser");
+            }
+            return null;
+        }
+    }
+
+    static String readAsset(AssetManager assetManager, String path) throws IOException {
+        final InputStream inputStream = assetManager.open(path, AssetManager.ACCESS_STREAMING);
+        final byte[] buffer = BufferPool.shared().acquire(8192);
+        try {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(inputStream.available(), 32));
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            BufferPool.shared().release(buffer);
+            try {
+                inputStream.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.libs.webserver.handlers;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.LatencyHistogram;
+import fi.iki.elonen.router.RouteMetrics;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+/**
+ * Serves the statistics of every route, as Prometheus text format or, if asked for with <code>?format=json</code>
+ * or the accept header, as json. Requests no route matched are reported as route <code>(not found)</code>.
+ */
+public class MetricsHandler extends RouterNanoHTTPD.DefaultHandler {
+    private static final String MIME_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String MIME_JSON = "application/json";
+
+    private static final String ROUTE_NOT_FOUND = "(not found)";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99" };
+
+    private final RouterNanoHTTPD.UriRouter router;
+
+    public MetricsHandler(@NonNull RouterNanoHTTPD.UriRouter router) {
+        this.router = router;
+    }
+
+    @Override public NanoHTTPD.Response get(RouterNanoHTTPD.UriResource uriResource, Map<String, String> urlParams,
+            NanoHTTPD.IHTTPSession session) {
+        final NanoHTTPD.Response response;
+        if (AssetDirectoryListing.wantsJson(session)) {
+            response = NanoHTTPD.newFixedLengthResponse(getStatus(), MIME_JSON, getJson());
+        } else {
+            response = NanoHTTPD.newFixedLengthResponse(getStatus(), getMimeType(), getText());
+        }
+        response.addHeader("Cache-Control", "no-cache");
+        response.addHeader("Vary", "Accept");
+        return response;
+    }
+
+    @Override public String getText() {
+        final StringBuilder requests = new StringBuilder()
+                .append("# HELP http_requests_total Requests served per route and status class.\n")
+                .append("# TYPE http_requests_total counter\n");
+        final StringBuilder bytes = new StringBuilder()
+                .append("# HELP http_response_bytes_total Body bytes sent per route, before gzip encoding.\n")
+                .append("# TYPE http_response_bytes_total counter\n");
+        final StringBuilder duration = new StringBuilder()
+                .append("# HELP http_request_duration_seconds Time from routing to the last byte sent.\n")
+                .append("# TYPE http_request_duration_seconds summary\n");
+        final StringBuilder max = new StringBuilder()
+                .append("# HELP http_request_duration_seconds_max Longest request per route.\n")
+                .append("# TYPE http_request_duration_seconds_max gauge\n");
+
+        for (final RouterNanoHTTPD.UriResource resource : router.getMappings()) {
+            appendPrometheus(routeOf(resource), resource.getMetrics(), requests, bytes, duration, max);
+        }
+        final RouterNanoHTTPD.UriResource notFound = router.getNotFoundResource();
+        if (notFound != null) {
+            appendPrometheus(ROUTE_NOT_FOUND, notFound.getMetrics(), requests, bytes, duration, max);
+        }
+        return requests.append(bytes).append(duration).append(max).toString();
+    }
+
+    private static void appendPrometheus(String route, RouteMetrics metrics, StringBuilder requests,
+            StringBuilder bytes, StringBuilder duration, StringBuilder max) {
+        final String label = "route=\"" + escapeLabel(route) + '"';
+        for (int statusClass = 1; statusClass <= 5; statusClass++) {
+            final long count = metrics.getRequests(statusClass);
+            if (count > 0) {
+                requests.append("http_requests_total{").append(label)
+                        .append(",status=\"").append(statusClass).append("xx\"} ").append(count).append('\n');
+            }
+        }
+        bytes.append("http_response_bytes_total{").append(label).append("} ").append(metrics.getBytesSent())
+                .append('\n');
+
+        final LatencyHistogram latency = metrics.getLatency();
+        final long[] values = latency.getValuesAtQuantiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            duration.append("http_request_duration_seconds{").append(label)
+                    .append(",quantile=\"").append(QUANTILES[i]).append("\"} ").append(seconds(values[i]))
+                    .append('\n');
+        }
+        duration.append("http_request_duration_seconds_sum{").append(label).append("} ")
+                .append(seconds(latency.getSum())).append('\n');
+        duration.append("http_request_duration_seconds_count{").append(label).append("} ")
+                .append(latency.getCount()).append('\n');
+        max.append("http_request_duration_seconds_max{").append(label).append("} ")
+                .append(seconds(latency.getMax())).append('\n');
+    }
+
+    public String getJson() {
+        final StringBuilder builder = new StringBuilder("{\"routes\":[");
+        boolean first = true;
+        for (final RouterNanoHTTPD.UriResource resource : router.getMappings()) {
+            if (!first) {
+                builder.append(',');
+            }
+            appendJson(builder, routeOf(resource), resource.getMetrics());
+            first = false;
+        }
+        final RouterNanoHTTPD.UriResource notFound = router.getNotFoundResource();
+        if (notFound != null) {
+            if (!first) {
+                builder.append(',');
+            }
+            appendJson(builder, ROUTE_NOT_FOUND, notFound.getMetrics());
+        }
+        return builder.append("]}").toString();
+    }
+
+    private static void appendJson(StringBuilder builder, String route, RouteMetrics metrics) {
+        builder.append("{\"route\":").append(AssetDirectoryListing.escapeJson(route))
+                .append(",\"requests\":").append(metrics.getRequests())
+                .append(",\"status\":{");
+        for (int statusClass = 1; statusClass <= 5; statusClass++) {
+            if (statusClass > 1) {
+                builder.append(',');
+            }
+            builder.append('"').append(statusClass).append("xx\":").append(metrics.getRequests(statusClass));
+        }
+        builder.append("},\"bytes\":").append(metrics.getBytesSent());
+
+        // latencies in microseconds
+        final LatencyHistogram latency = metrics.getLatency();
+        final long[] values = latency.getValuesAtQuantiles(QUANTILES);
+        builder.append(",\"latency\":{\"count\":").append(latency.getCount());
+        for (int i = 0; i < QUANTILES.length; i++) {
+            builder.append(",\"").append(QUANTILE_NAMES[i]).append("\":").append(values[i]);
+        }
+        builder.append(",\"max\":").append(latency.getMax()).append("}}");
+    }
+
+    private static String routeOf(RouterNanoHTTPD.UriResource resource) {
+        return resource.getUri() != null ? "/" + resource.getUri() : "/";
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.US, "%.6f", micros / 1000000.0);
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override public String getMimeType() {
+        return MIME_PROMETHEUS;
+    }
+
+    @Override public NanoHTTPD.Response.IStatus getStatus() {
+        return NanoHTTPD.Response.Status.OK;
+    }
+}
@@ -16,28 +16,64 @@
 
 package alexander.martinz.libs.webserver.handlers;
 
+import android.content.Context;
 import android.content.res.AssetManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import alexander.martinz.libs.webserver.Config;
 import alexander.martinz.libs.webserver.WebServerCallbacks;
+import alexander.martinz.libs.webserver.cache.AssetCache;
+import alexander.martinz.libs.webserver.cache.AssetManifest;
 import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.BufferPool;
+import fi.iki.elonen.router.RangeRequest;
 import fi.iki.elonen.router.RouterNanoHTTPD;
 
 public class StaticAssetHandler extends RouterNanoHTTPD.StaticPageHandler {
     private static final String TAG = StaticAssetHandler.class.getSimpleName();
 
+    // content codings of precompressed variants, in order of preference
+    private static final String[] ENCODINGS = { "br", "gzip" };
+    static final String[] ENCODING_SUFFIXES = { ".br", ".gz" };
+
     private final AssetManager assetManager;
     private final String staticFileName;
     private final boolean isDirectory;
+    private final AssetDirectoryListing directoryListing;
+
+    // assets can only change with an update of the apk
+    private final long lastModified;
+
+    // whether a precompressed variant exists, only probed for existing assets
+    private final ConcurrentHashMap<String, Boolean> precompressedVariants = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentHashMap<String, AssetInfo> assetInfos = new ConcurrentHashMap<String, AssetInfo>();
+
+    @Nullable private AssetCache assetCache;
+    @Nullable private AssetManifest assetManifest;
+    @Nullable private AssetDependencyGraph dependencyGraph;
+
+    private static class AssetInfo {
+        private final String etag;
+        private final long length;
+
+        private AssetInfo(String etag, long length) {
+            this.etag = etag;
+            this.length = length;
+        }
+    }
 
     public StaticAssetHandler(@NonNull WebServerCallbacks webServerCallbacks) {
         this(webServerCallbacks, null);
@@ -49,9 +85,36 @@ public class StaticAssetHandler extends RouterNanoHTTPD.StaticPageHandler {
 
     public StaticAssetHandler(@NonNull WebServerCallbacks webServerCallbacks, @Nullable String staticFileName,
             boolean isDirectory) {
-        this.assetManager = webServerCallbacks.getContext().getAssets();
+        final Context context = webServerCallbacks.getContext();
+        this.assetManager = context.getAssets();
+        this.lastModified = new File(context.getPackageCodePath()).lastModified();
         this.staticFileName = staticFileName;
         this.isDirectory = isDirectory;
+        this.directoryListing = new AssetDirectoryListing(assetManager);
+    }
+
+    /**
+     * @param assetCache a cache to serve hot assets from memory, may be shared between handlers
+     */
+    public void setAssetCache(@Nullable AssetCache assetCache) {
+        this.assetCache = assetCache;
+    }
+
+    /**
+     * @param assetManifest the build generated index of all assets, lets unknown paths fail without touching the
+     *                      asset manager
+     */
+    public void setAssetManifest(@Nullable AssetManifest assetManifest) {
+        this.assetManifest = assetManifest;
+        this.directoryListing.setAssetManifest(assetManifest);
+    }
+
+    /**
+     * @param dependencyGraph announces the dependencies of html assets with preload links, may be shared between
+     *                        handlers
+     */
+    public void setDependencyGraph(@Nullable AssetDependencyGraph dependencyGraph) {
+        this.dependencyGraph = dependencyGraph;
     }
 
     private InputStream openAsset(String fileName) throws IOException {
@@ -63,9 +126,313 @@ public class StaticAssetHandler extends RouterNanoHTTPD.StaticPageHandler {
         return assetManager.open(fileName, AssetManager.ACCESS_BUFFER);
     }
 
-    private NanoHTTPD.Response createChunkedResponse(InputStream inputStream, String fileName) {
-        final BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
-        return NanoHTTPD.newChunkedResponse(getStatus(), RouterNanoHTTPD.getMimeTypeForFile(fileName), bufferedInputStream);
+    /**
+     * The asset stream is not buffered, NanoHTTPD already reads it in chunks of 16 KiB.
+     *
+     * @param length the length of the asset or -1 if unknown, in which case the response is chunked
+     */
+    private NanoHTTPD.Response createStreamResponse(InputStream inputStream, String fileName, long length) {
+        if (length >= 0) {
+            return NanoHTTPD.newFixedLengthResponse(getStatus(), getMimeType(fileName), inputStream, length);
+        }
+        return NanoHTTPD.newChunkedResponse(getStatus(), getMimeType(fileName), inputStream);
+    }
+
+    private String getMimeType(String fileName) {
+        if (assetManifest != null) {
+            final int index = assetManifest.indexOf(fileName);
+            if (index >= 0 && assetManifest.getMimeType(index) != null) {
+                return assetManifest.getMimeType(index);
+            }
+        }
+        return RouterNanoHTTPD.getMimeTypeForFile(fileName);
+    }
+
+    /**
+     * @throws IOException if the asset does not exist
+     */
+    private NanoHTTPD.Response createResponse(NanoHTTPD.IHTTPSession session, String fileName) throws IOException {
+        // variants are only probed for existing assets, so we can skip opening known ones
+        InputStream inputStream = null;
+        if (assetManifest != null) {
+            if (!assetManifest.isFile(fileName)) {
+                throw new FileNotFoundException(fileName);
+            }
+        } else if (!precompressedVariants.containsKey(fileName + ENCODING_SUFFIXES[0])) {
+            inputStream = openAsset(fileName);
+        }
+
+        final String acceptEncoding = session.getHeaders().get("accept-encoding");
+        boolean hasVariants = false;
+        String representation = fileName;
+        String encoding = null;
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            final String variant = fileName + ENCODING_SUFFIXES[i];
+            if (!hasPrecompressedVariant(variant)) {
+                continue;
+            }
+            hasVariants = true;
+            if (acceptsEncoding(acceptEncoding, ENCODINGS[i])) {
+                representation = variant;
+                encoding = ENCODINGS[i];
+                break;
+            }
+        }
+
+        InputStream body = null;
+        if (representation.equals(fileName)) {
+            body = inputStream;
+        } else if (inputStream != null) {
+            closeQuietly(inputStream);
+        }
+
+        AssetCache.CachedAsset cachedAsset = null;
+        if (assetCache != null) {
+            cachedAsset = assetCache.get(representation);
+            if (cachedAsset == null) {
+                if (body == null) {
+                    body = openAsset(representation);
+                }
+                cachedAsset = cacheAsset(representation, fileName, body);
+                if (cachedAsset != null) {
+                    body = null;
+                }
+            } else if (body != null) {
+                closeQuietly(body);
+                body = null;
+            }
+        }
+
+        final NanoHTTPD.Response response;
+        final AssetInfo assetInfo = (cachedAsset != null) ? null : getAssetInfo(representation);
+        final String etag;
+        final long length;
+        if (cachedAsset != null) {
+            etag = cachedAsset.getETag();
+            length = cachedAsset.getLength();
+        } else if (assetInfo != null) {
+            etag = assetInfo.etag;
+            length = assetInfo.length;
+        } else {
+            etag = null;
+            length = -1;
+        }
+        if (isNotModified(session, etag, lastModified)) {
+            if (body != null) {
+                closeQuietly(body);
+            }
+            response = newNotModifiedResponse(etag, lastModified);
+        } else {
+            if (Config.DEBUG && encoding != null) {
+                Log.v(TAG, "serving precompressed variant: " + representation);
+            }
+            final RangeRequest range = RangeRequest.parse(session, length, etag, lastModified);
+            if (range != null) {
+                if (body != null) {
+                    closeQuietly(body);
+                }
+                final RangeRequest.Source source = (cachedAsset != null)
+                        ? cachedAsset.createRangeSource() : createRangeSource(representation);
+                response = range.createResponse(getMimeType(fileName), source);
+            } else if (cachedAsset != null) {
+                response = cachedAsset.createResponse(getStatus());
+            } else {
+                if (body == null) {
+                    body = openAsset(representation);
+                }
+                response = createStreamResponse(body, fileName, length);
+            }
+            if (range == null) {
+                response.addHeader("Accept-Ranges", "bytes");
+                addPreloadLinks(response, fileName);
+            }
+            addValidators(response, etag, lastModified);
+            if (encoding != null) {
+                response.addHeader("Content-Encoding", encoding);
+            }
+        }
+        if (hasVariants) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        return response;
+    }
+
+    private void addPreloadLinks(NanoHTTPD.Response response, String fileName) {
+        if (dependencyGraph == null || !AssetDependencyGraph.isHtml(fileName)) {
+            return;
+        }
+        final String linkHeader = dependencyGraph.getLinkHeader(fileName);
+        if (linkHeader != null) {
+            response.addHeader("Link", linkHeader);
+        }
+    }
+
+    /**
+     * Reads the asset into the cache, unless it is too big.
+     *
+     * @return the cached asset or null if the asset should be streamed, in which case the stream is left untouched
+     */
+    @Nullable private AssetCache.CachedAsset cacheAsset(String path, String fileName, InputStream inputStream)
+            throws IOException {
+        if (inputStream.available() > assetCache.getMaxEntrySize()) {
+            return null;
+        }
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(inputStream.available(), 32));
+        final byte[] buffer = BufferPool.shared().acquire(8192);
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+            closeQuietly(inputStream);
+        }
+
+        final byte[] data = outputStream.toByteArray();
+        final MessageDigest digest = createDigest();
+        digest.update(data);
+        final AssetCache.CachedAsset cachedAsset = new AssetCache.CachedAsset(data,
+                getMimeType(fileName), toETag(digest));
+        assetCache.put(path, cachedAsset);
+        if (Config.DEBUG) {
+            Log.v(TAG, "cached asset: " + path + " -> " + assetCache);
+        }
+        return cachedAsset;
+    }
+
+    /**
+     * @return a strong entity tag from the content hash and the length of the given asset, computed once per asset
+     */
+    @Nullable private AssetInfo getAssetInfo(String fileName) {
+        AssetInfo assetInfo = assetInfos.get(fileName);
+        if (assetInfo == null && assetManifest != null) {
+            final int index = assetManifest.indexOf(fileName);
+            if (index >= 0) {
+                assetInfo = new AssetInfo(assetManifest.getETag(index), assetManifest.getSize(index));
+                assetInfos.put(fileName, assetInfo);
+            }
+        }
+        if (assetInfo == null) {
+            InputStream inputStream = null;
+            byte[] buffer = null;
+            try {
+                inputStream = openAsset(fileName);
+                final MessageDigest digest = createDigest();
+                buffer = BufferPool.shared().acquire(8192);
+                long length = 0;
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    length += read;
+                }
+                assetInfo = new AssetInfo(toETag(digest), length);
+                assetInfos.put(fileName, assetInfo);
+            } catch (IOException ioe) {
+                if (Config.DEBUG) {
+                    Log.e(TAG, "Could not hash asset: " + fileName, ioe);
+                }
+            } finally {
+                BufferPool.shared().release(buffer);
+                if (inputStream != null) {
+                    closeQuietly(inputStream);
+                }
+            }
+        }
+        return assetInfo;
+    }
+
+    /**
+     * Uncompressed assets seek on skip, so slices do not read through the whole asset.
+     */
+    private RangeRequest.Source createRangeSource(final String fileName) {
+        return new RangeRequest.Source() {
+            @Override public InputStream open(long offset, long length) throws IOException {
+                final InputStream inputStream = openAsset(fileName);
+                long remaining = offset;
+                while (remaining > 0) {
+                    final long skipped = inputStream.skip(remaining);
+                    if (skipped <= 0) {
+                        closeQuietly(inputStream);
+                        throw new IOException("Could not skip to offset " + offset + " of " + fileName);
+                    }
+                    remaining -= skipped;
+                }
+                return new RangeRequest.BoundedInputStream(inputStream, length);
+            }
+        };
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+    }
+
+    private static String toETag(MessageDigest digest) {
+        return '"' + toHex(digest.digest()) + '"';
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] hexDigits = "0123456789abcdef".toCharArray();
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = hexDigits[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = hexDigits[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private boolean hasPrecompressedVariant(String variant) {
+        if (assetManifest != null) {
+            return assetManifest.isFile(variant);
+        }
+        Boolean exists = precompressedVariants.get(variant);
+        if (exists == null) {
+            try {
+                closeQuietly(openAsset(variant));
+                exists = true;
+            } catch (IOException ioe) {
+                exists = false;
+            }
+            precompressedVariants.put(variant, exists);
+        }
+        return exists;
+    }
+
+    static boolean acceptsEncoding(@Nullable String acceptEncoding, @NonNull String encoding) {
+        if (TextUtils.isEmpty(acceptEncoding)) {
+            return false;
+        }
+        for (final String part : acceptEncoding.split(",")) {
+            final String[] codingAndParams = part.split(";");
+            final String coding = codingAndParams[0].trim();
+            if (!coding.equalsIgnoreCase(encoding) && !"*".equals(coding)) {
+                continue;
+            }
+            // "gzip;q=0" explicitly refuses the coding
+            for (int i = 1; i < codingAndParams.length; i++) {
+                final String param = codingAndParams[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2)) > 0f;
+                    } catch (NumberFormatException nfe) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException ignored) { }
     }
 
     @Override
@@ -79,7 +446,7 @@ public class StaticAssetHandler extends RouterNanoHTTPD.StaticPageHandler {
                 Log.d(TAG, "serving static file: " + staticFileName);
             }
             try {
-                return createChunkedResponse(openAsset(staticFileName), staticFileName);
+                return createResponse(session, staticFileName);
             } catch (IOException ioe) {
                 throw new RuntimeException("Check your setup!");
             }
@@ -119,57 +486,34 @@ public class StaticAssetHandler extends RouterNanoHTTPD.StaticPageHandler {
             Log.v(TAG, "trying to open asset: " + assetUri);
         }
 
-        InputStream inputStream;
-        try {
-            inputStream = openAsset(assetUri);
-            if (Config.DEBUG) {
-                Log.d(TAG, "opened asset: " + assetUri);
-            }
-        } catch (IOException ioe) {
-            // if directory listing is disabled, end here
-            if (!Config.ENABLE_ASSETS_DIRECTORY_LISTING) {
-                return notFoundResponse;
-            }
-
-            // else try to list files and send a very simple directory index
-            final String htmlResponseText = tryListFiles(sessionUri, assetUri);
-            if (TextUtils.isEmpty(htmlResponseText)) {
-                return notFoundResponse;
+        // with a manifest, unknown paths end here without an exception or a directory scan
+        if (assetManifest == null || assetManifest.isFile(assetUri)) {
+            try {
+                final NanoHTTPD.Response response = createResponse(session, assetUri);
+                if (Config.DEBUG) {
+                    Log.d(TAG, "serving asset: " + assetUri);
+                }
+                return response;
+            } catch (IOException ioe) {
+                // not a file, maybe a directory
             }
-            return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/html", htmlResponseText);
         }
 
-        // if we found the asset, wrap it around a buffered input stream
-        return createChunkedResponse(inputStream, assetUri);
-    }
-
-    private String tryListFiles(String fullPath, String assetPath) {
-        final String[] files;
-        try {
-            files = assetManager.list(assetPath);
-        } catch (IOException ioeNew) {
-            if (Config.DEBUG) {
-                Log.e(TAG, "Could not open asset!", ioeNew);
-            }
-            return null;
+        // if directory listing is disabled, end here
+        if (!Config.ENABLE_ASSETS_DIRECTORY_LISTING) {
+            return newNotFoundResponse();
         }
 
-        final StringBuilder fileBuilder = new StringBuilder();
-        fileBuilder.append("<html>");
-        fileBuilder.append("<head><title>Index of ").append(fullPath).append("</title></head>");
-        fileBuilder.append("<body>");
-        fileBuilder.append("<h1>Index of ").append(fullPath).append("</h1>");
-        fileBuilder.append("<hr>");
-        for (final String file : files) {
-            fileBuilder.append("<a href=\"").append(fullPath).append('/').append(file).append("\">").append(file).append("</a>");
-            fileBuilder.append("<br/>");
+        // else try to list files and send a very simple directory index
+        final NanoHTTPD.Response listingResponse = directoryListing.createResponse(session, sessionUri, assetUri);
+        if (listingResponse == null) {
+            return newNotFoundResponse();
         }
-        fileBuilder.append("<hr>");
-        fileBuilder.append("</body>");
-        fileBuilder.append("</html>");
-        return fileBuilder.toString();
+        return listingResponse;
     }
 
-    private final NanoHTTPD.Response notFoundResponse =
-            NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.REQUEST_TIMEOUT, "text/plain", null);
+    // responses get decorated while they are served, never share one
+    private static NanoHTTPD.Response newNotFoundResponse() {
+        return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.REQUEST_TIMEOUT, "text/plain", null);
+    }
 }
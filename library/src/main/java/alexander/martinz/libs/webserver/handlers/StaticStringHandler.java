@@ -21,9 +21,12 @@ import android.support.annotation.NonNull;
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.router.RouterNanoHTTPD;
 
-public class StaticStringHandler extends RouterNanoHTTPD.DefaultHandler {
+/**
+ * Serves a fixed string, which is only encoded again after {@link #setText(String)}.
+ */
+public class StaticStringHandler extends RouterNanoHTTPD.StaticTextHandler {
     private static final String MIME_TYPE = "text/html";
-    private String stringToReturn;
+    private volatile String stringToReturn;
 
     public StaticStringHandler() {
         this.stringToReturn = "";
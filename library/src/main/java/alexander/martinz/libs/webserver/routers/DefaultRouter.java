@@ -17,11 +17,25 @@
 package alexander.martinz.libs.webserver.routers;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
 
 import alexander.martinz.libs.webserver.BuildConfig;
+import alexander.martinz.libs.webserver.Config;
 import alexander.martinz.libs.webserver.WebServerCallbacks;
+import alexander.martinz.libs.webserver.cache.AssetCache;
+import alexander.martinz.libs.webserver.cache.AssetManifest;
+import alexander.martinz.libs.webserver.handlers.AssetDependencyGraph;
+import alexander.martinz.libs.webserver.handlers.HtmlImportBundleHandler;
+import alexander.martinz.libs.webserver.handlers.MetricsHandler;
 import alexander.martinz.libs.webserver.handlers.StaticAssetHandler;
 import alexander.martinz.libs.webserver.handlers.StaticStringHandler;
+import alexander.martinz.libs.webserver.runners.WorkerPoolAsyncRunner;
+import fi.iki.elonen.router.BufferPool;
+import fi.iki.elonen.router.RateLimiter;
 import fi.iki.elonen.router.RouterNanoHTTPD;
 
 public class DefaultRouter extends RouterNanoHTTPD {
@@ -33,12 +47,63 @@ public class DefaultRouter extends RouterNanoHTTPD {
     private static final String ROUTE_ASSETS = "/assets/";
     private static final String ROUTE_ASSETS_ALL = "/assets/(.)+";
     private static final String ROUTE_VERSION = "/version";
+    private static final String ROUTE_METRICS = "/metrics";
 
     private final WebServerCallbacks webServerCallbacks;
+    private final AssetCache assetCache;
+    private final AssetManifest assetManifest;
+    private final AssetDependencyGraph dependencyGraph;
+    private final WorkerPoolAsyncRunner workerPool;
+    private final RateLimiter rateLimiter;
 
     public DefaultRouter(@NonNull WebServerCallbacks webServerCallbacks, int port) {
         super(port);
         this.webServerCallbacks = webServerCallbacks;
+        this.assetCache = (Config.ASSETS_CACHE_SIZE > 0) ? new AssetCache(Config.ASSETS_CACHE_SIZE) : null;
+        this.assetManifest = AssetManifest.load(webServerCallbacks.getContext().getAssets());
+        if (Config.MAX_PRELOAD_LINKS > 0) {
+            this.dependencyGraph = new AssetDependencyGraph(webServerCallbacks.getContext().getAssets(),
+                    Config.MAX_PRELOAD_LINKS, Config.HTML_IMPORT_BUNDLES);
+            this.dependencyGraph.setAssetManifest(assetManifest);
+        } else {
+            this.dependencyGraph = null;
+        }
+        setIdleTimeout(Config.KEEP_ALIVE_IDLE_TIMEOUT);
+        setMaxKeepAliveConnections(Config.MAX_KEEP_ALIVE_CONNECTIONS);
+        setMaxRequestsPerConnection(Config.MAX_REQUESTS_PER_CONNECTION);
+        setMaxWebSockets(Config.MAX_WEB_SOCKETS);
+        setMaxEventStreams(Config.MAX_EVENT_STREAMS);
+        setBodyBuffering(Config.REQUEST_BODY_MEMORY_THRESHOLD, webServerCallbacks.getContext().getCacheDir());
+        setCompressionThreshold(Config.COMPRESSION_MIN_SIZE);
+        // report stream buffers which never went back to the pool
+        BufferPool.shared().setLeakDetection(Config.DEBUG);
+        if (Config.SELECTOR_EVENT_LOOPS > 0) {
+            useSelectorEngine(Config.SELECTOR_EVENT_LOOPS, Math.max(1, Config.WORKER_POOL_SIZE));
+            this.workerPool = null;
+        } else if (Config.WORKER_POOL_SIZE > 0) {
+            this.workerPool = new WorkerPoolAsyncRunner(Config.WORKER_POOL_SIZE, Config.WORKER_POOL_MAX_SIZE,
+                    Config.WORKER_QUEUE_SIZE, Config.WORKER_OVERFLOW_POLICY);
+            setAsyncRunner(workerPool);
+        } else {
+            this.workerPool = null;
+        }
+        if (Config.RATE_LIMIT_PER_SECOND > 0 || !Config.ROUTE_RATE_LIMITS.isEmpty()) {
+            this.rateLimiter = new RateLimiter();
+            if (Config.RATE_LIMIT_PER_SECOND > 0) {
+                rateLimiter.setClientLimit(
+                        new RateLimiter.Limit(Config.RATE_LIMIT_PER_SECOND, Math.max(1, Config.RATE_LIMIT_BURST)));
+            }
+            for (final Map.Entry<String, RateLimiter.Limit> routeLimit : Config.ROUTE_RATE_LIMITS.entrySet()) {
+                rateLimiter.setRouteLimit(routeLimit.getKey(), routeLimit.getValue());
+            }
+            setRateLimiter(rateLimiter);
+        } else {
+            this.rateLimiter = null;
+        }
+        // the selector engine only speaks HTTP/1.1
+        if (Config.HTTP2_WORKERS > 0 && Config.SELECTOR_EVENT_LOOPS <= 0) {
+            enableHttp2(Config.HTTP2_WORKERS);
+        }
 
         addMappings();
     }
@@ -47,21 +112,89 @@ public class DefaultRouter extends RouterNanoHTTPD {
         router.setNotImplemented(NotImplementedHandler.class);
         router.setNotFoundHandler(Error404UriHandler.class);
 
-        final StaticAssetHandler staticAssetHandler = new StaticAssetHandler(webServerCallbacks, "assets", true);
-        addRoute(ROUTE_ASSETS, staticAssetHandler);
-        addRoute(ROUTE_ASSETS_ALL, staticAssetHandler);
-        addRoute(ROUTE_VERSION, new VersionHandler());
-
-        // handle / and /index.html
-        final StaticAssetHandler staticIndexHandler = new StaticAssetHandler(webServerCallbacks, "index.html");
-        final StaticAssetHandler staticFavIconHandler = new StaticAssetHandler(webServerCallbacks, "favicon.ico");
-        addRoute(ROUTE_INDEX, staticIndexHandler);
-        addRoute(ROUTE_INDEX_HTML, staticIndexHandler);
-        addRoute(ROUTE_FAVICON, staticFavIconHandler);
-
-        // handle index wildcard last, as it matches all
-        final StaticAssetHandler staticAssetHandlerGeneric = new StaticAssetHandler(webServerCallbacks);
-        addRoute(ROUTE_INDEX_ALL, staticAssetHandlerGeneric);
+        final StaticAssetHandler staticAssetHandler =
+                setupAssetHandler(new StaticAssetHandler(webServerCallbacks, "assets", true));
+        final StaticAssetHandler staticFavIconHandler =
+                setupAssetHandler(new StaticAssetHandler(webServerCallbacks, "favicon.ico"));
+        final StaticAssetHandler staticAssetHandlerGeneric =
+                setupAssetHandler(new StaticAssetHandler(webServerCallbacks));
+
+        // register all routes at once to only compile the route table once
+        final UriRouter.RouteBatch routeBatch = newRouteBatch();
+        StaticPageHandler staticIndexHandler = null;
+        for (final String entry : Config.HTML_IMPORT_BUNDLES) {
+            final HtmlImportBundleHandler bundleHandler = new HtmlImportBundleHandler(webServerCallbacks, entry);
+            bundleHandler.setAssetManifest(assetManifest);
+            final String route = normalizeUri(entry);
+            if (ROUTE_INDEX_HTML.substring(1).equals(route)) {
+                // served on / and /index.html below
+                staticIndexHandler = bundleHandler;
+            } else {
+                routeBatch.addRoute("/" + route, bundleHandler);
+            }
+        }
+        if (staticIndexHandler == null) {
+            staticIndexHandler = setupAssetHandler(new StaticAssetHandler(webServerCallbacks, "index.html"));
+        }
+        if (Config.ENABLE_METRICS) {
+            routeBatch.addRoute(ROUTE_METRICS, new MetricsHandler(router));
+        }
+        routeBatch
+                .addRoute(ROUTE_ASSETS, staticAssetHandler)
+                .addRoute(ROUTE_ASSETS_ALL, staticAssetHandler)
+                .addRoute(ROUTE_VERSION, new VersionHandler())
+                // handle / and /index.html
+                .addRoute(ROUTE_INDEX, staticIndexHandler)
+                .addRoute(ROUTE_INDEX_HTML, staticIndexHandler)
+                .addRoute(ROUTE_FAVICON, staticFavIconHandler)
+                // handle index wildcard last, as it matches all
+                .addRoute(ROUTE_INDEX_ALL, staticAssetHandlerGeneric)
+                .commit();
+    }
+
+    @Override protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        final ClientHandler clientHandler = super.createClientHandler(finalAccept, inputStream);
+        if (workerPool != null) {
+            workerPool.attachSocket(clientHandler, finalAccept);
+        }
+        return clientHandler;
+    }
+
+    private StaticAssetHandler setupAssetHandler(StaticAssetHandler staticAssetHandler) {
+        staticAssetHandler.setAssetCache(assetCache);
+        staticAssetHandler.setAssetManifest(assetManifest);
+        staticAssetHandler.setDependencyGraph(dependencyGraph);
+        return staticAssetHandler;
+    }
+
+    /**
+     * @return the cache shared by the asset handlers or null if {@link Config#ASSETS_CACHE_SIZE} is 0
+     */
+    @Nullable public AssetCache getAssetCache() {
+        return assetCache;
+    }
+
+    /**
+     * @return the index of all assets or null if the application was built without one
+     */
+    @Nullable public AssetManifest getAssetManifest() {
+        return assetManifest;
+    }
+
+    /**
+     * @return the pool serving connections or null if {@link Config#WORKER_POOL_SIZE} is 0 or the selector engine
+     * is used
+     */
+    @Nullable public WorkerPoolAsyncRunner getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * @return the limiter of client requests or null if neither {@link Config#RATE_LIMIT_PER_SECOND} nor
+     * {@link Config#ROUTE_RATE_LIMITS} are set
+     */
+    @Nullable public RateLimiter getRateLimiter() {
+        return rateLimiter;
     }
 
     public static class VersionHandler extends StaticStringHandler {
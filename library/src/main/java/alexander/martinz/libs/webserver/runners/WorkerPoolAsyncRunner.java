@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.libs.webserver.runners;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alexander.martinz.libs.webserver.Config;
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Runs client connections on a bounded pool of worker threads instead of starting a thread per connection.
+ * A worker serves a connection for its whole life, including the idle time between keep-alive requests, so the
+ * pool starts new workers up to its maximum size before connections have to wait. Connections which can not be
+ * handled right away wait in a bounded queue, once that is full the {@link OverflowPolicy} decides what happens.
+ * <p/>
+ * To answer rejected connections with a 503, the server has to hand out the socket of every client handler
+ * via {@link #attachSocket(NanoHTTPD.ClientHandler, Socket)}, otherwise they just get closed.
+ */
+public class WorkerPoolAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private static final String TAG = WorkerPoolAsyncRunner.class.getSimpleName();
+
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: 1\r\n"
+            + "Content-Length: 0\r\n"
+            + "Connection: close\r\n\r\n").getBytes();
+
+    public enum OverflowPolicy {
+        /** Answer new connections with a 503 while the queue is full */
+        REJECT,
+        /** Stop accepting until the queue has room again */
+        BLOCK,
+        /** Answer the longest waiting connection with a 503 and queue the new one */
+        DROP_OLDEST
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final HandOffQueue queue;
+    private final OverflowPolicy overflowPolicy;
+    private final int queueCapacity;
+
+    private final ConcurrentHashMap<NanoHTTPD.ClientHandler, Socket> sockets =
+            new ConcurrentHashMap<NanoHTTPD.ClientHandler, Socket>();
+    private final ConcurrentHashMap<NanoHTTPD.ClientHandler, Boolean> running =
+            new ConcurrentHashMap<NanoHTTPD.ClientHandler, Boolean>();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private class Task implements Runnable {
+        private final NanoHTTPD.ClientHandler clientHandler;
+
+        private Task(NanoHTTPD.ClientHandler clientHandler) {
+            this.clientHandler = clientHandler;
+        }
+
+        @Override public void run() {
+            running.put(clientHandler, Boolean.TRUE);
+            clientHandler.run();
+        }
+    }
+
+    /**
+     * Creates a fixed size pool.
+     */
+    public WorkerPoolAsyncRunner(int poolSize, int queueCapacity, @NonNull OverflowPolicy overflowPolicy) {
+        this(poolSize, poolSize, queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * @param corePoolSize   the number of workers which are kept around
+     * @param maxPoolSize    the number of workers the pool grows to before connections are queued, idle workers
+     *                       terminate after 30 seconds
+     * @param queueCapacity  the number of connections waiting for a worker once all workers are busy
+     * @param overflowPolicy what happens to connections while all workers are busy and the queue is full
+     */
+    public WorkerPoolAsyncRunner(int corePoolSize, int maxPoolSize, int queueCapacity,
+            @NonNull OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        this.queueCapacity = queueCapacity;
+        this.queue = new HandOffQueue(queueCapacity);
+        this.executor = new ThreadPoolExecutor(corePoolSize, Math.max(corePoolSize, maxPoolSize), 30, TimeUnit.SECONDS,
+                queue, new WorkerThreadFactory(), new OverflowHandler());
+        this.queue.executor = executor;
+        // do not keep idle threads around while the server is stopped
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override public Thread newThread(@NonNull Runnable runnable) {
+            final Thread thread = new Thread(runnable, "NanoHttpd Worker #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A thread pool executor only starts workers beyond its core size once its queue refuses a task. This queue
+     * refuses connections while no worker is idle and the pool may still grow, so they get a new worker instead of
+     * waiting for a keep-alive connection to end.
+     */
+    private static class HandOffQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        private ThreadPoolExecutor executor;
+
+        private HandOffQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override public boolean offer(@NonNull Runnable runnable) {
+            final int poolSize = executor.getPoolSize();
+            if (poolSize < executor.getMaximumPoolSize() && executor.getActiveCount() >= poolSize) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+
+        /**
+         * Queues the connection if there is room, no matter the size of the pool.
+         */
+        private boolean enqueue(Runnable runnable) {
+            return super.offer(runnable);
+        }
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+        @Override public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            final Task task = (Task) runnable;
+            if (executor.isShutdown()) {
+                reject(task.clientHandler);
+                return;
+            }
+            // the pool reached its maximum size while the queue refused the connection
+            if (queue.enqueue(task)) {
+                return;
+            }
+
+            switch (overflowPolicy) {
+                case BLOCK: {
+                    blockedCount.incrementAndGet();
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        reject(task.clientHandler);
+                    }
+                    break;
+                }
+                case DROP_OLDEST: {
+                    final Runnable oldest = executor.getQueue().poll();
+                    if (oldest != null) {
+                        droppedCount.incrementAndGet();
+                        reject(((Task) oldest).clientHandler);
+                    }
+                    if (!queue.enqueue(task)) {
+                        reject(task.clientHandler);
+                    }
+                    break;
+                }
+                default: {
+                    reject(task.clientHandler);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets rejected connections be answered with a 503 instead of just closing them.
+     */
+    public void attachSocket(@NonNull NanoHTTPD.ClientHandler clientHandler, @NonNull Socket socket) {
+        sockets.put(clientHandler, socket);
+    }
+
+    private void reject(NanoHTTPD.ClientHandler clientHandler) {
+        rejectedCount.incrementAndGet();
+        final Socket socket = sockets.remove(clientHandler);
+        if (socket != null) {
+            try {
+                final OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(SERVICE_UNAVAILABLE);
+                outputStream.flush();
+                socket.shutdownOutput();
+            } catch (IOException ioe) {
+                if (Config.DEBUG) {
+                    Log.w(TAG, "could not send 503 to rejected client", ioe);
+                }
+            }
+        }
+        clientHandler.close();
+    }
+
+    @Override public void exec(NanoHTTPD.ClientHandler clientHandler) {
+        acceptedCount.incrementAndGet();
+        executor.execute(new Task(clientHandler));
+    }
+
+    @Override public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        running.remove(clientHandler);
+        sockets.remove(clientHandler);
+    }
+
+    @Override public void closeAll() {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        executor.getQueue().drainTo(queued);
+        for (final Runnable runnable : queued) {
+            final NanoHTTPD.ClientHandler clientHandler = ((Task) runnable).clientHandler;
+            sockets.remove(clientHandler);
+            clientHandler.close();
+        }
+        for (final NanoHTTPD.ClientHandler clientHandler : new ArrayList<NanoHTTPD.ClientHandler>(running.keySet())) {
+            clientHandler.close();
+        }
+    }
+
+    /**
+     * Stops the worker threads, the runner can not be used afterwards.
+     */
+    public void shutdown() {
+        closeAll();
+        executor.shutdown();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return the number of connections waiting for a worker
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the number of workers currently serving a connection
+     */
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    public int getLargestPoolSize() {
+        return executor.getLargestPoolSize();
+    }
+
+    public int getMaxPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * @return the number of connections answered with a 503, including dropped ones
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return the number of queued connections dropped in favor of newer ones
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return how often the acceptor had to wait for room in the queue
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    @Override public String toString() {
+        return String.format("WorkerPoolAsyncRunner[policy=%s,active=%d,pool=%d/%d,queue=%d/%d,accepted=%d,"
+                        + "rejected=%d,dropped=%d,blocked=%d]", overflowPolicy, getActiveWorkers(), getPoolSize(),
+                getMaxPoolSize(), getQueueDepth(), queueCapacity, getAcceptedCount(), getRejectedCount(),
+                getDroppedCount(), getBlockedCount());
+    }
+}
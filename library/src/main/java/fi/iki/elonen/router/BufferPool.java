@@ -0,0 +1,305 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Byte arrays for copying streams, shared by all responses, so serving does
+ * not allocate a new buffer per request.
+ * <p/>
+ * Buffers come in size classes of {@link #MIN_SIZE} up to
+ * {@link #MAX_SIZE} bytes, each class keeps at most
+ * {@link #MAX_POOLED_BYTES} bytes of idle buffers. Larger requests are
+ * allocated and left to the garbage collector. A buffer has to be handed
+ * back exactly once, and must not be used afterwards.
+ * <p/>
+ * With leak detection, which is meant for debug builds, every buffer
+ * remembers where it got acquired, and buffers which got collected without
+ * being released are logged together with that place. Releasing a buffer
+ * twice is logged as well and the buffer is dropped, instead of handing it
+ * out to two users.
+ */
+public final class BufferPool {
+
+    /**
+     * logger to log to.
+     */
+    private static final Logger LOG = Logger.getLogger(BufferPool.class.getName());
+
+    public static final int MIN_SIZE = 4 * 1024;
+
+    public static final int MAX_SIZE = 64 * 1024;
+
+    /**
+     * Idle bytes kept per size class.
+     */
+    public static final int MAX_POOLED_BYTES = 256 * 1024;
+
+    private static final BufferPool SHARED = new BufferPool();
+
+    private static final class SizeClass {
+
+        private final int size;
+
+        private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * A buffer which is out, only tracked with leak detection.
+     */
+    private static final class Loan extends WeakReference<byte[]> {
+
+        private final int size;
+
+        private final Throwable acquiredAt;
+
+        private Loan(byte[] buffer, ReferenceQueue<byte[]> queue) {
+            super(buffer, queue);
+            this.size = buffer.length;
+            this.acquiredAt = new Throwable("buffer of " + buffer.length + " bytes acquired here");
+        }
+    }
+
+    /**
+     * Buffers with a pooled array, which goes back once the stream is
+     * closed.
+     */
+    private final class PooledInputStream extends BufferedInputStream {
+
+        private byte[] pooled;
+
+        private PooledInputStream(InputStream in, int size) {
+            super(in, 1);
+            this.pooled = acquire(size);
+            this.buf = pooled;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // a mark may have replaced the array, the pooled one goes
+                // back either way
+                synchronized (this) {
+                    release(pooled);
+                    pooled = null;
+                }
+            }
+        }
+    }
+
+    private final SizeClass[] sizeClasses;
+
+    private final ReferenceQueue<byte[]> collected = new ReferenceQueue<byte[]>();
+
+    // only a few buffers are out at a time, a list is enough
+    private final List<Loan> loans = new ArrayList<Loan>();
+
+    private final AtomicInteger leaks = new AtomicInteger();
+
+    private volatile boolean leakDetection;
+
+    BufferPool() {
+        int classes = 0;
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+            classes++;
+        }
+        sizeClasses = new SizeClass[classes];
+        for (int i = 0; i < classes; i++) {
+            sizeClasses[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    /**
+     * @return the pool all responses of the library share.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param leakDetection
+     *            whether to track the buffers which are out, costs a stack
+     *            trace per buffer
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        if (!leakDetection) {
+            synchronized (loans) {
+                loans.clear();
+            }
+        }
+    }
+
+    /**
+     * @param minSize
+     *            bytes needed at least
+     * @return a buffer of the smallest size class holding minSize bytes, it
+     *         may be larger and contains garbage
+     */
+    public byte[] acquire(int minSize) {
+        SizeClass sizeClass = sizeClassOf(minSize, false);
+        byte[] buffer = null;
+        if (sizeClass != null) {
+            buffer = sizeClass.buffers.poll();
+            if (buffer != null) {
+                sizeClass.pooled.decrementAndGet();
+            } else {
+                buffer = new byte[sizeClass.size];
+            }
+        } else {
+            buffer = new byte[minSize];
+        }
+        if (leakDetection) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back, null is ignored.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leakDetection && !untrack(buffer)) {
+            LOG.log(Level.WARNING, "buffer of " + buffer.length + " bytes released twice or not acquired from the pool", new Throwable());
+            return;
+        }
+        SizeClass sizeClass = sizeClassOf(buffer.length, true);
+        if (sizeClass == null) {
+            return;
+        }
+        if (sizeClass.pooled.incrementAndGet() * sizeClass.size <= MAX_POOLED_BYTES) {
+            sizeClass.buffers.offer(buffer);
+        } else {
+            sizeClass.pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return a buffered stream of in, its buffer is released when it gets
+     *         closed
+     */
+    public BufferedInputStream newBufferedInputStream(InputStream in) {
+        return new PooledInputStream(in, 8192);
+    }
+
+    /**
+     * @return the number of buffers reported as leaked
+     */
+    public int getLeaks() {
+        reportLeaks();
+        return leaks.get();
+    }
+
+    /**
+     * @return the number of idle buffers
+     */
+    public int size() {
+        int size = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            size += sizeClass.pooled.get();
+        }
+        return size;
+    }
+
+    /**
+     * @param exact
+     *            whether only a class of exactly this size matches
+     */
+    private SizeClass sizeClassOf(int size, boolean exact) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (exact ? sizeClass.size == size : sizeClass.size >= size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    private void track(byte[] buffer) {
+        reportLeaks();
+        Loan loan = new Loan(buffer, collected);
+        synchronized (loans) {
+            loans.add(loan);
+        }
+    }
+
+    private boolean untrack(byte[] buffer) {
+        synchronized (loans) {
+            for (int i = loans.size() - 1; i >= 0; i--) {
+                if (loans.get(i).get() == buffer) {
+                    loans.remove(i);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void reportLeaks() {
+        Loan loan;
+        while ((loan = (Loan) collected.poll()) != null) {
+            boolean leaked;
+            synchronized (loans) {
+                leaked = loans.remove(loan);
+            }
+            if (leaked) {
+                leaks.incrementAndGet();
+                LOG.log(Level.WARNING, "buffer of " + loan.size + " bytes was never released", loan.acquiredAt);
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * A stream of server-sent events, which any number of clients subscribe to
+ * through an {@link RouterNanoHTTPD.EventStreamHandler}.
+ * <p/>
+ * An event is encoded once when it is published and the same bytes are put
+ * into the buffer of every subscriber, the connection threads of the
+ * subscribers write them. Publishing never blocks on a client: a subscriber
+ * whose buffer is full either loses its oldest events or gets disconnected,
+ * see {@link OverflowPolicy}.
+ * <p/>
+ * Events are numbered, and the last published events are kept, so a client
+ * which reconnects with a <code>Last-Event-ID</code> within that window gets
+ * what it missed.
+ * <p/>
+ * Every subscriber holds the thread of its connection for as long as it is
+ * subscribed, blocked in reading its buffer. With a bounded worker pool each
+ * one is a worker less for the other clients,
+ * {@link RouterNanoHTTPD#setMaxEventStreams(int)} limits them.
+ */
+public final class EventTopic {
+
+    /**
+     * What happens to a subscriber which does not keep up.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Its oldest buffered event is dropped for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Its stream ends, the client reconnects and catches up from the
+         * history.
+         */
+        DISCONNECT
+    }
+
+    private static final int DEFAULT_HEARTBEAT_INTERVAL = 15000;
+
+    private static final byte[] HEARTBEAT = ascii(":\n\n");
+
+    private final int bufferSize;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final byte[][] history;
+
+    private final long[] historyIds;
+
+    // the next slot of the history
+    private int historyHead;
+
+    private int historyCount;
+
+    private long nextId = 1;
+
+    private final Set<Subscriber> subscribers = new LinkedHashSet<Subscriber>();
+
+    private volatile int heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+    private volatile byte[] retry;
+
+    /**
+     * @param historySize
+     *            events kept for clients which reconnect
+     * @param bufferSize
+     *            events buffered per subscriber which were not written yet
+     * @param overflowPolicy
+     *            what happens to subscribers whose buffer is full
+     */
+    public EventTopic(int historySize, int bufferSize, OverflowPolicy overflowPolicy) {
+        if (historySize < 0 || bufferSize < 1) {
+            throw new IllegalArgumentException("invalid history or buffer size");
+        }
+        this.history = new byte[historySize][];
+        this.historyIds = new long[historySize];
+        this.bufferSize = bufferSize;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param heartbeatInterval
+     *            milliseconds after which an idle stream gets a comment, so
+     *            proxies keep it open and lost clients are noticed
+     */
+    public void setHeartbeatInterval(int heartbeatInterval) {
+        this.heartbeatInterval = Math.max(1000, heartbeatInterval);
+    }
+
+    /**
+     * @param retry
+     *            milliseconds clients wait before they reconnect, sent to
+     *            every new subscriber; 0 to leave it to the client
+     */
+    public void setRetry(int retry) {
+        this.retry = retry > 0 ? ascii("retry: " + retry + "\n\n") : null;
+    }
+
+    /**
+     * @return the id of the event.
+     */
+    public long publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * @param event
+     *            the event type, null for plain messages
+     * @param data
+     *            the payload, it may span several lines
+     * @return the id of the event.
+     */
+    public long publish(String event, String data) {
+        Subscriber[] current;
+        byte[] encoded;
+        long id;
+        synchronized (this) {
+            id = nextId++;
+            encoded = encode(id, event, data);
+            if (history.length > 0) {
+                history[historyHead] = encoded;
+                historyIds[historyHead] = id;
+                historyHead = (historyHead + 1) % history.length;
+                historyCount = Math.min(historyCount + 1, history.length);
+            }
+            current = subscribers.toArray(new Subscriber[subscribers.size()]);
+            // offered while holding the topic, so every subscriber sees the
+            // events in the order of their ids
+            for (Subscriber subscriber : current) {
+                subscriber.offer(encoded);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return the number of connected clients.
+     */
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Ends the streams of all subscribers.
+     */
+    public void disconnectAll() {
+        Subscriber[] current;
+        synchronized (this) {
+            current = subscribers.toArray(new Subscriber[subscribers.size()]);
+        }
+        for (Subscriber subscriber : current) {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * @return the event stream of a new subscriber, starting with the events
+     *         after the <code>Last-Event-ID</code> of the request.
+     */
+    Response subscribe(IHTTPSession session) {
+        long lastId = -1;
+        String lastEventId = session.getHeaders().get("last-event-id");
+        if (lastEventId != null) {
+            try {
+                lastId = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        Subscriber subscriber;
+        synchronized (this) {
+            // an id we did not hand out yet is from before a restart
+            if (lastId >= nextId) {
+                lastId = 0;
+            }
+            int replay = 0;
+            if (lastId >= 0) {
+                for (int i = 0; i < historyCount; i++) {
+                    if (historyIds[slot(i)] > lastId) {
+                        replay++;
+                    }
+                }
+            }
+            subscriber = new Subscriber(bufferSize + replay);
+            if (retry != null) {
+                subscriber.offer(retry);
+            }
+            for (int i = historyCount - replay; i < historyCount; i++) {
+                subscriber.offer(history[slot(i)]);
+            }
+            subscribers.add(subscriber);
+        }
+        Response response = new EventStream(subscriber);
+        response.addHeader("Cache-Control", "no-cache");
+        // nginx would buffer the stream
+        response.addHeader("X-Accel-Buffering", "no");
+        return response;
+    }
+
+    /**
+     * Runs the action once an event stream response is closed, after it got
+     * sent or when it is dropped.
+     * 
+     * @return false if the response is not an event stream of a topic
+     */
+    static boolean whenClosed(Response response, Runnable action) {
+        if (!(response instanceof EventStream)) {
+            return false;
+        }
+        ((EventStream) response).closeAction = action;
+        return true;
+    }
+
+    /**
+     * @return the slot of the i-th oldest event in the history.
+     */
+    private int slot(int index) {
+        return (historyHead - historyCount + index + history.length) % history.length;
+    }
+
+    private synchronized void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    private static byte[] encode(long id, String event, String data) {
+        StringBuilder encoded = new StringBuilder(data.length() + 32);
+        encoded.append("id: ").append(id).append('\n');
+        if (event != null) {
+            encoded.append("event: ").append(event.replace('\n', ' ').replace('\r', ' ')).append('\n');
+        }
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            encoded.append("data: ").append(line).append('\n');
+        }
+        encoded.append('\n');
+        try {
+            return encoded.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        try {
+            return text.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The chunked response of a subscriber, closing it unsubscribes.
+     */
+    private static final class EventStream extends Response {
+
+        private Runnable closeAction;
+
+        private EventStream(Subscriber subscriber) {
+            super(Status.OK, "text/event-stream", subscriber, -1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            Runnable action = closeAction;
+            closeAction = null;
+            try {
+                super.close();
+            } finally {
+                if (action != null) {
+                    action.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * The stream of one client, read by the connection thread which writes
+     * the response. Its events are kept in a fixed ring buffer.
+     */
+    private final class Subscriber extends InputStream {
+
+        private final byte[][] ring;
+
+        private int head;
+
+        private int count;
+
+        private byte[] current;
+
+        private int position;
+
+        private boolean closed;
+
+        private Subscriber(int capacity) {
+            this.ring = new byte[capacity][];
+        }
+
+        /**
+         * Called with the topic held, must not block.
+         */
+        private synchronized void offer(byte[] event) {
+            if (closed) {
+                return;
+            }
+            if (count == ring.length) {
+                if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                    // the event being written is finished, the rest is replayed after reconnecting
+                    clear();
+                    subscribers.remove(this);
+                    return;
+                }
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                count--;
+            }
+            ring[(head + count) % ring.length] = event;
+            count++;
+            notifyAll();
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            long deadline = System.currentTimeMillis() + heartbeatInterval;
+            while (current == null || position == current.length) {
+                if (closed) {
+                    return -1;
+                }
+                if (count > 0) {
+                    next();
+                    continue;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    current = HEARTBEAT;
+                    position = 0;
+                    break;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            // fill the chunk with whatever is buffered
+            int read = 0;
+            while (read < len) {
+                if (position == current.length) {
+                    if (count == 0 || closed) {
+                        break;
+                    }
+                    next();
+                }
+                int length = Math.min(len - read, current.length - position);
+                System.arraycopy(current, position, b, off + read, length);
+                position += length;
+                read += length;
+            }
+            return read;
+        }
+
+        private void next() {
+            current = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            position = 0;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                clear();
+            }
+            unsubscribe(this);
+        }
+
+        private void clear() {
+            closed = true;
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = null;
+            }
+            count = 0;
+            notifyAll();
+        }
+    }
+}
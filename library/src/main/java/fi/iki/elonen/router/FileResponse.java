@@ -0,0 +1,272 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * A fixed length response which writes a file straight from its
+ * {@link FileChannel}, or from a memory mapping of it, instead of copying it
+ * through an input stream.
+ * <p/>
+ * The status line and headers are still written by {@link Response}, with an
+ * empty body; the file follows afterwards. Such a response is never gzipped
+ * or chunked, it always carries the real <code>Content-Length</code>.
+ */
+public class FileResponse extends Response {
+
+    /**
+     * logger to log to.
+     */
+    private static final Logger LOG = Logger.getLogger(FileResponse.class.getName());
+
+    private final FileChannel channel;
+
+    private final ByteBuffer mapped;
+
+    private final long offset;
+
+    private final long length;
+
+    protected FileResponse(IStatus status, String mimeType, FileChannel channel, ByteBuffer mapped, long offset, long length) {
+        super(status, mimeType, new ByteArrayInputStream(new byte[0]), length);
+        this.channel = channel;
+        this.mapped = mapped;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Creates a response transferring the whole file from its channel.
+     */
+    public static FileResponse newFileResponse(IStatus status, String mimeType, File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        return new FileResponse(status, mimeType, channel, null, 0, channel.size());
+    }
+
+    /**
+     * Creates a response writing the given mapping of a file, the buffer is
+     * not modified and may be shared between responses.
+     */
+    public static FileResponse newMappedResponse(IStatus status, String mimeType, MappedByteBuffer buffer) {
+        return new FileResponse(status, mimeType, null, buffer, 0, buffer.capacity());
+    }
+
+    /**
+     * @return the number of bytes of the file which get sent.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void setGzipEncoding(boolean encodeAsGzip) {
+        // the length is known up front, keep it
+        super.setGzipEncoding(false);
+    }
+
+    @Override
+    public void setChunkedTransfer(boolean chunkedTransfer) {
+        super.setChunkedTransfer(false);
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        super.send(outputStream);
+        if (getRequestMethod() == Method.HEAD) {
+            return;
+        }
+        try {
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            if (mapped != null) {
+                ByteBuffer buffer = mapped.duplicate();
+                buffer.position((int) offset);
+                buffer.limit((int) (offset + length));
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            } else {
+                // transferTo uses sendfile where the platform supports it
+                // for the target, otherwise it still avoids a buffered copy
+                long position = offset;
+                long end = offset + length;
+                while (position < end) {
+                    long transferred = channel.transferTo(position, end - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException("file got truncated while sending");
+                    }
+                    position += transferred;
+                }
+            }
+            outputStream.flush();
+        } catch (IOException ioe) {
+            FileResponse.LOG.log(Level.SEVERE, "Could not send file to the client", ioe);
+            // fewer bytes than announced got sent, the next response on this
+            // connection would be misread, so the session closes it
+            setKeepAlive(false);
+            addHeader("Connection", "close");
+        } finally {
+            closeChannel();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                FileResponse.LOG.log(Level.FINE, "Could not close file channel", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps read only mappings of the most recently served big files. A
+     * mapping is dropped once the file changes its size or modification time.
+     * <p/>
+     * Reading a mapping past the end of a file which got truncated raises
+     * SIGBUS, which takes down the whole process, so only files which can
+     * not be written are mapped. Others, like recordings still being written,
+     * are transferred from their channel, which fails gracefully.
+     */
+    public static class MappedFileCache {
+
+        private static final class Mapping {
+
+            private final MappedByteBuffer buffer;
+
+            private final long lastModified;
+
+            private Mapping(MappedByteBuffer buffer, long lastModified) {
+                this.buffer = buffer;
+                this.lastModified = lastModified;
+            }
+        }
+
+        private final long minFileSize;
+
+        private final long maxFileSize;
+
+        private final Map<String, Mapping> entries;
+
+        /**
+         * @param maxEntries
+         *            the number of mappings to keep
+         * @param minFileSize
+         *            smaller files are cheaper to transfer than to map
+         * @param maxFileSize
+         *            bigger files are never mapped
+         */
+        public MappedFileCache(final int maxEntries, long minFileSize, long maxFileSize) {
+            this.minFileSize = minFileSize;
+            this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+            this.entries = new LinkedHashMap<String, Mapping>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Mapping> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        /**
+         * @return the mapping of the file or <code>null</code> if its size
+         *         is outside of the cached range or the file is writable
+         */
+        public MappedByteBuffer get(File file) throws IOException {
+            long size = file.length();
+            if (size < minFileSize || size > maxFileSize) {
+                return null;
+            }
+            String key = file.getPath();
+            if (file.canWrite()) {
+                // it may shrink underneath the mapping
+                synchronized (entries) {
+                    entries.remove(key);
+                }
+                return null;
+            }
+            long lastModified = file.lastModified();
+            synchronized (entries) {
+                Mapping entry = entries.get(key);
+                if (entry != null && entry.buffer.capacity() == size && entry.lastModified == lastModified) {
+                    return entry.buffer;
+                }
+            }
+
+            MappedByteBuffer buffer;
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                // the mapping stays valid after closing the channel
+                channel.close();
+            }
+            synchronized (entries) {
+                entries.put(key, new Mapping(buffer, lastModified));
+            }
+            return buffer;
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+    }
+}
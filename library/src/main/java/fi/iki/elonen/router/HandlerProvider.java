@@ -0,0 +1,186 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.lang.reflect.Constructor;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.router.RouterNanoHTTPD.HandlerScope;
+import fi.iki.elonen.router.RouterNanoHTTPD.Lifecycle;
+
+/**
+ * Creates the instances of a handler that was registered by class, honouring
+ * the {@link Lifecycle} declared on the handler. The constructor is looked up
+ * once and instances are created lazily on the first request.
+ */
+abstract class HandlerProvider {
+
+    private final Constructor<?> constructor;
+
+    private HandlerProvider(Constructor<?> constructor) {
+        this.constructor = constructor;
+    }
+
+    static HandlerProvider forClass(Class<?> handler) {
+        Constructor<?> constructor;
+        try {
+            constructor = handler.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            // report it on the request, like instantiating it would have
+            constructor = null;
+        }
+
+        Lifecycle lifecycle = handler.getAnnotation(Lifecycle.class);
+        HandlerScope scope = lifecycle != null ? lifecycle.value() : HandlerScope.SINGLETON;
+        switch (scope) {
+            case THREAD_LOCAL:
+                return new ThreadLocalProvider(constructor);
+            case POOLED:
+                return new PooledProvider(constructor, lifecycle.poolSize());
+            case PER_REQUEST:
+                return new PerRequestProvider(constructor);
+            default:
+                return new SingletonProvider(constructor);
+        }
+    }
+
+    /**
+     * @return a handler instance to serve the current request with.
+     */
+    abstract Object acquire() throws Exception;
+
+    /**
+     * Hands back an instance obtained by {@link #acquire()} once the request
+     * has been processed.
+     */
+    void release(Object handler) {
+    }
+
+    protected Object newInstance() throws Exception {
+        if (constructor == null) {
+            throw new InstantiationException("no default constructor");
+        }
+        return constructor.newInstance();
+    }
+
+    private static final class SingletonProvider extends HandlerProvider {
+
+        private volatile Object instance;
+
+        private SingletonProvider(Constructor<?> constructor) {
+            super(constructor);
+        }
+
+        @Override
+        Object acquire() throws Exception {
+            Object result = instance;
+            if (result == null) {
+                synchronized (this) {
+                    result = instance;
+                    if (result == null) {
+                        instance = result = newInstance();
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class ThreadLocalProvider extends HandlerProvider {
+
+        private final ThreadLocal<Object> instances = new ThreadLocal<Object>();
+
+        private ThreadLocalProvider(Constructor<?> constructor) {
+            super(constructor);
+        }
+
+        @Override
+        Object acquire() throws Exception {
+            Object result = instances.get();
+            if (result == null) {
+                result = newInstance();
+                instances.set(result);
+            }
+            return result;
+        }
+    }
+
+    private static final class PooledProvider extends HandlerProvider {
+
+        private final Queue<Object> pool = new ConcurrentLinkedQueue<Object>();
+
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private final int poolSize;
+
+        private PooledProvider(Constructor<?> constructor, int poolSize) {
+            super(constructor);
+            this.poolSize = poolSize;
+        }
+
+        @Override
+        Object acquire() throws Exception {
+            Object result = pool.poll();
+            if (result == null) {
+                return newInstance();
+            }
+            pooled.decrementAndGet();
+            return result;
+        }
+
+        @Override
+        void release(Object handler) {
+            if (pooled.incrementAndGet() <= poolSize) {
+                pool.offer(handler);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class PerRequestProvider extends HandlerProvider {
+
+        private PerRequestProvider(Constructor<?> constructor) {
+            super(constructor);
+        }
+
+        @Override
+        Object acquire() throws Exception {
+            return newInstance();
+        }
+    }
+}
@@ -0,0 +1,614 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ * <p/>
+ * Header names and values are handled as octet strings, every char of a
+ * string holds one octet (ISO-8859-1), so table sizes are accounted exactly
+ * as the peer does.
+ */
+final class Hpack {
+
+    /**
+     * A header block which can not be decoded, a connection error of type
+     * COMPRESSION_ERROR.
+     */
+    static final class HpackException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        HpackException(String message) {
+            super(message);
+        }
+    }
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""}
+    };
+
+    // first static index of a name and static index of a name and value
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\u0000' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Entries of the dynamic table, newest first.
+     */
+    private static final class DynamicTable {
+
+        private String[] names = new String[16];
+
+        private String[] values = new String[16];
+
+        // index of the newest entry in the ring
+        private int head;
+
+        private int count;
+
+        private int size;
+
+        private int maxSize;
+
+        private DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private static int sizeOf(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+
+        /**
+         * @param index
+         *            0 for the newest entry
+         */
+        private String name(int index) {
+            return names[(head + index) % names.length];
+        }
+
+        private String value(int index) {
+            return values[(head + index) % values.length];
+        }
+
+        private void add(String name, String value) {
+            int entrySize = sizeOf(name, value);
+            if (entrySize > maxSize) {
+                // clears the table, as required
+                evict(0);
+                return;
+            }
+            evict(maxSize - entrySize);
+            if (count == names.length) {
+                grow();
+            }
+            head = (head - 1 + names.length) % names.length;
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entrySize;
+        }
+
+        private void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize) {
+            while (size > targetSize && count > 0) {
+                int oldest = (head + count - 1) % names.length;
+                size -= sizeOf(names[oldest], values[oldest]);
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+
+        private void grow() {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[values.length * 2];
+            for (int i = 0; i < count; i++) {
+                newNames[i] = name(i);
+                newValues[i] = value(i);
+            }
+            names = newNames;
+            values = newValues;
+            head = 0;
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they were
+     * received.
+     */
+    static final class Decoder {
+
+        private final DynamicTable table;
+
+        // the table size we announced, the peer may only choose less
+        private final int maxTableSize;
+
+        Decoder(int maxTableSize) {
+            this.table = new DynamicTable(maxTableSize);
+            this.maxTableSize = maxTableSize;
+        }
+
+        /**
+         * Decodes a whole block, even a too large header list has to be
+         * decoded to keep the dynamic table in sync.
+         * 
+         * @return name and value pairs as octet strings
+         * @throws HpackException
+         *             if the block is malformed
+         */
+        List<String[]> decode(byte[] block, int offset, int length) throws HpackException {
+            List<String[]> headers = new ArrayList<String[]>();
+            int[] position = {offset};
+            int end = offset + length;
+            while (position[0] < end) {
+                int b = block[position[0]] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    int index = readInt(block, position, end, 7);
+                    name = nameAt(index);
+                    value = valueAt(index);
+                } else if ((b & 0x40) != 0) {
+                    int index = readInt(block, position, end, 6);
+                    name = (index == 0) ? readString(block, position, end) : nameAt(index);
+                    value = readString(block, position, end);
+                    table.add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    if (!headers.isEmpty()) {
+                        throw new HpackException("table size update after a header field");
+                    }
+                    int size = readInt(block, position, end, 5);
+                    if (size > maxTableSize) {
+                        throw new HpackException("table size update above the limit: " + size);
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // without indexing or never indexed
+                    int index = readInt(block, position, end, 4);
+                    name = (index == 0) ? readString(block, position, end) : nameAt(index);
+                    value = readString(block, position, end);
+                }
+                headers.add(new String[]{name, value});
+            }
+            return headers;
+        }
+
+        private String nameAt(int index) throws HpackException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (index <= 0 || dynamicIndex >= table.count) {
+                throw new HpackException("invalid table index: " + index);
+            }
+            return table.name(dynamicIndex);
+        }
+
+        private String valueAt(int index) throws HpackException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (index <= 0 || dynamicIndex >= table.count) {
+                throw new HpackException("invalid table index: " + index);
+            }
+            return table.value(dynamicIndex);
+        }
+
+        private static int readInt(byte[] block, int[] position, int end, int prefixBits) throws HpackException {
+            int mask = (1 << prefixBits) - 1;
+            int value = block[position[0]++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            int shift = 0;
+            while (true) {
+                if (position[0] >= end) {
+                    throw new HpackException("truncated integer");
+                }
+                int b = block[position[0]++] & 0xff;
+                if (shift > 21 && (b & 0x7f) > 7) {
+                    throw new HpackException("integer overflow");
+                }
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private static String readString(byte[] block, int[] position, int end) throws HpackException {
+            if (position[0] >= end) {
+                throw new HpackException("truncated string");
+            }
+            boolean huffman = (block[position[0]] & 0x80) != 0;
+            int length = readInt(block, position, end, 7);
+            if (length > end - position[0]) {
+                throw new HpackException("truncated string");
+            }
+            int start = position[0];
+            position[0] += length;
+            if (huffman) {
+                return Huffman.decode(block, start, length);
+            }
+            return octets(block, start, length);
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection, blocks have to be sent in
+     * the order they were encoded.
+     */
+    static final class Encoder {
+
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+
+        // smallest and last size the peer allowed since the last block
+        private int minPendingSize = -1;
+
+        private int pendingSize = -1;
+
+        /**
+         * Applies SETTINGS_HEADER_TABLE_SIZE of the peer, the table never
+         * grows beyond the default.
+         */
+        void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            minPendingSize = (minPendingSize < 0) ? size : Math.min(minPendingSize, size);
+            pendingSize = size;
+        }
+
+        /**
+         * @param headers
+         *            name and value pairs as octet strings, names in lower
+         *            case
+         */
+        void encode(ByteArrayOutputStream out, List<String[]> headers) {
+            if (pendingSize >= 0) {
+                if (minPendingSize < pendingSize) {
+                    writeInt(out, 0x20, 5, minPendingSize);
+                    table.setMaxSize(minPendingSize);
+                }
+                writeInt(out, 0x20, 5, pendingSize);
+                table.setMaxSize(pendingSize);
+                minPendingSize = -1;
+                pendingSize = -1;
+            }
+            for (String[] header : headers) {
+                encodeHeader(out, header[0], header[1]);
+            }
+        }
+
+        private void encodeHeader(ByteArrayOutputStream out, String name, String value) {
+            Integer staticIndex = STATIC_FIELDS.get(name + '\u0000' + value);
+            if (staticIndex != null) {
+                writeInt(out, 0x80, 7, staticIndex);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 0; i < table.count; i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                    }
+                }
+            }
+            Integer staticNameIndex = STATIC_NAMES.get(name);
+            if (staticNameIndex != null) {
+                nameIndex = staticNameIndex;
+            }
+
+            if (isSensitive(name)) {
+                writeInt(out, 0x10, 4, nameIndex);
+            } else if (isVolatile(name) || DynamicTable.sizeOf(name, value) > table.maxSize) {
+                writeInt(out, 0x00, 4, nameIndex);
+            } else {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        // values which change with nearly every response only churn the table
+        private static boolean isVolatile(String name) {
+            return name.equals("content-length") || name.equals("date") || name.equals("etag") || name.equals("last-modified") || name.equals("content-range");
+        }
+
+        private static boolean isSensitive(String name) {
+            return name.equals("set-cookie") || name.equals("authorization");
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int pattern, int prefixBits, int value) {
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                out.write(pattern | value);
+                return;
+            }
+            out.write(pattern | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            int huffmanLength = Huffman.encodedLength(value);
+            if (huffmanLength < value.length()) {
+                writeInt(out, 0x80, 7, huffmanLength);
+                Huffman.encode(out, value);
+            } else {
+                writeInt(out, 0x00, 7, value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    out.write(value.charAt(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the size of a header list as SETTINGS_MAX_HEADER_LIST_SIZE
+     *         counts it
+     */
+    static int headerListSize(List<String[]> headers) {
+        int size = 0;
+        for (String[] header : headers) {
+            size += DynamicTable.sizeOf(header[0], header[1]);
+        }
+        return size;
+    }
+
+    static String octets(byte[] data, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (data[offset + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The Huffman code of RFC 7541 appendix B. It is canonical, codes are
+     * assigned in the order of their length and symbol, so the lengths
+     * suffice to derive the codes.
+     */
+    private static final class Huffman {
+
+        private static final byte[] CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+        };
+
+        private static final int EOS = 256;
+
+        private static final int MAX_LENGTH = 30;
+
+        private static final int[] CODES = new int[CODE_LENGTHS.length];
+
+        // symbols ordered by code, and per code length the first code, the
+        // index of its symbol and the number of codes
+        private static final int[] SYMBOLS = new int[CODE_LENGTHS.length];
+
+        private static final int[] FIRST_CODE = new int[MAX_LENGTH + 1];
+
+        private static final int[] FIRST_INDEX = new int[MAX_LENGTH + 1];
+
+        private static final int[] COUNT = new int[MAX_LENGTH + 1];
+
+        static {
+            int index = 0;
+            int code = 0;
+            for (int length = 1; length <= MAX_LENGTH; length++) {
+                FIRST_CODE[length] = code;
+                FIRST_INDEX[length] = index;
+                for (int symbol = 0; symbol < CODE_LENGTHS.length; symbol++) {
+                    if (CODE_LENGTHS[symbol] == length) {
+                        CODES[symbol] = code++;
+                        SYMBOLS[index++] = symbol;
+                        COUNT[length]++;
+                    }
+                }
+                code <<= 1;
+            }
+        }
+
+        private Huffman() {
+        }
+
+        static int encodedLength(String value) {
+            long bits = 0;
+            for (int i = 0; i < value.length(); i++) {
+                bits += CODE_LENGTHS[value.charAt(i) & 0xff];
+            }
+            return (int) ((bits + 7) >> 3);
+        }
+
+        static void encode(ByteArrayOutputStream out, String value) {
+            long current = 0;
+            int bits = 0;
+            for (int i = 0; i < value.length(); i++) {
+                int symbol = value.charAt(i) & 0xff;
+                current = (current << CODE_LENGTHS[symbol]) | CODES[symbol];
+                bits += CODE_LENGTHS[symbol];
+                while (bits >= 8) {
+                    bits -= 8;
+                    out.write((int) (current >> bits));
+                }
+            }
+            if (bits > 0) {
+                // padded with the most significant bits of EOS, all ones
+                out.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+            }
+        }
+
+        static String decode(byte[] data, int offset, int length) throws HpackException {
+            StringBuilder builder = new StringBuilder(length * 8 / 5);
+            int code = 0;
+            int codeLength = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int b = data[i] & 0xff;
+                for (int bit = 7; bit >= 0; bit--) {
+                    code = (code << 1) | ((b >> bit) & 1);
+                    codeLength++;
+                    int rank = code - FIRST_CODE[codeLength];
+                    if (rank >= 0 && rank < COUNT[codeLength]) {
+                        int symbol = SYMBOLS[FIRST_INDEX[codeLength] + rank];
+                        if (symbol == EOS) {
+                            throw new HpackException("EOS in huffman string");
+                        }
+                        builder.append((char) symbol);
+                        code = 0;
+                        codeLength = 0;
+                    } else if (codeLength == MAX_LENGTH) {
+                        throw new HpackException("invalid huffman code");
+                    }
+                }
+            }
+            // at most 7 bits of padding, which have to be the prefix of EOS
+            if (codeLength > 7 || code != (1 << codeLength) - 1) {
+                throw new HpackException("invalid huffman padding");
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,1621 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * A cleartext HTTP/2 connection (RFC 7540) of {@link RouterNanoHTTPD}.
+ * <p/>
+ * The connection is read by the thread which accepted it, every stream is
+ * then served on a worker: its request is handed to the unchanged NanoHTTPD
+ * session code as an HTTP/1.1 request, just like the {@link SelectorEngine}
+ * does, and the HTTP/1.1 response is sent back as HEADERS and DATA frames.
+ * So handlers, cookies, form bodies and gzip work the same on both
+ * protocols.
+ * <p/>
+ * Request bodies are buffered in memory and limited to
+ * {@link SelectorEngine#MAX_REQUEST_SIZE}. The window of the connection allows
+ * {@link #MAX_BUFFERED_BODY_SIZE} bytes of bodies which the workers did not
+ * consume yet and is only returned as they do, a stream which would fill it
+ * gets refused so the others can complete. Server push and priorities are not supported, the
+ * streams share the connection in the order their workers write.
+ * <p/>
+ * A connection uses at most half of the workers, its other streams wait for
+ * one of its own to finish. A response which can not be sent for
+ * {@link #SEND_WINDOW_TIMEOUT} milliseconds because the client keeps the
+ * window closed gets reset, so it does not hold its worker forever.
+ */
+final class Http2Connection {
+
+    /**
+     * logger to log to.
+     */
+    private static final Logger LOG = Logger.getLogger(Http2Connection.class.getName());
+
+    static final byte[] PREFACE = ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+
+    static final int MAX_CONCURRENT_STREAMS = 32;
+
+    /**
+     * Bytes of request bodies a connection holds until the workers consumed
+     * them, two requests of the maximum size.
+     */
+    static final int MAX_BUFFERED_BODY_SIZE = 2 * SelectorEngine.MAX_REQUEST_SIZE;
+
+    /**
+     * Milliseconds a response waits for the client to open the flow control
+     * window, before its stream gets reset.
+     */
+    static final int SEND_WINDOW_TIMEOUT = 30000;
+
+    // frame types
+    private static final int DATA = 0x0;
+
+    private static final int HEADERS = 0x1;
+
+    private static final int PRIORITY = 0x2;
+
+    private static final int RST_STREAM = 0x3;
+
+    private static final int SETTINGS = 0x4;
+
+    private static final int PUSH_PROMISE = 0x5;
+
+    private static final int PING = 0x6;
+
+    private static final int GOAWAY = 0x7;
+
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int CONTINUATION = 0x9;
+
+    // frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+
+    private static final int FLAG_ACK = 0x1;
+
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final int FLAG_PADDED = 0x8;
+
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // error codes
+    private static final int NO_ERROR = 0x0;
+
+    private static final int PROTOCOL_ERROR = 0x1;
+
+    private static final int INTERNAL_ERROR = 0x2;
+
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+
+    private static final int STREAM_CLOSED = 0x5;
+
+    private static final int FRAME_SIZE_ERROR = 0x6;
+
+    private static final int REFUSED_STREAM = 0x7;
+
+    private static final int CANCEL = 0x8;
+
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Same limit as the blocking core uses for the request line and headers.
+     */
+    private static final int MAX_HEADER_LIST_SIZE = SelectorEngine.MAX_HEADER_SIZE;
+
+    /**
+     * The peer violated the protocol, the connection gets closed with a
+     * GOAWAY frame.
+     */
+    private static final class ConnectionException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int errorCode;
+
+        ConnectionException(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    private final class Stream {
+
+        private final int id;
+
+        private final boolean head;
+
+        // request line and headers, without the terminating empty line
+        private final String requestHead;
+
+        // guarded by the connection
+        private long sendWindow;
+
+        private boolean reset;
+
+        // body bytes counted against the connection until they got consumed
+        private long bufferedBodySize;
+
+        // reader thread only, the body is dropped once the request is built
+        private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private long receiveWindow = DEFAULT_WINDOW_SIZE;
+
+        private boolean remoteClosed;
+
+        private byte[] request;
+
+        private Stream(int id, String method, String requestHead) {
+            this.id = id;
+            this.head = "HEAD".equals(method);
+            this.requestHead = requestHead;
+        }
+
+        private void buildRequest() {
+            byte[] data = body.toByteArray();
+            body = null;
+            String head = requestHead + "content-length: " + data.length + "\r\n\r\n";
+            request = Arrays.copyOf(ascii(head), head.length() + data.length);
+            System.arraycopy(data, 0, request, head.length(), data.length);
+        }
+    }
+
+    private final RouterNanoHTTPD server;
+
+    private final ExecutorService workers;
+
+    private final int maxWorkers;
+
+    private final DataInputStream in;
+
+    private final OutputStream out;
+
+    private final InetAddress remoteAddress;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    private final Object writeLock = new Object();
+
+    // guarded by writeLock
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    private final byte[] frameHeader = new byte[9];
+
+    // guarded by this
+    private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+
+    private long initialSendWindow = DEFAULT_WINDOW_SIZE;
+
+    private int maxSendFrameSize = DEFAULT_FRAME_SIZE;
+
+    private long receiveWindow = DEFAULT_WINDOW_SIZE;
+
+    private long bufferedBodySize;
+
+    private int runningStreams;
+
+    private final Queue<Stream> waitingStreams = new ArrayDeque<Stream>();
+
+    // reader thread only
+    private int lastStreamId;
+
+    private boolean goingAway;
+
+    private ByteArrayOutputStream headerBlock;
+
+    private int headerBlockStream;
+
+    private boolean headerBlockEndStream;
+
+    Http2Connection(RouterNanoHTTPD server, ExecutorService workers, InputStream in, OutputStream out, InetAddress remoteAddress) {
+        this.server = server;
+        this.workers = workers;
+        int poolSize = (workers instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) workers).getMaximumPoolSize() : 2;
+        this.maxWorkers = Math.max(1, poolSize / 2);
+        this.in = new DataInputStream(new BufferedInputStream(in, DEFAULT_FRAME_SIZE));
+        this.out = new BufferedOutputStream(out, DEFAULT_FRAME_SIZE + 9);
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Serves the connection until it is closed or idle.
+     * 
+     * @param upgradeRequest
+     *            the headers of the request which upgraded the connection,
+     *            it becomes stream 1; null if the client spoke HTTP/2 right
+     *            away and its preface already got read
+     */
+    void serve(List<String[]> upgradeRequest) {
+        try {
+            writeSettings();
+            // the connection window covers all buffered bodies
+            updateReceiveWindow();
+            if (upgradeRequest != null) {
+                lastStreamId = 1;
+                Stream stream = open(1, upgradeRequest);
+                if (stream == null) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "invalid upgrade request");
+                }
+                stream.remoteClosed = true;
+                dispatch(stream);
+                byte[] preface = new byte[PREFACE.length];
+                in.readFully(preface);
+                if (!Arrays.equals(preface, PREFACE)) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "invalid connection preface");
+                }
+            }
+            readFrames();
+        } catch (ConnectionException e) {
+            LOG.log(Level.FINE, "HTTP/2 connection error", e);
+            try {
+                writeGoAway(e.errorCode);
+            } catch (IOException ignored) {
+                // closed anyway
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "HTTP/2 connection closed", e);
+        } finally {
+            close();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        byte[] header = new byte[9];
+        boolean settingsReceived = false;
+        while (true) {
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException e) {
+                if (activeStreams() == 0) {
+                    writeGoAway(NO_ERROR);
+                    return;
+                }
+                continue;
+            }
+            if (first < 0 || (goingAway && activeStreams() == 0)) {
+                return;
+            }
+            header[0] = (byte) first;
+            in.readFully(header, 1, 8);
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = readInt(header, 5) & 0x7fffffff;
+            if (length > DEFAULT_FRAME_SIZE) {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "frame too large: " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            if (!settingsReceived && type != SETTINGS) {
+                throw new ConnectionException(PROTOCOL_ERROR, "preface not followed by SETTINGS");
+            }
+            settingsReceived = true;
+            if (headerBlock != null && (type != CONTINUATION || streamId != headerBlockStream)) {
+                throw new ConnectionException(PROTOCOL_ERROR, "header block interrupted");
+            }
+            switch (type) {
+                case DATA:
+                    onData(flags, streamId, payload);
+                    break;
+                case HEADERS:
+                    onHeaders(flags, streamId, payload);
+                    break;
+                case PRIORITY:
+                    if (streamId == 0) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                    }
+                    if (length != 5) {
+                        writeReset(streamId, FRAME_SIZE_ERROR);
+                    }
+                    break;
+                case RST_STREAM:
+                    onReset(streamId, payload);
+                    break;
+                case SETTINGS:
+                    onSettings(flags, streamId, payload);
+                    break;
+                case PUSH_PROMISE:
+                    throw new ConnectionException(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+                case PING:
+                    if (streamId != 0 || length != 8) {
+                        throw new ConnectionException(length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "invalid PING");
+                    }
+                    if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, length);
+                    }
+                    break;
+                case GOAWAY:
+                    if (streamId != 0) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "GOAWAY on a stream");
+                    }
+                    // finish the open streams, then close
+                    goingAway = true;
+                    if (activeStreams() == 0) {
+                        return;
+                    }
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, payload);
+                    break;
+                case CONTINUATION:
+                    onContinuation(flags, streamId, payload);
+                    break;
+                default:
+                    // unknown frame types are ignored
+                    break;
+            }
+        }
+    }
+
+    private void onData(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int offset = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= padding(payload);
+            offset = 1;
+        }
+        // the window is returned once the body got consumed, the padding
+        // right away
+        synchronized (this) {
+            if (payload.length > receiveWindow) {
+                throw new ConnectionException(FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+            }
+            receiveWindow -= payload.length;
+        }
+        Stream stream = getStream(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionException(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            writeReset(streamId, STREAM_CLOSED);
+            updateReceiveWindow();
+            return;
+        }
+        if (payload.length > stream.receiveWindow) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            releaseBody(stream);
+            return;
+        }
+        stream.receiveWindow -= payload.length;
+        int length = end - offset;
+        if (stream.body.size() + length > SelectorEngine.MAX_REQUEST_SIZE) {
+            List<String[]> headers = new ArrayList<String[]>();
+            headers.add(new String[]{":status", "413"});
+            headers.add(new String[]{"content-length", "0"});
+            writeHeaders(streamId, headers, true);
+            writeReset(streamId, NO_ERROR);
+            removeStream(stream);
+            releaseBody(stream);
+            return;
+        }
+        boolean refused;
+        synchronized (this) {
+            refused = bufferedBodySize + length >= MAX_BUFFERED_BODY_SIZE;
+            if (!refused) {
+                bufferedBodySize += length;
+                stream.bufferedBodySize += length;
+            }
+        }
+        if (refused) {
+            // the other bodies are not consumed yet, the client may retry
+            resetStream(streamId, REFUSED_STREAM);
+            releaseBody(stream);
+            return;
+        }
+        stream.body.write(payload, offset, length);
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        } else if (stream.receiveWindow <= DEFAULT_WINDOW_SIZE / 2) {
+            // the body limit bounds a single stream
+            writeWindowUpdate(streamId, (int) (DEFAULT_WINDOW_SIZE - stream.receiveWindow));
+            stream.receiveWindow = DEFAULT_WINDOW_SIZE;
+        }
+        updateReceiveWindow();
+    }
+
+    /**
+     * Returns the window of the connection to the client as far as the
+     * bodies got consumed or dropped. Called by the reader and by the workers
+     * which consumed a body.
+     */
+    private void updateReceiveWindow() throws IOException {
+        int increment;
+        synchronized (this) {
+            increment = (int) (MAX_BUFFERED_BODY_SIZE - bufferedBodySize - receiveWindow);
+            if (increment <= 0 || (increment < DEFAULT_WINDOW_SIZE / 4 && receiveWindow >= DEFAULT_WINDOW_SIZE / 4)) {
+                return;
+            }
+            receiveWindow += increment;
+        }
+        writeWindowUpdate(0, increment);
+    }
+
+    /**
+     * The body of a stream got consumed or dropped, it no longer counts
+     * against the connection. Releasing a body twice does not matter.
+     */
+    private void releaseBody(Stream stream) {
+        synchronized (this) {
+            bufferedBodySize -= stream.bufferedBodySize;
+            stream.bufferedBodySize = 0;
+        }
+        try {
+            updateReceiveWindow();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int offset = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= padding(payload);
+            offset = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset > end) {
+            throw new ConnectionException(PROTOCOL_ERROR, "invalid HEADERS");
+        }
+        headerBlock = new ByteArrayOutputStream(end - offset);
+        headerBlock.write(payload, offset, end - offset);
+        headerBlockStream = streamId;
+        headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int flags, int streamId, byte[] payload) throws IOException {
+        if (headerBlock == null) {
+            throw new ConnectionException(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        if (headerBlock.size() + payload.length > 4 * MAX_HEADER_LIST_SIZE) {
+            throw new ConnectionException(PROTOCOL_ERROR, "header block too large");
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        byte[] block = headerBlock.toByteArray();
+        int streamId = headerBlockStream;
+        boolean endStream = headerBlockEndStream;
+        headerBlock = null;
+
+        List<String[]> headers;
+        try {
+            headers = decoder.decode(block, 0, block.length);
+        } catch (Hpack.HpackException e) {
+            throw new ConnectionException(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        if (streamId <= lastStreamId) {
+            Stream stream = getStream(streamId);
+            if (stream == null || stream.remoteClosed) {
+                writeReset(streamId, STREAM_CLOSED);
+            } else if (!endStream) {
+                writeReset(streamId, PROTOCOL_ERROR);
+                removeStream(stream);
+            } else {
+                // trailers are dropped, HTTP/1.1 requests do not have them
+                stream.remoteClosed = true;
+                dispatch(stream);
+            }
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "even stream id " + streamId);
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            return;
+        }
+        if (activeStreams() >= MAX_CONCURRENT_STREAMS) {
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        if (Hpack.headerListSize(headers) > MAX_HEADER_LIST_SIZE) {
+            List<String[]> response = new ArrayList<String[]>();
+            response.add(new String[]{":status", "431"});
+            response.add(new String[]{"content-length", "0"});
+            writeHeaders(streamId, response, true);
+            if (!endStream) {
+                writeReset(streamId, NO_ERROR);
+            }
+            return;
+        }
+        Stream stream = open(streamId, headers);
+        if (stream == null) {
+            writeReset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (endStream) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        }
+    }
+
+    private void onReset(int streamId, byte[] payload) throws IOException {
+        if (streamId == 0 || payload.length != 4) {
+            throw new ConnectionException(streamId == 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "invalid RST_STREAM");
+        }
+        Stream stream;
+        synchronized (this) {
+            stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.reset = true;
+                notifyAll();
+            }
+        }
+        if (stream != null && !stream.remoteClosed) {
+            // a dispatched body is released once its worker is done
+            releaseBody(stream);
+        }
+    }
+
+    private void onSettings(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.length != 0) {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        applySettings(payload);
+        writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    /**
+     * Applies the settings of the peer, from a SETTINGS frame or the
+     * HTTP2-Settings header of an upgrade.
+     */
+    void applySettings(byte[] payload) throws IOException {
+        if (payload.length % 6 != 0) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "invalid SETTINGS length");
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            long value = readInt(payload, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw new ConnectionException(FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        long delta = value - initialSendWindow;
+                        initialSendWindow = value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                                throw new ConnectionException(FLOW_CONTROL_ERROR, "window overflow");
+                            }
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    // larger frames would not gain much, the buffers stay small
+                    break;
+                default:
+                    // the others do not matter for a server, unknown ones
+                    // are ignored
+                    break;
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new ConnectionException(PROTOCOL_ERROR, "zero window increment");
+            }
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW_SIZE) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "window overflow");
+                }
+                notifyAll();
+                return;
+            }
+            Stream stream = streams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.sendWindow += increment;
+            notifyAll();
+            if (stream.sendWindow <= MAX_WINDOW_SIZE) {
+                return;
+            }
+        }
+        resetStream(streamId, FLOW_CONTROL_ERROR);
+    }
+
+    /**
+     * Turns the headers of a request into an HTTP/1.1 request head and
+     * registers the stream.
+     * 
+     * @return the stream or null if the request is malformed
+     */
+    private Stream open(int streamId, List<String[]> headers) {
+        String method = null;
+        String path = null;
+        String scheme = null;
+        String authority = null;
+        StringBuilder fields = new StringBuilder();
+        StringBuilder cookies = null;
+        boolean regularSeen = false;
+        for (String[] header : headers) {
+            String name = header[0];
+            String value = header[1];
+            if (!isValidValue(value)) {
+                return null;
+            }
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    return null;
+                }
+                if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else if (name.equals(":scheme") && scheme == null) {
+                    scheme = value;
+                } else if (name.equals(":authority") && authority == null) {
+                    authority = value;
+                } else {
+                    return null;
+                }
+                continue;
+            }
+            regularSeen = true;
+            if (!isValidName(name) || name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection") || name.equals("transfer-encoding")
+                    || name.equals("upgrade") || (name.equals("te") && !value.equals("trailers"))) {
+                return null;
+            }
+            if (name.equals("cookie")) {
+                // may be split into several fields, NanoHTTPD expects one
+                cookies = (cookies == null) ? new StringBuilder(value) : cookies.append("; ").append(value);
+            } else if (!name.equals("content-length") && !name.equals("te") && !(name.equals("host") && authority != null)) {
+                fields.append(name).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (method == null || scheme == null || path == null || !isValidToken(method) || path.length() == 0 || path.indexOf(' ') >= 0
+                || (path.charAt(0) != '/' && !(path.equals("*") && method.equals("OPTIONS")))) {
+            return null;
+        }
+        StringBuilder head = new StringBuilder(64 + fields.length());
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (authority != null) {
+            head.append("host: ").append(authority).append("\r\n");
+        }
+        head.append(fields);
+        if (cookies != null) {
+            head.append("cookie: ").append(cookies).append("\r\n");
+        }
+        Stream stream = new Stream(streamId, method, head.toString());
+        synchronized (this) {
+            stream.sendWindow = initialSendWindow;
+            streams.put(streamId, stream);
+        }
+        return stream;
+    }
+
+    private void dispatch(Stream stream) {
+        stream.buildRequest();
+        synchronized (this) {
+            if (runningStreams >= maxWorkers) {
+                // leaves the other workers to the other connections
+                waitingStreams.add(stream);
+                return;
+            }
+            runningStreams++;
+        }
+        execute(stream);
+    }
+
+    /**
+     * Serves a stream on a worker, it takes over a running slot of the
+     * connection.
+     */
+    private void execute(final Stream stream) {
+        try {
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    serveStream(stream);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            resetStreamQuietly(stream.id, REFUSED_STREAM);
+            releaseBody(stream);
+            executeNext();
+        }
+    }
+
+    /**
+     * Hands the running slot of a finished stream to the next waiting one.
+     */
+    private void executeNext() {
+        while (true) {
+            Stream next;
+            synchronized (this) {
+                next = waitingStreams.poll();
+                if (next == null) {
+                    runningStreams--;
+                    return;
+                }
+                if (next.reset) {
+                    next.request = null;
+                }
+            }
+            if (next.request != null) {
+                execute(next);
+                return;
+            }
+            releaseBody(next);
+        }
+    }
+
+    /**
+     * Serves a stream on a worker.
+     */
+    private void serveStream(Stream stream) {
+        ResponseWriter response = new ResponseWriter(stream);
+        byte[] request = stream.request;
+        stream.request = null;
+        try {
+            server.createSession(new ByteArrayInputStream(request), response, remoteAddress).execute();
+        } catch (IOException e) {
+            // the response already got written, when the handler asked to
+            // close the connection
+            LOG.log(Level.FINE, "HTTP/2 stream " + stream.id + " ended", e);
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Could not serve HTTP/2 stream " + stream.id, e);
+        } finally {
+            response.finish();
+            removeStream(stream);
+            releaseBody(stream);
+            executeNext();
+        }
+    }
+
+    /**
+     * Receives the HTTP/1.1 response NanoHTTPD writes and sends it as
+     * HEADERS and DATA frames.
+     */
+    private final class ResponseWriter extends OutputStream {
+
+        private static final int NO_BODY = 0;
+
+        private static final int FIXED_LENGTH = 1;
+
+        private static final int CHUNKED = 2;
+
+        private static final int UNTIL_CLOSE = 3;
+
+        // chunked body states
+        private static final int CHUNK_SIZE = 0;
+
+        private static final int CHUNK_EXTENSION = 1;
+
+        private static final int CHUNK_DATA = 2;
+
+        private static final int CHUNK_DATA_END = 3;
+
+        private static final int CHUNK_TRAILER = 4;
+
+        private final Stream stream;
+
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+
+        private byte[] buffer = BufferPool.shared().acquire(DEFAULT_FRAME_SIZE);
+
+        private int buffered;
+
+        private boolean headersSent;
+
+        private boolean ended;
+
+        private int bodyMode;
+
+        private long remaining;
+
+        private int chunkState;
+
+        private boolean trailerLineEmpty = true;
+
+        private ResponseWriter(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0 && !ended) {
+                if (!headersSent) {
+                    int b0 = b[off++] & 0xff;
+                    len--;
+                    head.write(b0);
+                    if (b0 == '\n' && endsWithEmptyLine()) {
+                        sendHeaders();
+                    }
+                    continue;
+                }
+                int consumed;
+                switch (bodyMode) {
+                    case FIXED_LENGTH:
+                        consumed = (int) Math.min(len, remaining);
+                        data(b, off, consumed);
+                        remaining -= consumed;
+                        if (remaining == 0) {
+                            end();
+                        }
+                        break;
+                    case CHUNKED:
+                        consumed = chunked(b, off, len);
+                        break;
+                    case UNTIL_CLOSE:
+                        consumed = len;
+                        data(b, off, len);
+                        break;
+                    default:
+                        // HEAD requests and responses which have no body
+                        consumed = len;
+                        break;
+                }
+                off += consumed;
+                len -= consumed;
+            }
+        }
+
+        /**
+         * Sends what is buffered, so streamed responses are not held back.
+         */
+        @Override
+        public void flush() {
+            if (buffered > 0 && !ended) {
+                sendData(stream, buffer, 0, buffered, false);
+                buffered = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            finish();
+        }
+
+        /**
+         * Ends the stream, resets it if no response or only part of the
+         * body got written.
+         */
+        void finish() {
+            if (!headersSent) {
+                headersSent = true;
+                ended = true;
+                resetStreamQuietly(stream.id, INTERNAL_ERROR);
+            } else if (!ended && (bodyMode == FIXED_LENGTH || bodyMode == CHUNKED)) {
+                // the body broke off, the client must not take it as complete
+                ended = true;
+                resetStreamQuietly(stream.id, INTERNAL_ERROR);
+            } else if (!ended) {
+                end();
+            }
+            // nothing is written once the stream ended
+            BufferPool.shared().release(buffer);
+            buffer = null;
+        }
+
+        private boolean endsWithEmptyLine() {
+            int size = head.size();
+            if (size >= 2) {
+                byte[] data = head.toByteArray();
+                return data[size - 2] == '\n' || (size >= 4 && data[size - 2] == '\r' && data[size - 3] == '\n');
+            }
+            return false;
+        }
+
+        private void sendHeaders() {
+            headersSent = true;
+            byte[] data = head.toByteArray();
+            String[] lines = Hpack.octets(data, 0, data.length).split("\r?\n");
+            String[] statusLine = lines[0].split(" ");
+            String status = (statusLine.length > 1) ? statusLine[1] : "500";
+
+            List<String[]> headers = new ArrayList<String[]>();
+            headers.add(new String[]{":status", status});
+            boolean chunked = false;
+            long contentLength = -1;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("transfer-encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                    continue;
+                }
+                if (name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection") || name.equals("upgrade")) {
+                    continue;
+                }
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+                headers.add(new String[]{name, value});
+            }
+
+            if (stream.head || status.startsWith("1") || status.equals("204") || status.equals("304")) {
+                bodyMode = NO_BODY;
+            } else if (chunked) {
+                bodyMode = CHUNKED;
+            } else if (contentLength >= 0) {
+                bodyMode = FIXED_LENGTH;
+                remaining = contentLength;
+            } else {
+                bodyMode = UNTIL_CLOSE;
+            }
+            boolean endStream = bodyMode == NO_BODY || (bodyMode == FIXED_LENGTH && remaining == 0);
+            try {
+                writeHeaders(stream.id, headers, endStream);
+            } catch (IOException e) {
+                failed(e);
+            }
+            if (endStream) {
+                ended = true;
+            }
+        }
+
+        /**
+         * @return the number of bytes consumed
+         */
+        private int chunked(byte[] b, int off, int len) {
+            if (chunkState == CHUNK_DATA) {
+                int consumed = (int) Math.min(len, remaining);
+                data(b, off, consumed);
+                remaining -= consumed;
+                if (remaining == 0) {
+                    chunkState = CHUNK_DATA_END;
+                }
+                return consumed;
+            }
+            int c = b[off] & 0xff;
+            switch (chunkState) {
+                case CHUNK_SIZE:
+                case CHUNK_EXTENSION:
+                    if (c == '\n') {
+                        chunkState = (remaining == 0) ? CHUNK_TRAILER : CHUNK_DATA;
+                    } else if (chunkState == CHUNK_SIZE && Character.digit(c, 16) >= 0) {
+                        remaining = remaining * 16 + Character.digit(c, 16);
+                    } else if (c != '\r') {
+                        chunkState = CHUNK_EXTENSION;
+                    }
+                    break;
+                case CHUNK_DATA_END:
+                    if (c == '\n') {
+                        chunkState = CHUNK_SIZE;
+                    }
+                    break;
+                default:
+                    if (c == '\n') {
+                        if (trailerLineEmpty) {
+                            end();
+                        }
+                        trailerLineEmpty = true;
+                    } else if (c != '\r') {
+                        trailerLineEmpty = false;
+                    }
+                    break;
+            }
+            return 1;
+        }
+
+        private void data(byte[] b, int off, int len) {
+            while (len > 0) {
+                int copied = Math.min(len, buffer.length - buffered);
+                System.arraycopy(b, off, buffer, buffered, copied);
+                buffered += copied;
+                off += copied;
+                len -= copied;
+                if (buffered == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        private void end() {
+            ended = true;
+            sendData(stream, buffer, 0, buffered, true);
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Sends data within the flow control windows, waits for the client to
+     * open them. Discards the data once the stream got reset, resets it when
+     * the windows stay closed for {@link #SEND_WINDOW_TIMEOUT} milliseconds.
+     */
+    private void sendData(Stream stream, byte[] data, int offset, int length, boolean endStream) {
+        try {
+            do {
+                int size;
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + SEND_WINDOW_TIMEOUT;
+                    while (!stream.reset && length > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    }
+                    if (stream.reset) {
+                        return;
+                    }
+                    if (length > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+                        size = -1;
+                    } else {
+                        size = (int) Math.min(Math.min(length, maxSendFrameSize), Math.min(sendWindow, stream.sendWindow));
+                        sendWindow -= size;
+                        stream.sendWindow -= size;
+                    }
+                }
+                if (size < 0) {
+                    LOG.log(Level.FINE, "HTTP/2 stream " + stream.id + " blocked on the flow control window");
+                    resetStreamQuietly(stream.id, CANCEL);
+                    return;
+                }
+                boolean last = endStream && size == length;
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, data, offset, size);
+                offset += size;
+                length -= size;
+            } while (length > 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resetStreamQuietly(stream.id, INTERNAL_ERROR);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[12];
+        writeSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        writeSetting(payload, 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private static void writeSetting(byte[] payload, int offset, int id, int value) {
+        payload[offset] = (byte) (id >>> 8);
+        payload[offset + 1] = (byte) id;
+        writeInt(payload, offset + 2, value);
+    }
+
+    private void writeHeaders(int streamId, List<String[]> headers, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            encoder.encode(block, headers);
+            byte[] data = block.toByteArray();
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                int size = Math.min(data.length - offset, DEFAULT_FRAME_SIZE);
+                int flags = (offset + size == data.length) ? FLAG_END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrame(type, flags, streamId, data, offset, size);
+                offset += size;
+                type = CONTINUATION;
+            } while (offset < data.length);
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeReset(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeGoAway(int errorCode) throws IOException {
+        byte[] payload = new byte[8];
+        writeInt(payload, 0, lastStreamId);
+        writeInt(payload, 4, errorCode);
+        writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            frameHeader[0] = (byte) (length >>> 16);
+            frameHeader[1] = (byte) (length >>> 8);
+            frameHeader[2] = (byte) length;
+            frameHeader[3] = (byte) type;
+            frameHeader[4] = (byte) flags;
+            writeInt(frameHeader, 5, streamId);
+            out.write(frameHeader);
+            out.write(payload, offset, length);
+            out.flush();
+        }
+    }
+
+    /**
+     * Resets a stream and stops sending its response.
+     */
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        synchronized (this) {
+            Stream stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.reset = true;
+                notifyAll();
+            }
+        }
+        writeReset(streamId, errorCode);
+    }
+
+    private void resetStreamQuietly(int streamId, int errorCode) {
+        try {
+            resetStream(streamId, errorCode);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Writing failed, the reader notices the broken connection as well.
+     */
+    private void failed(IOException e) {
+        LOG.log(Level.FINE, "Could not write to HTTP/2 connection", e);
+        close();
+    }
+
+    private synchronized Stream getStream(int streamId) {
+        return streams.get(streamId);
+    }
+
+    private synchronized void removeStream(Stream stream) {
+        if (streams.get(stream.id) == stream) {
+            streams.remove(stream.id);
+        }
+    }
+
+    private synchronized int activeStreams() {
+        return streams.size();
+    }
+
+    private synchronized void close() {
+        for (Stream stream : streams.values()) {
+            stream.reset = true;
+        }
+        streams.clear();
+        waitingStreams.clear();
+        notifyAll();
+    }
+
+    private static int padding(byte[] payload) throws ConnectionException {
+        if (payload.length == 0 || (payload[0] & 0xff) >= payload.length) {
+            throw new ConnectionException(PROTOCOL_ERROR, "invalid padding");
+        }
+        return (payload[0] & 0xff) + 1;
+    }
+
+    private static boolean isValidName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7f || (c >= 'A' && c <= 'Z') || c == ':') {
+                return false;
+            }
+        }
+        return name.length() > 0;
+    }
+
+    private static boolean isValidValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidToken(String value) {
+        return value.length() > 0 && isValidName(value.toLowerCase());
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static byte[] ascii(String value) {
+        try {
+            return value.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return whether the client asks to upgrade to cleartext HTTP/2, only
+     *         requests without a body are upgraded
+     */
+    static boolean isUpgradeRequest(IHTTPSession session) {
+        Map<String, String> headers = session.getHeaders();
+        String upgrade = headers.get("upgrade");
+        if (upgrade == null || headers.get("http2-settings") == null || headers.get("transfer-encoding") != null) {
+            return false;
+        }
+        String contentLength = headers.get("content-length");
+        if (contentLength != null && !contentLength.trim().equals("0")) {
+            return false;
+        }
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a response switching the connection to HTTP/2, which then
+     *         serves the request as stream 1; null if the HTTP2-Settings
+     *         header is invalid
+     */
+    static Response newUpgradeResponse(RouterNanoHTTPD server, ExecutorService workers, IHTTPSession session) {
+        byte[] settings = decodeBase64Url(session.getHeaders().get("http2-settings").trim());
+        if (settings == null || settings.length % 6 != 0) {
+            return null;
+        }
+        List<String[]> request = new ArrayList<String[]>();
+        request.add(new String[]{":method", session.getMethod().name()});
+        request.add(new String[]{":scheme", "http"});
+        String path = encodePath(session.getUri());
+        String query = session.getQueryParameterString();
+        request.add(new String[]{":path", (query == null || query.length() == 0) ? path : path + '?' + query});
+        for (Map.Entry<String, String> header : session.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if (name.equals("connection") || name.equals("upgrade") || name.equals("http2-settings") || name.equals("keep-alive") || name.equals("content-length")
+                    || name.equals("remote-addr") || name.equals("http-client-ip")) {
+                continue;
+            }
+            try {
+                byte[] value = header.getValue().getBytes("UTF-8");
+                request.add(new String[]{name.equals("host") ? ":authority" : name, Hpack.octets(value, 0, value.length)});
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        // pseudo headers come first
+        for (int i = 0, pseudo = 0; i < request.size(); i++) {
+            if (request.get(i)[0].startsWith(":")) {
+                request.add(pseudo++, request.remove(i));
+            }
+        }
+        return new UpgradeResponse(server, workers, session, settings, request);
+    }
+
+    private static String encodePath(String path) {
+        StringBuilder encoded = new StringBuilder(path.length() + 16);
+        byte[] bytes;
+        try {
+            bytes = path.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "/-._~!$&'()*+,;=:@".indexOf(c) >= 0) {
+                encoded.append((char) c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static byte[] decodeBase64Url(String value) {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(value.length() * 3 / 4);
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int digit;
+            if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                digit = c - '0' + 52;
+            } else if (c == '-' || c == '+') {
+                digit = 62;
+            } else if (c == '_' || c == '/') {
+                digit = 63;
+            } else if (c == '=') {
+                break;
+            } else {
+                return null;
+            }
+            bits = (bits << 6) | digit;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                decoded.write(bits >> bitCount);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+        return decoded.toByteArray();
+    }
+
+    /**
+     * Answers an upgrade request with 101 Switching Protocols and serves the
+     * connection as HTTP/2 from within {@link #send(OutputStream)}.
+     * Afterwards NanoHTTPD closes the connection, as the response asks it to.
+     */
+    private static final class UpgradeResponse extends Response {
+
+        private final RouterNanoHTTPD server;
+
+        private final ExecutorService workers;
+
+        private final IHTTPSession session;
+
+        private final byte[] settings;
+
+        private final List<String[]> request;
+
+        private UpgradeResponse(RouterNanoHTTPD server, ExecutorService workers, IHTTPSession session, byte[] settings, List<String[]> request) {
+            super(Status.SWITCH_PROTOCOL, null, new ByteArrayInputStream(new byte[0]), 0);
+            this.server = server;
+            this.workers = workers;
+            this.session = session;
+            this.settings = settings;
+            this.request = request;
+            addHeader("Connection", "close");
+        }
+
+        @Override
+        protected void send(OutputStream outputStream) {
+            try {
+                outputStream.write(ascii("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"));
+                outputStream.flush();
+                // the literal address NanoHTTPD put there, no lookup
+                InetAddress remoteAddress = InetAddress.getByName(session.getHeaders().get("remote-addr"));
+                Http2Connection connection = new Http2Connection(server, workers, session.getInputStream(), outputStream, remoteAddress);
+                connection.applySettings(settings);
+                connection.serve(request);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not upgrade to HTTP/2", e);
+            }
+        }
+    }
+
+    /**
+     * Looks for the HTTP/2 connection preface on a new connection. A client
+     * with prior knowledge gets served as HTTP/2 on the first read, which
+     * then reports the end of the stream to NanoHTTPD. For anything else the
+     * bytes read are replayed to NanoHTTPD.
+     */
+    static final class PrefaceDetector extends FilterInputStream {
+
+        private final RouterNanoHTTPD server;
+
+        private final Socket socket;
+
+        private boolean detected;
+
+        private boolean finished;
+
+        private byte[] replay;
+
+        private int replayPosition;
+
+        PrefaceDetector(RouterNanoHTTPD server, Socket socket, InputStream in) {
+            super(in);
+            this.server = server;
+            this.socket = socket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return (read <= 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!detected) {
+                detect();
+            }
+            if (finished) {
+                return -1;
+            }
+            if (replay != null) {
+                int count = Math.min(len, replay.length - replayPosition);
+                System.arraycopy(replay, replayPosition, b, off, count);
+                replayPosition += count;
+                if (replayPosition == replay.length) {
+                    replay = null;
+                }
+                return count;
+            }
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (replay != null) ? replay.length - replayPosition : super.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void detect() throws IOException {
+            detected = true;
+            int count = 0;
+            byte[] seen = new byte[PREFACE.length];
+            while (count < PREFACE.length) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                seen[count++] = (byte) b;
+                if (b != (PREFACE[count - 1] & 0xff)) {
+                    break;
+                }
+            }
+            if (count == PREFACE.length && seen[count - 1] == PREFACE[count - 1]) {
+                finished = true;
+                new Http2Connection(server, server.getHttp2Workers(), in, socket.getOutputStream(), socket.getInetAddress()).serve(null);
+                return;
+            }
+            if (count == 0) {
+                finished = true;
+                return;
+            }
+            replay = Arrays.copyOf(seen, count);
+        }
+    }
+}
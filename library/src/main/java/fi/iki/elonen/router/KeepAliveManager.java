@@ -0,0 +1,387 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Keeps track of idle keep-alive connections. Idle connections are closed
+ * once they exceed the idle timeout, or, oldest first, once there are more
+ * idle connections than allowed. A connection gets closed after the maximum
+ * number of requests.
+ * <p/>
+ * Deadlines are kept in a hashed timer wheel, which a single reaper thread
+ * advances, instead of a timer per connection.
+ */
+final class KeepAliveManager {
+
+    private static final long TICK_MILLIS = 250;
+
+    private static final int WHEEL_SIZE = 64;
+
+    /**
+     * A connection between two requests may be closed by the manager.
+     */
+    abstract static class Connection {
+
+        private int requests;
+
+        private boolean idle;
+
+        private long deadline;
+
+        private int slot = -1;
+
+        // taken over by another protocol
+        private boolean upgraded;
+
+        /**
+         * Closes the connection, called by the reaper thread.
+         */
+        abstract void expire();
+
+        /**
+         * @return the idle timeout of this connection in milliseconds, 0 to
+         *         never expire it.
+         */
+        abstract int getIdleTimeout();
+    }
+
+    /**
+     * The connection the current thread serves a request for.
+     */
+    private final ThreadLocal<Connection> current = new ThreadLocal<Connection>();
+
+    private final Set<Connection>[] wheel;
+
+    // ordered by the time they became idle
+    private final LinkedHashSet<Connection> idleConnections = new LinkedHashSet<Connection>();
+
+    private volatile int idleTimeout;
+
+    private volatile int maxIdleConnections;
+
+    private volatile int maxRequests;
+
+    private ScheduledExecutorService reaper;
+
+    private long wheelTime;
+
+    @SuppressWarnings({
+        "unchecked",
+        "rawtypes"
+    })
+    KeepAliveManager() {
+        this.wheel = new Set[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel[i] = new HashSet<Connection>();
+        }
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = Math.max(0, maxIdleConnections);
+    }
+
+    void setMaxRequests(int maxRequests) {
+        this.maxRequests = Math.max(0, maxRequests);
+    }
+
+    /**
+     * Remembers the connection the current thread serves.
+     */
+    void setCurrent(Connection connection) {
+        if (connection == null) {
+            current.remove();
+        } else {
+            current.set(connection);
+        }
+    }
+
+    /**
+     * Counts the request of the current connection and asks the client to
+     * close it once it reached the maximum number of requests.
+     */
+    void onResponse(Response response) {
+        Connection connection = current.get();
+        if (connection == null || response == null) {
+            return;
+        }
+        int max = this.maxRequests;
+        int requests = ++connection.requests;
+        if (max > 0 && requests >= max) {
+            response.addHeader("Connection", "close");
+            return;
+        }
+        int timeout = connection.getIdleTimeout();
+        if (timeout > 0 || max > 0) {
+            StringBuilder keepAlive = new StringBuilder();
+            if (timeout > 0) {
+                keepAlive.append("timeout=").append(Math.max(1, timeout / 1000));
+            }
+            if (max > 0) {
+                keepAlive.append(keepAlive.length() > 0 ? ", " : "").append("max=").append(max - requests);
+            }
+            response.addHeader("Keep-Alive", keepAlive.toString());
+        }
+    }
+
+    /**
+     * The connection waits for its next request.
+     */
+    void idle(Connection connection) {
+        List<Connection> evicted = null;
+        synchronized (this) {
+            if (connection.idle || connection.upgraded) {
+                return;
+            }
+            connection.idle = true;
+            idleConnections.add(connection);
+            int timeout = connection.getIdleTimeout();
+            if (timeout > 0) {
+                connection.deadline = System.currentTimeMillis() + timeout;
+                connection.slot = (int) ((connection.deadline / TICK_MILLIS) % WHEEL_SIZE);
+                wheel[connection.slot].add(connection);
+                startReaper();
+            }
+            int max = this.maxIdleConnections;
+            if (max > 0 && idleConnections.size() > max) {
+                evicted = new ArrayList<Connection>();
+                Iterator<Connection> oldest = idleConnections.iterator();
+                while (idleConnections.size() - evicted.size() > max && oldest.hasNext()) {
+                    evicted.add(oldest.next());
+                }
+                for (Connection eldest : evicted) {
+                    unschedule(eldest);
+                }
+            }
+        }
+        if (evicted != null) {
+            for (Connection eldest : evicted) {
+                eldest.expire();
+            }
+        }
+    }
+
+    /**
+     * The current connection was taken over by another protocol, like a
+     * WebSocket, which decides itself how long it stays open.
+     */
+    synchronized void upgrade() {
+        Connection connection = current.get();
+        if (connection != null) {
+            connection.upgraded = true;
+            if (connection.idle) {
+                unschedule(connection);
+            }
+        }
+    }
+
+    /**
+     * The connection received a request or got closed.
+     */
+    synchronized void active(Connection connection) {
+        if (connection.idle) {
+            unschedule(connection);
+        }
+    }
+
+    private void unschedule(Connection connection) {
+        connection.idle = false;
+        idleConnections.remove(connection);
+        if (connection.slot >= 0) {
+            wheel[connection.slot].remove(connection);
+            connection.slot = -1;
+        }
+    }
+
+    private void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        wheelTime = System.currentTimeMillis() / TICK_MILLIS;
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NanoHttpd Keep-Alive Reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the reaper thread, it gets started again with the next idle
+     * connection.
+     */
+    synchronized void stop() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        List<Connection> expired = new ArrayList<Connection>();
+        synchronized (this) {
+            long target = now / TICK_MILLIS;
+            // a round is enough to see every slot once
+            if (target - wheelTime > WHEEL_SIZE) {
+                wheelTime = target - WHEEL_SIZE;
+            }
+            while (wheelTime <= target) {
+                Set<Connection> slot = wheel[(int) (wheelTime % WHEEL_SIZE)];
+                for (Connection connection : slot) {
+                    if (connection.deadline <= now) {
+                        expired.add(connection);
+                    }
+                }
+                wheelTime++;
+            }
+            // stay on the current slot, it may still get entries for this tick
+            wheelTime = target;
+            for (Connection connection : expired) {
+                unschedule(connection);
+            }
+        }
+        for (Connection connection : expired) {
+            connection.expire();
+        }
+    }
+
+    /**
+     * Tracks a connection of the blocking core through its input stream, it
+     * is idle while its thread waits for the next request.
+     */
+    InputStream track(Socket socket, InputStream inputStream) {
+        return new SocketConnection(socket, inputStream).inputStream;
+    }
+
+    private final class SocketConnection extends Connection {
+
+        private final Socket socket;
+
+        private final InputStream inputStream;
+
+        // between two requests, the next read waits for a request
+        private int servedRequests = -1;
+
+        private SocketConnection(Socket socket, InputStream in) {
+            this.socket = socket;
+            this.inputStream = new FilterInputStream(in) {
+
+                @Override
+                public int read() throws IOException {
+                    beforeRead();
+                    int read = super.read();
+                    afterRead(read == -1 ? -1 : 1);
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    beforeRead();
+                    int read = super.read(b, off, len);
+                    afterRead(read);
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    active(SocketConnection.this);
+                    super.close();
+                }
+            };
+        }
+
+        private void beforeRead() {
+            setCurrent(this);
+            if (servedRequests != super.requests) {
+                servedRequests = super.requests;
+                idle(this);
+            }
+        }
+
+        private void afterRead(int read) {
+            if (read > 0) {
+                active(this);
+            }
+        }
+
+        @Override
+        void expire() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+
+        @Override
+        int getIdleTimeout() {
+            return idleTimeout;
+        }
+    }
+}
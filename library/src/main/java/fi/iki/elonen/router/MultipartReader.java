@@ -0,0 +1,380 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import fi.iki.elonen.router.RequestBody.MalformedBodyException;
+
+/**
+ * Reads a multipart body a part at a time. The content of a part is
+ * streamed from the connection while it is read and never held by the
+ * reader, a part which was not read completely is skipped by
+ * {@link #nextPart()}.
+ */
+public final class MultipartReader {
+
+    /**
+     * A part of the body, valid until the next call of
+     * {@link MultipartReader#nextPart()}.
+     */
+    public final class Part {
+
+        private final Map<String, String> headers;
+
+        private final String name;
+
+        private final String fileName;
+
+        private final InputStream inputStream = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (current != Part.this) {
+                    return -1;
+                }
+                return readPart(b, off, len);
+            }
+        };
+
+        private Part(Map<String, String> headers) {
+            this.headers = Collections.unmodifiableMap(headers);
+            String disposition = headers.get("content-disposition");
+            this.name = parameter(disposition, "name");
+            String file = parameter(disposition, "filename");
+            if (file != null) {
+                // old browsers send the whole path of the file
+                file = file.substring(Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\')) + 1);
+            }
+            this.fileName = file;
+        }
+
+        /**
+         * @return the name of the form field, null if the part has none.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name of the uploaded file without its path, null if
+         *         the part is no file.
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return the content type of the part, null if it has none.
+         */
+        public String getContentType() {
+            return headers.get("content-type");
+        }
+
+        /**
+         * @param name
+         *            the header name in lower case
+         */
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return the content of the part which was not read yet.
+         */
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /**
+         * Reads the rest of the part as text in the charset of its content
+         * type, UTF-8 by default.
+         * 
+         * @throws MalformedBodyException
+         *             if the text is longer than the memory threshold.
+         */
+        public String getString() throws IOException {
+            return RequestBody.readString(inputStream, parameter(getContentType(), "charset"), body.getMemoryThreshold());
+        }
+
+        /**
+         * Reads the rest of the part into a buffer, which is deleted after
+         * the request was answered unless it got moved.
+         */
+        public SpillBuffer buffer() throws IOException {
+            return body.buffer(inputStream);
+        }
+    }
+
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final RequestBody body;
+
+    private final InputStream in;
+
+    private final byte[] delimiter;
+
+    private final byte[] buffer;
+
+    private int pos;
+
+    private int limit;
+
+    private boolean eof;
+
+    // the preamble is read like a part
+    private boolean inPart = true;
+
+    private boolean finished;
+
+    private Part current;
+
+    MultipartReader(RequestBody body, InputStream in, String boundary) {
+        this.body = body;
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(ISO_8859_1);
+        this.buffer = new byte[Math.max(2 * MAX_HEADER_SIZE, 2 * delimiter.length)];
+        // so a boundary on the first line matches the delimiter too
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * @return the next part, null after the last one.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (inPart) {
+            byte[] skip = BufferPool.shared().acquire(4096);
+            try {
+                while (inPart) {
+                    readPart(skip, 0, skip.length);
+                }
+            } finally {
+                BufferPool.shared().release(skip);
+            }
+        }
+        current = null;
+        if (!fill(2)) {
+            throw new MalformedBodyException("multipart body ended without its closing boundary");
+        }
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            pos += 2;
+            finished = true;
+            return null;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        String line = readLine(MAX_HEADER_SIZE);
+        if (!line.trim().isEmpty()) {
+            throw new MalformedBodyException("garbage after multipart boundary");
+        }
+        int headerSize = 0;
+        while (!(line = readLine(MAX_HEADER_SIZE - headerSize)).isEmpty()) {
+            headerSize += line.length() + 2;
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new MalformedBodyException("invalid part header " + line);
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        inPart = true;
+        current = new Part(headers);
+        return current;
+    }
+
+    private int readPart(byte[] b, int off, int len) throws IOException {
+        if (!inPart) {
+            return -1;
+        }
+        fill(delimiter.length);
+        int index = indexOfDelimiter();
+        if (index == pos) {
+            pos += delimiter.length;
+            inPart = false;
+            return -1;
+        }
+        int safe;
+        if (index > 0) {
+            safe = index - pos;
+        } else if (eof) {
+            throw new MalformedBodyException("multipart body ended within a part");
+        } else {
+            // the end of the buffer could be the start of a delimiter
+            safe = limit - pos - (delimiter.length - 1);
+        }
+        int read = Math.min(len, safe);
+        System.arraycopy(buffer, pos, b, off, read);
+        pos += read;
+        return read;
+    }
+
+    private int indexOfDelimiter() {
+        int last = limit - delimiter.length;
+        byte first = delimiter[0];
+        for (int i = pos; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < delimiter.length && buffer[i + j] == delimiter[j]) {
+                j++;
+            }
+            if (j == delimiter.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if at least <code>count</code> bytes are buffered.
+     */
+    private boolean fill(int count) throws IOException {
+        while (limit - pos < count && !eof) {
+            if (limit == buffer.length || buffer.length - pos < count) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+        return limit - pos >= count;
+    }
+
+    private String readLine(int maxLength) throws IOException {
+        int start = pos;
+        int length = 0;
+        while (true) {
+            if (pos == limit) {
+                // keep the line in the buffer while filling it
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                limit -= start;
+                pos -= start;
+                start = 0;
+                if (!fill(limit - pos + 1)) {
+                    throw new MalformedBodyException("multipart body ended within the part headers");
+                }
+            }
+            if (buffer[pos++] == '\n') {
+                break;
+            }
+            if (++length > maxLength) {
+                throw new MalformedBodyException("part headers too large");
+            }
+        }
+        int end = pos - 1;
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        try {
+            return new String(buffer, start, end - start, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the value of the parameter in a header like
+     *         <code>form-data; name="file"; filename="a.jpg"</code>, null if
+     *         it is missing.
+     */
+    static String parameter(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+        int index = header.indexOf(';');
+        int length = header.length();
+        while (index >= 0 && index < length) {
+            index++;
+            int equals = index;
+            while (equals < length && header.charAt(equals) != '=' && header.charAt(equals) != ';') {
+                equals++;
+            }
+            String key = header.substring(index, equals).trim();
+            if (equals >= length || header.charAt(equals) == ';') {
+                index = equals;
+                continue;
+            }
+            StringBuilder value = new StringBuilder();
+            int i = equals + 1;
+            if (i < length && header.charAt(i) == '"') {
+                for (i++; i < length && header.charAt(i) != '"'; i++) {
+                    char c = header.charAt(i);
+                    if (c == '\\' && i + 1 < length) {
+                        c = header.charAt(++i);
+                    }
+                    value.append(c);
+                }
+                i = header.indexOf(';', i);
+            } else {
+                int end = header.indexOf(';', i);
+                value.append(header.substring(i, end < 0 ? length : end).trim());
+                i = end;
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return value.toString();
+            }
+            index = i;
+        }
+        return null;
+    }
+}
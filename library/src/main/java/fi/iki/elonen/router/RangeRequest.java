@@ -0,0 +1,408 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * The byte ranges a client asked for with the <code>Range</code> header,
+ * single ranges are answered with a plain 206, several ranges with a
+ * <code>multipart/byteranges</code> body.
+ */
+public final class RangeRequest {
+
+    /**
+     * Provides the bytes of a representation a slice at a time.
+     */
+    public interface Source {
+
+        /**
+         * @return a stream positioned at <code>offset</code>, which is read
+         *         for at most <code>length</code> bytes.
+         */
+        InputStream open(long offset, long length) throws IOException;
+    }
+
+    /**
+     * Requests with more ranges than this get the whole representation.
+     */
+    private static final int MAX_RANGES = 16;
+
+    private final long totalLength;
+
+    private final long[] starts;
+
+    private final long[] ends;
+
+    private RangeRequest(long totalLength, long[] starts, long[] ends) {
+        this.totalLength = totalLength;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * @param etag
+     *            the entity tag of the representation or <code>null</code>
+     * @param lastModified
+     *            the modification time in milliseconds or 0 if unknown
+     * @return the requested ranges or <code>null</code> if the whole
+     *         representation should be sent
+     */
+    public static RangeRequest parse(IHTTPSession session, long totalLength, String etag, long lastModified) {
+        Method method = session.getMethod();
+        if (totalLength < 0 || (method != Method.GET && method != Method.HEAD)) {
+            return null;
+        }
+        Map<String, String> headers = session.getHeaders();
+        String range = headers.get("range");
+        if (range == null) {
+            return null;
+        }
+        String ifRange = headers.get("if-range");
+        if (ifRange != null && !ifRangeMatches(ifRange.trim(), etag, lastModified)) {
+            return null;
+        }
+
+        range = range.trim();
+        if (!range.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // suffix range, the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, totalLength - suffix);
+                    end = totalLength - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                }
+            } catch (NumberFormatException e) {
+                // syntactically invalid ranges are ignored as a whole
+                return null;
+            }
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start < totalLength) {
+                ranges.add(new long[]{
+                    start,
+                    Math.min(end, totalLength - 1)
+                });
+            }
+        }
+
+        long[] starts = new long[ranges.size()];
+        long[] ends = new long[ranges.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = ranges.get(i)[0];
+            ends[i] = ranges.get(i)[1];
+        }
+        return new RangeRequest(totalLength, starts, ends);
+    }
+
+    /**
+     * If-Range only matches a strong entity tag or the exact modification
+     * date.
+     */
+    private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange.startsWith("\"")) {
+            return etag != null && !etag.startsWith("W/") && etag.equals(ifRange);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        long date = RouterNanoHTTPD.StaticPageHandler.parseHttpDate(ifRange);
+        return date >= 0 && lastModified > 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * @return false if none of the ranges overlaps the representation, which
+     *         has to be answered with a 416.
+     */
+    public boolean isSatisfiable() {
+        return starts.length > 0;
+    }
+
+    /**
+     * Creates the 206 response for the requested ranges, or a 416 if they
+     * are not satisfiable.
+     */
+    public Response createResponse(String mimeType, Source source) throws IOException {
+        if (!isSatisfiable()) {
+            Response response = NanoHTTPD.newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, null);
+            response.addHeader("Content-Range", "bytes */" + totalLength);
+            return response;
+        }
+
+        Response response;
+        if (starts.length == 1) {
+            long length = ends[0] - starts[0] + 1;
+            response = NanoHTTPD.newFixedLengthResponse(Status.PARTIAL_CONTENT, mimeType, source.open(starts[0], length), length);
+            response.addHeader("Content-Range", contentRange(0));
+        } else {
+            String boundary = "BYTERANGES_" + Long.toHexString(System.nanoTime());
+            MultipartInputStream body = new MultipartInputStream(this, boundary, mimeType, source);
+            response = NanoHTTPD.newFixedLengthResponse(Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary, body, body.contentLength);
+        }
+        response.addHeader("Accept-Ranges", "bytes");
+        return response;
+    }
+
+    private String contentRange(int index) {
+        return "bytes " + starts[index] + "-" + ends[index] + "/" + totalLength;
+    }
+
+    /**
+     * A source reading slices of a file through a positioned
+     * {@link FileChannel}.
+     */
+    public static Source fileSource(final File file) {
+        return new Source() {
+
+            @Override
+            public InputStream open(long offset, long length) throws IOException {
+                FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+                try {
+                    channel.position(offset);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                return new BoundedInputStream(Channels.newInputStream(channel), length);
+            }
+        };
+    }
+
+    /**
+     * A source reading slices of a byte array, without copying it.
+     */
+    public static Source bytesSource(final byte[] data) {
+        return new Source() {
+
+            @Override
+            public InputStream open(long offset, long length) {
+                return new ByteArrayInputStream(data, (int) offset, (int) length);
+            }
+        };
+    }
+
+    /**
+     * Limits the bytes read from the wrapped stream.
+     */
+    public static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        public BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read();
+            if (read >= 0) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * The <code>multipart/byteranges</code> body, the slices are opened one
+     * after the other while the body is sent.
+     */
+    private static final class MultipartInputStream extends InputStream {
+
+        private final RangeRequest request;
+
+        private final Source source;
+
+        private final byte[][] partHeaders;
+
+        private final byte[] closing;
+
+        private final long contentLength;
+
+        private InputStream current;
+
+        // every part has three pieces: header, data and line break
+        private int piece = -1;
+
+        private MultipartInputStream(RangeRequest request, String boundary, String mimeType, Source source) throws UnsupportedEncodingException {
+            this.request = request;
+            this.source = source;
+            int parts = request.starts.length;
+            this.partHeaders = new byte[parts][];
+            long length = 0;
+            for (int i = 0; i < parts; i++) {
+                StringBuilder header = new StringBuilder("--").append(boundary).append("\r\n");
+                if (mimeType != null) {
+                    header.append("Content-Type: ").append(mimeType).append("\r\n");
+                }
+                header.append("Content-Range: ").append(request.contentRange(i)).append("\r\n\r\n");
+                partHeaders[i] = header.toString().getBytes("US-ASCII");
+                length += partHeaders[i].length + (request.ends[i] - request.starts[i] + 1) + 2;
+            }
+            this.closing = ("--" + boundary + "--\r\n").getBytes("US-ASCII");
+            this.contentLength = length + closing.length;
+        }
+
+        private boolean nextPiece() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            piece++;
+            int part = piece / 3;
+            if (part == request.starts.length) {
+                current = new ByteArrayInputStream(closing);
+            } else if (part < request.starts.length) {
+                switch (piece % 3) {
+                    case 0:
+                        current = new ByteArrayInputStream(partHeaders[part]);
+                        break;
+                    case 1:
+                        current = source.open(request.starts[part], request.ends[part] - request.starts[part] + 1);
+                        break;
+                    default:
+                        current = new ByteArrayInputStream(new byte[]{
+                            '\r',
+                            '\n'
+                        });
+                        break;
+                }
+            }
+            return current != null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current != null || nextPiece()) {
+                int read = current.read(b, off, len);
+                if (read > 0) {
+                    return read;
+                }
+                if (!nextPiece()) {
+                    break;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Token bucket rate limits per client address, checked by the
+ * {@link RouterNanoHTTPD.UriRouter} before a request reaches its handler.
+ * <p/>
+ * A client has one bucket for all its requests, if a client limit is set,
+ * and one bucket per route with a limit of its own. Route limits are keyed
+ * by the pattern the route was registered with, requests without a route
+ * limit use the default limit. A request needs a token of every bucket it
+ * falls into, otherwise it is answered with 429 Too Many Requests and a
+ * Retry-After header.
+ * <p/>
+ * The buckets live in a few independently locked stripes. A bucket which
+ * would have refilled completely is the same as a new one, so it is dropped
+ * the next time its stripe is used, and every stripe only keeps the most
+ * recently used {@link #MAX_BUCKETS_PER_STRIPE} buckets, which bounds the
+ * memory a flood of client addresses can take.
+ */
+public class RateLimiter {
+
+    public static final int MAX_BUCKETS_PER_STRIPE = 1024;
+
+    private static final int STRIPES = 16;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * 429 is not part of NanoHTTPD's status codes.
+     */
+    public static final Response.IStatus TOO_MANY_REQUESTS = new Response.IStatus() {
+
+        @Override
+        public String getDescription() {
+            return "429 Too Many Requests";
+        }
+
+        @Override
+        public int getRequestStatus() {
+            return 429;
+        }
+    };
+
+    /**
+     * A sustained rate and the burst allowed on top of it.
+     */
+    public static final class Limit {
+
+        private final double requestsPerSecond;
+
+        private final int burst;
+
+        // time it takes an empty bucket to fill up
+        private final long refillNanos;
+
+        /**
+         * @param requestsPerSecond
+         *            tokens added per second
+         * @param burst
+         *            size of the bucket, the requests a client which was
+         *            idle may send at once
+         */
+        public Limit(double requestsPerSecond, int burst) {
+            if (requestsPerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("rate and burst have to be positive");
+            }
+            this.requestsPerSecond = requestsPerSecond;
+            this.burst = burst;
+            this.refillNanos = (long) Math.ceil(burst * NANOS_PER_SECOND / requestsPerSecond);
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+    }
+
+    private static final class Bucket {
+
+        private final Limit limit;
+
+        private double tokens;
+
+        private long lastNanos;
+
+        private Bucket(Limit limit, long now) {
+            this.limit = limit;
+            this.tokens = limit.burst;
+            this.lastNanos = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(limit.burst, tokens + (now - lastNanos) * limit.requestsPerSecond / NANOS_PER_SECOND);
+            lastNanos = now;
+        }
+
+        private boolean isIdle(long now) {
+            return now - lastNanos >= limit.refillNanos;
+        }
+
+        /**
+         * @return nanoseconds until the next token is available
+         */
+        private long getWaitNanos() {
+            return (long) Math.ceil((1 - tokens) * NANOS_PER_SECOND / limit.requestsPerSecond);
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<String, Bucket> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Stripe() {
+            // access order, the least recently used bucket comes first
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAX_BUCKETS_PER_STRIPE;
+        }
+
+        private void evictIdle(long now) {
+            Iterator<Bucket> buckets = values().iterator();
+            while (buckets.hasNext()) {
+                if (!buckets.next().isIdle(now)) {
+                    break;
+                }
+                buckets.remove();
+            }
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final ConcurrentHashMap<String, Limit> routeLimits = new ConcurrentHashMap<String, Limit>();
+
+    private volatile Limit clientLimit;
+
+    private volatile Limit defaultLimit;
+
+    public RateLimiter() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @param limit
+     *            for all requests of a client together, null for none
+     */
+    public void setClientLimit(Limit limit) {
+        this.clientLimit = limit;
+    }
+
+    /**
+     * @param limit
+     *            per client for every route without a limit of its own,
+     *            null for none
+     */
+    public void setDefaultLimit(Limit limit) {
+        this.defaultLimit = limit;
+    }
+
+    /**
+     * @param route
+     *            the pattern the route was added with, like "/assets/(.)+"
+     * @param limit
+     *            per client for this route, null to use the default limit
+     */
+    public void setRouteLimit(String route, Limit limit) {
+        String uri = RouterNanoHTTPD.normalizeUri(route);
+        if (limit == null) {
+            routeLimits.remove(uri);
+        } else {
+            routeLimits.put(uri, limit);
+        }
+    }
+
+    /**
+     * Takes a token of every bucket the request falls into.
+     * 
+     * @param resource
+     *            the route the request matched, the not found resource if
+     *            none did
+     * @return null if the request may pass, else the 429 response
+     */
+    public Response admit(IHTTPSession session, RouterNanoHTTPD.UriResource resource) {
+        String client = session.getHeaders().get("remote-addr");
+        if (client == null) {
+            return null;
+        }
+        String uri = resource.getUri();
+        Limit routeLimit = (uri != null) ? routeLimits.get(uri) : null;
+        if (routeLimit == null) {
+            routeLimit = defaultLimit;
+        }
+        Limit limit = clientLimit;
+        long now = System.nanoTime();
+
+        long waitNanos = 0;
+        String routeKey = null;
+        if (routeLimit != null) {
+            routeKey = client + ' ' + (uri != null ? uri : "");
+            waitNanos = acquire(routeKey, routeLimit, now);
+        }
+        if (waitNanos == 0 && limit != null) {
+            waitNanos = acquire(client, limit, now);
+            if (waitNanos > 0 && routeKey != null) {
+                // the request does not pass, so it does not use up the route
+                release(routeKey);
+            }
+        }
+        if (waitNanos == 0) {
+            return null;
+        }
+        Response response = NanoHTTPD.newFixedLengthResponse(TOO_MANY_REQUESTS, NanoHTTPD.MIME_PLAINTEXT, "Too Many Requests");
+        response.addHeader("Retry-After", String.valueOf(Math.max(1, (waitNanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND)));
+        return response;
+    }
+
+    /**
+     * @return 0 if a token got taken, else the nanoseconds until the next
+     *         token is available
+     */
+    private long acquire(String key, Limit limit, long now) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            stripe.evictIdle(now);
+            Bucket bucket = stripe.get(key);
+            if (bucket == null || bucket.limit != limit) {
+                // a changed limit starts over
+                bucket = new Bucket(limit, now);
+                stripe.put(key, bucket);
+            } else {
+                bucket.refill(now);
+            }
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, bucket.getWaitNanos());
+        }
+    }
+
+    private void release(String key) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(key);
+            if (bucket != null) {
+                bucket.tokens = Math.min(bucket.limit.burst, bucket.tokens + 1);
+            }
+        }
+    }
+
+    /**
+     * @return the number of buckets currently kept
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripeOf(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (STRIPES - 1)];
+    }
+}
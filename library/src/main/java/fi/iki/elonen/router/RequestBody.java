@@ -0,0 +1,396 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+
+/**
+ * The body of a POST or PUT request, read straight from the connection
+ * while the handler consumes it, instead of being buffered by
+ * {@link IHTTPSession#parseBody(Map)} before the handler runs.
+ * <p/>
+ * <code>multipart/form-data</code> bodies are read a part at a time with
+ * {@link #getMultipart()}. Handlers which need the bytes more than once
+ * {@link #buffer()} them, which keeps them in memory up to the threshold of
+ * the router and spills them to a temporary file beyond it.
+ * <p/>
+ * Whatever the handler did not read is skipped after the response was
+ * created, so the connection can serve the next request.
+ */
+public final class RequestBody {
+
+    /**
+     * The body of the request does not match its headers.
+     */
+    public static class MalformedBodyException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public MalformedBodyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Bytes a body is kept in memory with before it spills to a file.
+     */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
+    /**
+     * Unread bytes skipped after the response, larger remainders close the
+     * connection instead.
+     */
+    private static final int MAX_SKIP = 256 * 1024;
+
+    private final String contentType;
+
+    private final long contentLength;
+
+    private final int memoryThreshold;
+
+    private final File tempDir;
+
+    private final InputStream inputStream;
+
+    private final List<SpillBuffer> buffers = new ArrayList<SpillBuffer>();
+
+    private MultipartReader multipart;
+
+    RequestBody(IHTTPSession session, int memoryThreshold, File tempDir) throws MalformedBodyException {
+        Map<String, String> headers = session.getHeaders();
+        this.contentType = headers.get("content-type");
+        this.memoryThreshold = memoryThreshold;
+        this.tempDir = tempDir;
+        String transferEncoding = headers.get("transfer-encoding");
+        String length = headers.get("content-length");
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            this.contentLength = -1;
+            this.inputStream = new ChunkedInputStream(session.getInputStream());
+        } else {
+            long parsedLength = 0;
+            if (length != null) {
+                try {
+                    parsedLength = Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                    parsedLength = -1;
+                }
+                if (parsedLength < 0) {
+                    throw new MalformedBodyException("invalid content length " + length);
+                }
+            }
+            this.contentLength = parsedLength;
+            this.inputStream = new BoundedInputStream(session.getInputStream(), parsedLength);
+        }
+    }
+
+    /**
+     * @return the content type of the body, null if the request has none.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the length of the body, -1 for chunked bodies.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the bytes of the body which were not read yet. Closing the
+     *         stream does not close the connection.
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * @return true for <code>multipart/form-data</code> and other multipart
+     *         bodies.
+     */
+    public boolean isMultipart() {
+        return contentType != null && contentType.trim().toLowerCase(Locale.US).startsWith("multipart/");
+    }
+
+    /**
+     * @return the parts of a multipart body.
+     * @throws MalformedBodyException
+     *             if the body is no multipart body.
+     */
+    public MultipartReader getMultipart() throws MalformedBodyException {
+        if (multipart == null) {
+            String boundary = isMultipart() ? MultipartReader.parameter(contentType, "boundary") : null;
+            if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+                throw new MalformedBodyException("no multipart body with a valid boundary");
+            }
+            multipart = new MultipartReader(this, inputStream, boundary);
+        }
+        return multipart;
+    }
+
+    /**
+     * Reads the rest of the body into a buffer, which is deleted after the
+     * request was answered unless it got moved.
+     */
+    public SpillBuffer buffer() throws IOException {
+        return buffer(inputStream);
+    }
+
+    /**
+     * Reads the rest of the body as text in the charset of its content
+     * type, UTF-8 by default.
+     * 
+     * @throws MalformedBodyException
+     *             if the text is longer than the memory threshold.
+     */
+    public String getString() throws IOException {
+        return readString(inputStream, MultipartReader.parameter(contentType, "charset"), memoryThreshold);
+    }
+
+    SpillBuffer buffer(InputStream in) throws IOException {
+        SpillBuffer buffer = new SpillBuffer(memoryThreshold, tempDir);
+        buffers.add(buffer);
+        byte[] chunk = BufferPool.shared().acquire(8192);
+        try {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(chunk);
+        }
+        buffer.close();
+        return buffer;
+    }
+
+    int getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    static String readString(InputStream in, String charset, int maxLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = BufferPool.shared().acquire(4096);
+        try {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                if (bytes.size() + read > maxLength) {
+                    throw new MalformedBodyException("text longer than " + maxLength + " bytes");
+                }
+                bytes.write(chunk, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(chunk);
+        }
+        try {
+            return bytes.toString(charset != null ? charset : "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new MalformedBodyException("unsupported charset " + charset);
+        }
+    }
+
+    /**
+     * Skips the unread rest of the body and deletes the buffers which were
+     * not moved.
+     * 
+     * @return false if the connection can not serve another request.
+     */
+    boolean finish() {
+        for (SpillBuffer buffer : buffers) {
+            buffer.delete();
+        }
+        buffers.clear();
+        byte[] chunk = BufferPool.shared().acquire(8192);
+        try {
+            long skipped = 0;
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                skipped += read;
+                if (skipped > MAX_SKIP) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            BufferPool.shared().release(chunk);
+        }
+    }
+
+    /**
+     * The bytes up to the content length.
+     */
+    private static final class BoundedInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("request body ended " + remaining + " bytes early");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // the connection stays open
+        }
+    }
+
+    /**
+     * Decodes a chunked body, trailers are skipped.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+
+        private static final int MAX_LINE = 4096;
+
+        private final InputStream in;
+
+        private long chunkRemaining;
+
+        private boolean done;
+
+        private ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (chunkRemaining == 0) {
+                String sizeLine = readLine();
+                int extension = sizeLine.indexOf(';');
+                try {
+                    chunkRemaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new MalformedBodyException("invalid chunk size " + sizeLine);
+                }
+                if (chunkRemaining < 0) {
+                    throw new MalformedBodyException("invalid chunk size " + sizeLine);
+                }
+                if (chunkRemaining == 0) {
+                    while (!readLine().isEmpty()) {
+                        // trailer
+                    }
+                    done = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read == -1) {
+                throw new EOFException("request body ended within a chunk");
+            }
+            chunkRemaining -= read;
+            if (chunkRemaining == 0 && !readLine().isEmpty()) {
+                throw new MalformedBodyException("chunk longer than its size");
+            }
+            return read;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException("request body ended within a chunk header");
+                }
+                if (line.length() >= MAX_LINE) {
+                    throw new MalformedBodyException("chunk header too long");
+                }
+                line.append((char) c);
+            }
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() {
+            // the connection stays open
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Gzip encodes the responses of handlers on the fly, for clients which
+ * accept it. Only responses of a compressible type and at least the minimum
+ * size are encoded, and the deflaters are kept in a pool instead of
+ * allocating native memory for every response.
+ * <p/>
+ * Bodies held in memory are encoded at once and keep a
+ * <code>Content-Length</code>, streamed bodies are encoded while they are
+ * sent. A {@link CachedBody} keeps its encoding, so bodies served over and
+ * over are only encoded once. Responses which already carry a content coding,
+ * byte ranges and responses supporting them are left alone.
+ */
+final class ResponseCompressor {
+
+    /**
+     * Below this size the gzip header and trailer eat most of the savings.
+     */
+    static final int SUGGESTED_MIN_SIZE = 1024;
+
+    /**
+     * Deflaters kept for reuse.
+     */
+    private static final int POOL_SIZE = 8;
+
+    /**
+     * Larger bodies held in memory are streamed like bodies of unknown size.
+     */
+    private static final int MAX_BUFFERED_SIZE = 256 * 1024;
+
+    private static final byte[] GZIP_HEADER = {
+        0x1f,
+        (byte) 0x8b,
+        Deflater.DEFLATED,
+        0,
+        0,
+        0,
+        0,
+        0,
+        0,
+        0
+    };
+
+    /**
+     * A body which is served many times, it keeps its gzip encoding next to
+     * the bytes.
+     */
+    static final class CachedBody {
+
+        private static final byte[] NOT_SMALLER = new byte[0];
+
+        private final byte[] data;
+
+        // encoded by the first response which needs it, a racing response
+        // only costs another encoding
+        private volatile byte[] gzipData;
+
+        CachedBody(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * @return a stream over the bytes for one response.
+         */
+        InputStream newStream() {
+            return new Stream(this);
+        }
+
+        /**
+         * @return whether the body of a response comes from a cached body.
+         */
+        static boolean isCached(InputStream data) {
+            return data instanceof Stream;
+        }
+
+        /**
+         * @return the encoded bytes, null if they are not smaller.
+         */
+        private byte[] gzip(ResponseCompressor compressor) {
+            byte[] encoded = gzipData;
+            if (encoded == null) {
+                encoded = compressor.gzip(data);
+                if (encoded.length >= data.length) {
+                    encoded = NOT_SMALLER;
+                }
+                gzipData = encoded;
+            }
+            return (encoded == NOT_SMALLER) ? null : encoded;
+        }
+
+        private static final class Stream extends ByteArrayInputStream {
+
+            private final CachedBody body;
+
+            private Stream(CachedBody body) {
+                super(body.data);
+                this.body = body;
+            }
+        }
+    }
+
+    private final Queue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private volatile int minSize;
+
+    ResponseCompressor(int minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * @param minSize
+     *            smallest body encoded, 0 disables the encoding
+     */
+    void setMinSize(int minSize) {
+        this.minSize = Math.max(0, minSize);
+    }
+
+    boolean isEnabled() {
+        return minSize > 0;
+    }
+
+    /**
+     * Encodes the body of the response if it qualifies.
+     */
+    void compress(IHTTPSession session, Response response) {
+        int min = this.minSize;
+        if (min <= 0 || !isEligible(response)) {
+            return;
+        }
+        InputStream data = response.getData();
+        // handlers answer with text or a byte array, its size is known
+        ByteArrayInputStream buffered = (data instanceof ByteArrayInputStream) ? (ByteArrayInputStream) data : null;
+        if (buffered != null && buffered.available() < min) {
+            return;
+        }
+        String vary = response.getHeader("vary");
+        if (vary == null) {
+            response.addHeader("Vary", "Accept-Encoding");
+        } else if (!vary.toLowerCase(Locale.US).contains("accept-encoding")) {
+            response.addHeader("Vary", vary + ", Accept-Encoding");
+        }
+        if (!acceptsGzip(session.getHeaders().get("accept-encoding"))) {
+            return;
+        }
+
+        if (data instanceof CachedBody.Stream) {
+            byte[] encoded = ((CachedBody.Stream) data).body.gzip(this);
+            if (encoded == null) {
+                return;
+            }
+            response.setData(new ByteArrayInputStream(encoded));
+            response.addHeader("Content-Length", String.valueOf(encoded.length));
+        } else if (buffered != null && buffered.available() <= MAX_BUFFERED_SIZE) {
+            byte[] body = new byte[buffered.available()];
+            buffered.read(body, 0, body.length);
+            byte[] encoded = gzip(body);
+            if (encoded.length >= body.length) {
+                response.setData(new ByteArrayInputStream(body));
+                return;
+            }
+            response.setData(new ByteArrayInputStream(encoded));
+            response.addHeader("Content-Length", String.valueOf(encoded.length));
+        } else if (response.getHeader("content-length") == null && session.getMethod() != NanoHTTPD.Method.HEAD) {
+            // HEAD responses are not chunked, they would announce the
+            // unencoded length
+            response.setData(new GzipInputStream(data));
+            response.setChunkedTransfer(true);
+        } else {
+            // a declared length of a stream can not be kept
+            return;
+        }
+        response.addHeader("Content-Encoding", "gzip");
+        // the encoded bytes differ, but they are equivalent
+        String etag = response.getHeader("etag");
+        if (etag != null && !etag.startsWith("W/")) {
+            response.addHeader("ETag", "W/" + etag);
+        }
+    }
+
+    private static boolean isEligible(Response response) {
+        if (response == null || response instanceof FileResponse || response.getHeader("content-encoding") != null || response.getHeader("accept-ranges") != null) {
+            return false;
+        }
+        int status = response.getStatus() != null ? response.getStatus().getRequestStatus() : 0;
+        if (status < 200 || status == 204 || status == 206 || status == 304) {
+            return false;
+        }
+        return isCompressible(response.getMimeType());
+    }
+
+    static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String type = mimeType.toLowerCase(Locale.US);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters);
+        }
+        type = type.trim();
+        if (type.startsWith("text/")) {
+            // events have to be sent as they happen
+            return !type.equals("text/event-stream");
+        }
+        return type.equals("application/json") || type.equals("application/javascript") || type.equals("application/x-javascript") || type.equals("application/xml")
+                || type.equals("image/svg+xml") || type.endsWith("+json") || type.endsWith("+xml");
+    }
+
+    /**
+     * @return whether gzip is accepted, "gzip;q=0" refuses it even if "*"
+     *         is accepted.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.US);
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim().toLowerCase(Locale.US);
+                if (parameter.startsWith("q=")) {
+                    try {
+                        refused = Float.parseFloat(parameter.substring(2).trim()) <= 0f;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                return !refused;
+            }
+            if (name.equals("*")) {
+                wildcard = !refused;
+            }
+        }
+        return wildcard;
+    }
+
+    private byte[] gzip(byte[] body) {
+        Deflater deflater = acquire();
+        try {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(body.length / 3 + 64);
+            encoded.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(body);
+            deflater.finish();
+            byte[] chunk = BufferPool.shared().acquire(16 * 1024);
+            try {
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(chunk);
+                    encoded.write(chunk, 0, length);
+                }
+            } finally {
+                BufferPool.shared().release(chunk);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            byte[] trailer = new byte[8];
+            writeTrailer(trailer, crc.getValue(), body.length);
+            encoded.write(trailer, 0, trailer.length);
+            return encoded.toByteArray();
+        } finally {
+            release(deflater);
+        }
+    }
+
+    private static void writeTrailer(byte[] trailer, long crc, long size) {
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (crc >>> (8 * i));
+            trailer[4 + i] = (byte) (size >>> (8 * i));
+        }
+    }
+
+    private Deflater acquire() {
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        pooled.decrementAndGet();
+        return deflater;
+    }
+
+    private void release(Deflater deflater) {
+        deflater.reset();
+        if (pooled.incrementAndGet() <= POOL_SIZE) {
+            pool.offer(deflater);
+        } else {
+            pooled.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Encodes a stream while it is read, its deflater and buffer are handed
+     * back once the response closes the stream.
+     */
+    private final class GzipInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final CRC32 crc = new CRC32();
+
+        private byte[] input = BufferPool.shared().acquire(8192);
+
+        private Deflater deflater;
+
+        private long size;
+
+        private boolean eof;
+
+        // header, then deflated data, then trailer
+        private byte[] pending = GZIP_HEADER;
+
+        private int pendingPosition;
+
+        private boolean trailerWritten;
+
+        private GzipInputStream(InputStream in) {
+            this.in = in;
+            this.deflater = acquire();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (pending != null) {
+                    int length = Math.min(len, pending.length - pendingPosition);
+                    System.arraycopy(pending, pendingPosition, b, off, length);
+                    pendingPosition += length;
+                    if (pendingPosition == pending.length) {
+                        pending = null;
+                    }
+                    return length;
+                }
+                if (deflater == null) {
+                    throw new IOException("stream closed");
+                }
+                if (deflater.finished()) {
+                    if (trailerWritten) {
+                        return -1;
+                    }
+                    trailerWritten = true;
+                    pending = new byte[8];
+                    pendingPosition = 0;
+                    writeTrailer(pending, crc.getValue(), size);
+                    continue;
+                }
+                if (deflater.needsInput() && !eof) {
+                    int read = in.read(input, 0, input.length);
+                    if (read < 0) {
+                        eof = true;
+                        deflater.finish();
+                    } else if (read > 0) {
+                        crc.update(input, 0, read);
+                        size += read;
+                        deflater.setInput(input, 0, read);
+                    }
+                }
+                int length = deflater.deflate(b, off, len);
+                if (length > 0) {
+                    return length;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater != null) {
+                release(deflater);
+                deflater = null;
+                BufferPool.shared().release(input);
+                input = null;
+            }
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Request statistics of a single {@link RouterNanoHTTPD.UriResource}.
+ * <p/>
+ * Requests and status classes are counted once the handler returned a
+ * response. Bytes and latency are recorded when NanoHTTPD closes the
+ * response after sending it, so the latency covers the time to the last
+ * byte and a failed send still shows up. The bytes are those of the body
+ * before a possible gzip encoding.
+ */
+public class RouteMetrics {
+
+    private final AtomicLong requests = new AtomicLong();
+
+    // 1xx to 5xx, anything else is counted as 5xx
+    private final AtomicLongArray statusClasses = new AtomicLongArray(5);
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Counts the response and arranges for its bytes and latency to be
+     * recorded once it got sent.
+     * 
+     * @param startNanos
+     *            {@link System#nanoTime()} when the request was routed.
+     */
+    public Response record(Response response, long startNanos) {
+        requests.incrementAndGet();
+        if (response == null) {
+            statusClasses.incrementAndGet(4);
+            return null;
+        }
+        statusClasses.incrementAndGet(statusClassOf(response));
+        response.setData(new CountingInputStream(response, response.getData(), startNanos));
+        return response;
+    }
+
+    /**
+     * @return the body the response was created with, before it got counted.
+     */
+    static InputStream originalData(Response response) {
+        InputStream data = response.getData();
+        return (data instanceof CountingInputStream) ? ((CountingInputStream) data).getOriginal() : data;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @param statusClass
+     *            1 for informational up to 5 for server errors.
+     */
+    public long getRequests(int statusClass) {
+        if (statusClass < 1 || statusClass > 5) {
+            return 0;
+        }
+        return statusClasses.get(statusClass - 1);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    private static int statusClassOf(Response response) {
+        int status = response.getStatus() != null ? response.getStatus().getRequestStatus() : 500;
+        int statusClass = status / 100;
+        return statusClass >= 1 && statusClass <= 5 ? statusClass - 1 : 4;
+    }
+
+    private final class CountingInputStream extends FilterInputStream {
+
+        private final Response response;
+
+        private final long startNanos;
+
+        private long count;
+
+        private boolean closed;
+
+        private CountingInputStream(Response response, InputStream in, long startNanos) {
+            super(in);
+            this.response = response;
+            this.startNanos = startNanos;
+        }
+
+        private InputStream getOriginal() {
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                if (response instanceof FileResponse && response.getRequestMethod() != Method.HEAD) {
+                    // the body bypasses the stream
+                    count += ((FileResponse) response).getLength();
+                }
+                bytesSent.addAndGet(count);
+                latency.record((System.nanoTime() - startNanos) / 1000);
+            }
+            super.close();
+        }
+    }
+}
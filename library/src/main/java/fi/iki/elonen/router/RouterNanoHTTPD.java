@@ -38,13 +38,38 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -78,6 +103,82 @@ public class RouterNanoHTTPD extends NanoHTTPD {
         public Response other(String method, UriResource uriResource, Map<String, String> urlParams, IHTTPSession session);
     }
 
+    /**
+     * A responder which reads the body of POST and PUT requests itself, a
+     * piece at a time, instead of getting it buffered by
+     * {@link IHTTPSession#parseBody(Map)}. The router calls these methods
+     * instead of {@link UriResponder#post} and {@link UriResponder#put}.
+     */
+    public interface UriBodyResponder extends UriResponder {
+
+        public Response post(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session, RequestBody body) throws IOException;
+
+        public Response put(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session, RequestBody body) throws IOException;
+    }
+
+    /**
+     * A responder which accepts WebSocket connections on its route. Requests
+     * without a WebSocket handshake are answered by the other methods.
+     */
+    public interface UriWebSocketResponder extends UriResponder {
+
+        /**
+         * Not called while the server has as many sockets open as
+         * {@link RouterNanoHTTPD#setMaxWebSockets(int)} allows. Racing
+         * upgrades can still take the last socket in the meantime, the
+         * listener then gets no callback and the client 503 Service
+         * Unavailable.
+         * 
+         * @return the listener of the new socket, which stays in use after
+         *         the handler got released; null to refuse the socket with
+         *         403 Forbidden.
+         */
+        public WebSocket.Listener openWebSocket(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session);
+    }
+
+    /**
+     * How instances of a handler that is registered by class are created.
+     */
+    public enum HandlerScope {
+        /**
+         * One instance serves all requests, the default.
+         */
+        SINGLETON,
+        /**
+         * One instance per worker thread.
+         */
+        THREAD_LOCAL,
+        /**
+         * Instances are borrowed from a bounded pool and handed back after
+         * the request was processed.
+         */
+        POOLED,
+        /**
+         * A new instance for every request, for handlers which keep per
+         * request state in fields.
+         */
+        PER_REQUEST
+    }
+
+    /**
+     * Declares the {@link HandlerScope} of a handler class. Handlers without
+     * this annotation are treated as {@link HandlerScope#SINGLETON}.
+     */
+    @Documented
+    @Inherited
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE)
+    public @interface Lifecycle {
+
+        HandlerScope value() default HandlerScope.SINGLETON;
+
+        /**
+         * Maximum number of idle instances kept for
+         * {@link HandlerScope#POOLED}.
+         */
+        int poolSize() default 8;
+    }
+
     /**
      * General nanolet to inherit from if you provide stream data, only chucked
      * responses will be generated.
@@ -131,6 +232,199 @@ public class RouterNanoHTTPD extends NanoHTTPD {
         }
     }
 
+    /**
+     * General nanolet to inherit from if you accept uploads, the body of
+     * POST and PUT requests is streamed to the handler. Requests with a
+     * malformed body are answered with 400 Bad Request.
+     */
+    public static abstract class DefaultBodyHandler extends DefaultHandler implements UriBodyResponder {
+
+        public Response post(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session, RequestBody body) throws IOException {
+            return get(uriResource, urlParams, session);
+        }
+
+        public Response put(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session, RequestBody body) throws IOException {
+            return get(uriResource, urlParams, session);
+        }
+    }
+
+    /**
+     * General nanolet to inherit from if you push data over WebSockets, the
+     * handler listens to all its sockets. Plain requests are answered with
+     * 426 Upgrade Required.
+     */
+    public static abstract class DefaultWebSocketHandler extends DefaultHandler implements UriWebSocketResponder, WebSocket.Listener {
+
+        @Override
+        public String getText() {
+            return "WebSocket connections only";
+        }
+
+        @Override
+        public String getMimeType() {
+            return "text/plain";
+        }
+
+        @Override
+        public IStatus getStatus() {
+            return WebSocket.UPGRADE_REQUIRED;
+        }
+
+        @Override
+        public Response get(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session) {
+            Response response = super.get(uriResource, urlParams, session);
+            response.addHeader("Upgrade", "websocket");
+            return response;
+        }
+
+        @Override
+        public WebSocket.Listener openWebSocket(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session) {
+            return this;
+        }
+
+        @Override
+        public void onOpen(WebSocket socket) {
+        }
+
+        @Override
+        public void onMessage(WebSocket socket, String text) {
+        }
+
+        @Override
+        public void onMessage(WebSocket socket, byte[] data) {
+        }
+
+        @Override
+        public void onClose(WebSocket socket, int code, String reason) {
+        }
+    }
+
+    /**
+     * General nanolet for a text which rarely changes. The text is encoded
+     * once and every response is served from the same bytes, with a
+     * precomputed <code>Content-Length</code> and, for successful responses,
+     * an entity tag clients can revalidate against. The text is only encoded
+     * again once {@link #getText()} returns a different string instance, the
+     * {@link ResponseCompressor} keeps its gzip encoding along with it. Without
+     * a compression threshold the text is served unencoded, it is not gzipped
+     * again for every response.
+     */
+    public static abstract class StaticTextHandler extends DefaultHandler {
+
+        private static final class EncodedText {
+
+            private final String text;
+
+            private final byte[] data;
+
+            private final ResponseCompressor.CachedBody body;
+
+            private final String etag;
+
+            private EncodedText(String text) {
+                this.text = text;
+                this.data = encode(text);
+                this.body = new ResponseCompressor.CachedBody(data);
+                this.etag = createETag(data);
+            }
+        }
+
+        private volatile EncodedText encodedText;
+
+        @Override
+        public Response get(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session) {
+            EncodedText current = getEncodedText();
+            IStatus status = getStatus();
+            boolean cacheable = status != null && status.getRequestStatus() / 100 == 2;
+            if (cacheable && StaticPageHandler.isNotModified(session, current.etag, 0)) {
+                return StaticPageHandler.newNotModifiedResponse(current.etag, 0);
+            }
+            Response response = NanoHTTPD.newFixedLengthResponse(status, getMimeType(), current.body.newStream(), current.data.length);
+            if (cacheable) {
+                response.addHeader("ETag", current.etag);
+            }
+            return response;
+        }
+
+        private EncodedText getEncodedText() {
+            String text = getText();
+            EncodedText current = encodedText;
+            // a racing update only costs another encoding
+            if (current == null || current.text != text) {
+                current = new EncodedText(text);
+                encodedText = current;
+            }
+            return current;
+        }
+
+        private static byte[] encode(String text) {
+            if (text == null) {
+                return new byte[0];
+            }
+            try {
+                return text.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String createETag(byte[] data) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+                StringBuilder etag = new StringBuilder(18).append('"');
+                for (int i = 0; i < 8; i++) {
+                    etag.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+                }
+                return etag.append('"').toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Subscribes clients to the {@link EventTopic} given as init parameter of
+     * the route, every client gets a <code>text/event-stream</code> which
+     * stays open until the client or the topic ends it. Override
+     * {@link #getTopic} to pick the topic by the request.
+     * <p/>
+     * An open stream keeps the thread of its connection, see
+     * {@link RouterNanoHTTPD#setMaxEventStreams(int)}.
+     */
+    public static class EventStreamHandler extends DefaultStreamHandler {
+
+        @Override
+        public String getMimeType() {
+            return "text/event-stream";
+        }
+
+        @Override
+        public IStatus getStatus() {
+            return Status.OK;
+        }
+
+        @Override
+        public InputStream getData() {
+            throw new IllegalStateException("this method should not be called in an event stream nanolet");
+        }
+
+        /**
+         * @return the topic to subscribe to, null if there is none.
+         */
+        public EventTopic getTopic(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session) {
+            return uriResource.initParameter(EventTopic.class);
+        }
+
+        @Override
+        public Response get(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session) {
+            EventTopic topic = getTopic(uriResource, urlParams, session);
+            if (topic == null) {
+                return NanoHTTPD.newFixedLengthResponse(Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "No such event stream");
+            }
+            return topic.subscribe(session);
+        }
+    }
+
     /**
      * General nanolet to print debug info's as a html page.
      */
@@ -179,6 +473,14 @@ public class RouterNanoHTTPD extends NanoHTTPD {
      */
     public static class StaticPageHandler extends DefaultHandler {
 
+        private static final Error404UriHandler ERROR_404_HANDLER = new Error404UriHandler();
+
+        /**
+         * Mappings of files between 256 KiB and 16 MiB, smaller ones are
+         * transferred from their channel.
+         */
+        private static final FileResponse.MappedFileCache MAPPED_FILES = new FileResponse.MappedFileCache(8, 256 * 1024, 16 * 1024 * 1024);
+
         private static String[] getPathArray(String uri) {
             String array[] = uri.split("/");
             ArrayList<String> pathArray = new ArrayList<String>();
@@ -226,25 +528,141 @@ public class RouterNanoHTTPD extends NanoHTTPD {
                 }
             }
             if (!fileOrdirectory.exists() || !fileOrdirectory.isFile()) {
-                return new Error404UriHandler().get(uriResource, urlParams, session);
+                return ERROR_404_HANDLER.get(uriResource, urlParams, session);
             } else {
+                // size and mtime are a cheap weak validator
+                long lastModified = fileOrdirectory.lastModified();
+                String etag = "W/\"" + Long.toHexString(fileOrdirectory.length()) + "-" + Long.toHexString(lastModified) + "\"";
+                if (isNotModified(session, etag, lastModified)) {
+                    return newNotModifiedResponse(etag, lastModified);
+                }
                 try {
-                    return NanoHTTPD.newChunkedResponse(getStatus(), getMimeTypeForFile(fileOrdirectory.getName()), fileToInputStream(fileOrdirectory));
+                    String mimeType = getMimeTypeForFile(fileOrdirectory.getName());
+                    RangeRequest range = RangeRequest.parse(session, fileOrdirectory.length(), etag, lastModified);
+                    Response response;
+                    if (range != null) {
+                        response = range.createResponse(mimeType, RangeRequest.fileSource(fileOrdirectory));
+                    } else {
+                        response = newFileResponse(fileOrdirectory, mimeType);
+                        response.addHeader("Accept-Ranges", "bytes");
+                    }
+                    addValidators(response, etag, lastModified);
+                    return response;
                 } catch (IOException ioe) {
                     return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.REQUEST_TIMEOUT, "text/plain", null);
                 }
             }
         }
 
+        /**
+         * @deprecated files are sent by {@link #newFileResponse(File, String)}
+         *             without an intermediate stream
+         */
+        @Deprecated
         protected BufferedInputStream fileToInputStream(File fileOrdirectory) throws IOException {
-            return new BufferedInputStream(new FileInputStream(fileOrdirectory));
+            return BufferPool.shared().newBufferedInputStream(new FileInputStream(fileOrdirectory));
+        }
+
+        /**
+         * Creates a fixed length response for the whole file, big files are
+         * served from a shared memory mapping.
+         */
+        protected Response newFileResponse(File file, String mimeType) throws IOException {
+            MappedByteBuffer mapped = MAPPED_FILES.get(file);
+            if (mapped != null) {
+                return FileResponse.newMappedResponse(getStatus(), mimeType, mapped);
+            }
+            return FileResponse.newFileResponse(getStatus(), mimeType, file);
+        }
+
+        /**
+         * Evaluates <code>If-None-Match</code> and, if that is absent,
+         * <code>If-Modified-Since</code> of GET and HEAD requests.
+         * 
+         * @param etag
+         *            the entity tag of the representation or <code>null</code>
+         * @param lastModified
+         *            the modification time in milliseconds or 0 if unknown
+         * @return true if the client copy is still valid and a 304 should be
+         *         sent
+         */
+        protected static boolean isNotModified(IHTTPSession session, String etag, long lastModified) {
+            Method method = session.getMethod();
+            if (method != Method.GET && method != Method.HEAD) {
+                return false;
+            }
+            Map<String, String> headers = session.getHeaders();
+            String ifNoneMatch = headers.get("if-none-match");
+            if (ifNoneMatch != null) {
+                return etag != null && etagMatches(ifNoneMatch, etag);
+            }
+            String ifModifiedSince = headers.get("if-modified-since");
+            if (ifModifiedSince != null && lastModified > 0) {
+                long since = parseHttpDate(ifModifiedSince);
+                // http dates only have a resolution of seconds
+                return since >= 0 && lastModified / 1000 <= since / 1000;
+            }
+            return false;
+        }
+
+        protected static Response newNotModifiedResponse(String etag, long lastModified) {
+            Response response = NanoHTTPD.newFixedLengthResponse(Status.NOT_MODIFIED, null, null);
+            addValidators(response, etag, lastModified);
+            return response;
+        }
+
+        protected static void addValidators(Response response, String etag, long lastModified) {
+            if (etag != null) {
+                response.addHeader("ETag", etag);
+            }
+            if (lastModified > 0) {
+                response.addHeader("Last-Modified", formatHttpDate(lastModified));
+            }
+        }
+
+        /**
+         * Weak comparison, as required for If-None-Match.
+         */
+        private static boolean etagMatches(String ifNoneMatch, String etag) {
+            String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if ("*".equals(candidate)) {
+                    return true;
+                }
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals(opaqueTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static SimpleDateFormat createHttpDateFormat() {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+
+        private static String formatHttpDate(long time) {
+            return createHttpDateFormat().format(new Date(time));
+        }
+
+        static long parseHttpDate(String value) {
+            try {
+                return createHttpDateFormat().parse(value.trim()).getTime();
+            } catch (ParseException e) {
+                return -1;
+            }
         }
     }
 
     /**
      * Handling error 404 - unrecognized urls
      */
-    public static class Error404UriHandler extends DefaultHandler {
+    public static class Error404UriHandler extends StaticTextHandler {
 
         public String getText() {
             return "<html><body><h3>Error 404: the requested page doesn't exist.</h3></body></html>";
@@ -264,7 +682,7 @@ public class RouterNanoHTTPD extends NanoHTTPD {
     /**
      * Handling index
      */
-    public static class IndexHandler extends DefaultHandler {
+    public static class IndexHandler extends StaticTextHandler {
 
         public String getText() {
             return "<html><body><h2>Hello world!</h3></body></html>";
@@ -282,7 +700,7 @@ public class RouterNanoHTTPD extends NanoHTTPD {
 
     }
 
-    public static class NotImplementedHandler extends DefaultHandler {
+    public static class NotImplementedHandler extends StaticTextHandler {
 
         public String getText() {
             return "<html><body><h2>The uri is mapped in the router, but no handler is specified. <br> Status: Not implemented!</h3></body></html>";
@@ -323,28 +741,35 @@ public class RouterNanoHTTPD extends NanoHTTPD {
 
         private final String uri;
 
-        private final Pattern uriPattern;
+        private Pattern uriPattern;
+
+        private UriRouteTrie.Segments segments;
+
+        private UriRouteTrie singleRouteTrie;
 
         private final int priority;
 
         private final Class<?> handler;
 
+        private final HandlerProvider handlerProvider;
+
         private final Object handlerObject;
 
         private final Object[] initParameter;
 
         private List<String> uriParams = new ArrayList<String>();
 
+        private final RouteMetrics metrics = new RouteMetrics();
+
         public UriResource(String uri, int priority, Object handlerObject, Object... initParameter) {
             this.handler = null;
+            this.handlerProvider = null;
             this.handlerObject = handlerObject;
             this.initParameter = initParameter;
             if (uri != null) {
                 this.uri = normalizeUri(uri);
                 parse();
-                this.uriPattern = createUriPattern();
             } else {
-                this.uriPattern = null;
                 this.uri = null;
             }
             this.priority = priority + uriParams.size() * 1000;
@@ -352,20 +777,25 @@ public class RouterNanoHTTPD extends NanoHTTPD {
 
         public UriResource(String uri, int priority, Class<?> handler, Object... initParameter) {
             this.handler = handler;
+            this.handlerProvider = handler != null ? HandlerProvider.forClass(handler) : null;
             this.handlerObject = null;
             this.initParameter = initParameter;
             if (uri != null) {
                 this.uri = normalizeUri(uri);
                 parse();
-                this.uriPattern = createUriPattern();
             } else {
-                this.uriPattern = null;
                 this.uri = null;
             }
             this.priority = priority + uriParams.size() * 1000;
         }
 
         private void parse() {
+            segments = UriRouteTrie.compile(uri);
+            if (segments != null) {
+                Collections.addAll(uriParams, segments.params);
+            } else {
+                uriPattern = createUriPattern();
+            }
         }
 
         private Pattern createUriPattern() {
@@ -384,13 +814,44 @@ public class RouterNanoHTTPD extends NanoHTTPD {
         }
 
         public Response process(Map<String, String> urlParams, IHTTPSession session) {
+            return process(urlParams, session, RequestBody.DEFAULT_MEMORY_THRESHOLD, null, null, false);
+        }
+
+        Response process(Map<String, String> urlParams, IHTTPSession session, int bodyMemoryThreshold, File bodyTempDir, ResponseCompressor compressor,
+                boolean webSocketsFull) {
+            long startNanos = System.nanoTime();
+            Response response = processRequest(urlParams, session, bodyMemoryThreshold, bodyTempDir, webSocketsFull);
+            if (compressor != null && response != null) {
+                // before the metrics wrap the body, so they count the bytes
+                // actually sent
+                compressor.compress(session, response);
+            }
+            return metrics.record(response, startNanos);
+        }
+
+        private Response processRequest(Map<String, String> urlParams, IHTTPSession session, int bodyMemoryThreshold, File bodyTempDir, boolean webSocketsFull) {
             String error = "General error!";
             if (handlerObject != null || handler != null) {
+                Object object = null;
                 try {
-                    Object object = ((handlerObject != null) ? handlerObject : handler.newInstance());
+                    object = ((handlerObject != null) ? handlerObject : handlerProvider.acquire());
                     if (object instanceof UriResponder) {
                         UriResponder responder = (UriResponder) object;
-                        switch (session.getMethod()) {
+                        Method method = session.getMethod();
+                        if (responder instanceof UriWebSocketResponder && WebSocket.isUpgradeRequest(session)) {
+                            if (webSocketsFull) {
+                                return newUnavailableResponse("Too many WebSockets");
+                            }
+                            WebSocket.Listener listener = ((UriWebSocketResponder) responder).openWebSocket(this, urlParams, session);
+                            if (listener == null) {
+                                return NanoHTTPD.newFixedLengthResponse(Status.FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT, "WebSocket refused");
+                            }
+                            return WebSocket.newUpgradeResponse(session, urlParams, listener);
+                        }
+                        if (responder instanceof UriBodyResponder && (method == Method.POST || method == Method.PUT)) {
+                            return processBody((UriBodyResponder) responder, urlParams, session, bodyMemoryThreshold, bodyTempDir);
+                        }
+                        switch (method) {
                             case GET:
                                 return responder.get(this, urlParams, session);
                             case POST:
@@ -413,11 +874,45 @@ public class RouterNanoHTTPD extends NanoHTTPD {
                 } catch (Exception e) {
                     error = "Error: " + e.getClass().getName() + " : " + e.getMessage();
                     LOG.log(Level.SEVERE, error, e);
+                } finally {
+                    if (handlerProvider != null && object != null) {
+                        handlerProvider.release(object);
+                    }
                 }
             }
             return NanoHTTPD.newFixedLengthResponse(Status.INTERNAL_ERROR, "text/plain", error);
         }
 
+        private Response processBody(UriBodyResponder responder, Map<String, String> urlParams, IHTTPSession session, int bodyMemoryThreshold, File bodyTempDir) {
+            RequestBody body;
+            try {
+                body = new RequestBody(session, bodyMemoryThreshold, bodyTempDir);
+            } catch (RequestBody.MalformedBodyException e) {
+                // the end of the body is unknown
+                Response response = NanoHTTPD.newFixedLengthResponse(Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT, e.getMessage());
+                response.addHeader("Connection", "close");
+                return response;
+            }
+            Response response;
+            try {
+                if (session.getMethod() == Method.POST) {
+                    response = responder.post(this, urlParams, session, body);
+                } else {
+                    response = responder.put(this, urlParams, session, body);
+                }
+            } catch (RequestBody.MalformedBodyException e) {
+                response = NanoHTTPD.newFixedLengthResponse(Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT, e.getMessage());
+            } catch (Exception e) {
+                String error = "Error: " + e.getClass().getName() + " : " + e.getMessage();
+                LOG.log(Level.SEVERE, error, e);
+                response = NanoHTTPD.newFixedLengthResponse(Status.INTERNAL_ERROR, "text/plain", error);
+            }
+            if (!body.finish()) {
+                response.addHeader("Connection", "close");
+            }
+            return response;
+        }
+
         @Override
         public String toString() {
             return new StringBuilder("UrlResource{uri='").append((uri == null ? "/" : uri))//
@@ -430,6 +925,13 @@ public class RouterNanoHTTPD extends NanoHTTPD {
             return uri;
         }
 
+        /**
+         * @return the statistics of the requests served by this resource.
+         */
+        public RouteMetrics getMetrics() {
+            return metrics;
+        }
+
         public <T> T initParameter(Class<T> paramClazz) {
             return initParameter(0, paramClazz);
         }
@@ -442,7 +944,26 @@ public class RouterNanoHTTPD extends NanoHTTPD {
             return null;
         }
 
+        int getPriority() {
+            return priority;
+        }
+
+        UriRouteTrie.Segments getSegments() {
+            return segments;
+        }
+
         public Map<String, String> match(String url) {
+            if (segments == null) {
+                return matchPattern(url);
+            }
+            if (singleRouteTrie == null) {
+                singleRouteTrie = new UriRouteTrie(Collections.singletonList(this));
+            }
+            UriRouteTrie.Match match = singleRouteTrie.match(url);
+            return match != null ? match.params : null;
+        }
+
+        Map<String, String> matchPattern(String url) {
             Matcher matcher = uriPattern.matcher(url);
             if (matcher.matches()) {
                 if (uriParams.size() > 0) {
@@ -462,14 +983,109 @@ public class RouterNanoHTTPD extends NanoHTTPD {
 
     public static class UriRouter {
 
-        private List<UriResource> mappings;
+        /**
+         * Immutable snapshot of the routes, a change publishes a new one.
+         */
+        private static final class RouteTable {
+
+            private final List<UriResource> mappings;
 
-        private UriResource error404Url;
+            private final UriRouteTrie routeTrie;
 
-        private Class<?> notImplemented;
+            private RouteTable(List<UriResource> mappings) {
+                this.mappings = Collections.unmodifiableList(mappings);
+                this.routeTrie = new UriRouteTrie(mappings);
+            }
+        }
+
+        /**
+         * Collects route changes which are applied with a single sort and
+         * compile of the route table by {@link #commit()}.
+         */
+        public class RouteBatch {
+
+            // either an UriResource to add or the normalized uri to remove
+            private final List<Object> changes = new ArrayList<Object>();
+
+            private RouteBatch() {
+            }
+
+            public RouteBatch addRoute(String url, Class<?> handler, Object... initParameter) {
+                return addRoute(url, 100, handler, initParameter);
+            }
+
+            public RouteBatch addRoute(String url, Object handlerObject, Object... initParameter) {
+                return addRoute(url, 100, handlerObject, initParameter);
+            }
+
+            public RouteBatch removeRoute(String url) {
+                changes.add(normalizeUri(url));
+                return this;
+            }
+
+            private RouteBatch addRoute(String url, int priority, Class<?> handler, Object... initParameter) {
+                if (url != null) {
+                    if (handler != null) {
+                        changes.add(new UriResource(url, priority + sequence.getAndIncrement(), handler, initParameter));
+                    } else {
+                        changes.add(new UriResource(url, priority + sequence.getAndIncrement(), notImplemented));
+                    }
+                }
+                return this;
+            }
+
+            private RouteBatch addRoute(String url, int priority, Object handlerObject, Object... initParameter) {
+                if (url != null) {
+                    if (handlerObject != null) {
+                        changes.add(new UriResource(url, priority + sequence.getAndIncrement(), handlerObject, initParameter));
+                    } else {
+                        changes.add(new UriResource(url, priority + sequence.getAndIncrement(), notImplemented));
+                    }
+                }
+                return this;
+            }
+
+            /**
+             * Applies the collected changes and atomically publishes the new
+             * route table. Requests in flight keep using the previous one.
+             */
+            public void commit() {
+                RouteTable current;
+                RouteTable next;
+                do {
+                    current = routeTable.get();
+                    List<UriResource> mappings = new ArrayList<UriResource>(current.mappings);
+                    for (Object change : changes) {
+                        if (change instanceof UriResource) {
+                            mappings.add((UriResource) change);
+                        } else {
+                            removeMapping(mappings, (String) change);
+                        }
+                    }
+                    sortMappings(mappings);
+                    next = new RouteTable(mappings);
+                } while (!routeTable.compareAndSet(current, next));
+            }
+        }
+
+        private final AtomicReference<RouteTable> routeTable;
+
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        private volatile UriResource error404Url;
+
+        private volatile Class<?> notImplemented;
+
+        private volatile RateLimiter rateLimiter;
+
+        private volatile int bodyMemoryThreshold = RequestBody.DEFAULT_MEMORY_THRESHOLD;
+
+        private volatile File bodyTempDir;
+
+        private final ResponseCompressor compressor = new ResponseCompressor(0);
 
         public UriRouter() {
-            mappings = new ArrayList<UriResource>();
+            routeTable = new AtomicReference<RouteTable>(new RouteTable(new ArrayList<UriResource>()));
         }
 
         /**
@@ -478,47 +1094,105 @@ public class RouterNanoHTTPD extends NanoHTTPD {
          * e.g. mapping 1 = /user/:id mapping 2 = /user/help if the incoming uri
          * is www.example.com/user/help - mapping 2 is returned if the incoming
          * uri is www.example.com/user/3232 - mapping 1 is returned
+         * <p/>
+         * The lookup goes through a {@link UriRouteTrie} compiled from the
+         * mappings, only routes which really need a regular expression are
+         * matched one by one.
+         * <p/>
+         * With a {@link RateLimiter}, requests over the limit of their route
+         * are answered right away, they are counted by the route metrics.
          * 
          * @param session
          * @return
          */
         public Response process(IHTTPSession session) {
+            return process(session, false);
+        }
+
+        /**
+         * @param webSocketsFull
+         *            whether WebSocket upgrades are refused without asking
+         *            their responder
+         */
+        Response process(IHTTPSession session, boolean webSocketsFull) {
             String work = normalizeUri(session.getUri());
-            Map<String, String> params = null;
-            UriResource uriResource = error404Url;
-            for (UriResource u : mappings) {
-                params = u.match(work);
-                if (params != null) {
-                    uriResource = u;
-                    break;
+            UriRouteTrie.Match match = routeTable.get().routeTrie.match(work);
+            UriResource resource = (match != null) ? match.resource : error404Url;
+            RateLimiter limiter = this.rateLimiter;
+            if (limiter != null) {
+                Response rejected = limiter.admit(session, resource);
+                if (rejected != null) {
+                    return resource.getMetrics().record(rejected, System.nanoTime());
                 }
             }
-            return uriResource.process(params, session);
+            return resource.process(match != null ? match.params : null, session, bodyMemoryThreshold, bodyTempDir, compressor.isEnabled() ? compressor : null, webSocketsFull);
+        }
+
+        /**
+         * @param rateLimiter
+         *            checked before every request, null for no limits
+         */
+        public void setRateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+        }
+
+        /**
+         * @param memoryThreshold
+         *            bytes of a {@link RequestBody} buffered in memory before
+         *            spilling to a file
+         * @param tempDir
+         *            directory of the spilled bodies, null for the default
+         *            temporary directory
+         */
+        public void setBodyBuffering(int memoryThreshold, File tempDir) {
+            this.bodyMemoryThreshold = Math.max(0, memoryThreshold);
+            this.bodyTempDir = tempDir;
+        }
+
+        /**
+         * @param minSize
+         *            smallest body in bytes the {@link ResponseCompressor}
+         *            encodes, 0 disables it
+         */
+        public void setCompressionThreshold(int minSize) {
+            compressor.setMinSize(minSize);
+        }
+
+        boolean isCompressing() {
+            return compressor.isEnabled();
+        }
+
+        /**
+         * @return the current routes, sorted by priority.
+         */
+        public List<UriResource> getMappings() {
+            return routeTable.get().mappings;
+        }
+
+        /**
+         * @return the resource serving requests no route matched.
+         */
+        public UriResource getNotFoundResource() {
+            return error404Url;
+        }
+
+        public RouteBatch newRouteBatch() {
+            return new RouteBatch();
         }
 
         private void addRoute(String url, int priority, Class<?> handler, Object... initParameter) {
             if (url != null) {
-                if (handler != null) {
-                    mappings.add(new UriResource(url, priority + mappings.size(), handler, initParameter));
-                } else {
-                    mappings.add(new UriResource(url, priority + mappings.size(), notImplemented));
-                }
-                sortMappings();
+                newRouteBatch().addRoute(url, priority, handler, initParameter).commit();
             }
         }
 
         private void addRoute(String url, int priority, Object handlerObject, Object... initParameter) {
             if (url != null) {
-                if (handlerObject != null) {
-                    mappings.add(new UriResource(url, priority + mappings.size(), handlerObject, initParameter));
-                } else {
-                    mappings.add(new UriResource(url, priority + mappings.size(), notImplemented));
-                }
-                sortMappings();
+                newRouteBatch().addRoute(url, priority, handlerObject, initParameter).commit();
             }
         }
 
-        private void sortMappings() {
+        private static void sortMappings(List<UriResource> mappings) {
             Collections.sort(mappings, new Comparator<UriResource>() {
 
                 @Override
@@ -529,7 +1203,10 @@ public class RouterNanoHTTPD extends NanoHTTPD {
         }
 
         private void removeRoute(String url) {
-            String uriToDelete = normalizeUri(url);
+            newRouteBatch().removeRoute(url).commit();
+        }
+
+        private static void removeMapping(List<UriResource> mappings, String uriToDelete) {
             Iterator<UriResource> iter = mappings.iterator();
             while (iter.hasNext()) {
                 UriResource uriResource = iter.next();
@@ -556,6 +1233,43 @@ public class RouterNanoHTTPD extends NanoHTTPD {
 
     protected UriRouter router;
 
+    private volatile SelectorEngine selectorEngine;
+
+    private final KeepAliveManager keepAliveManager = new KeepAliveManager();
+
+    /**
+     * Streams of HTTP/2 connections which may wait for each worker.
+     */
+    private static final int HTTP2_QUEUED_STREAMS_PER_WORKER = 8;
+
+    private volatile int http2Workers;
+
+    private ExecutorService http2WorkerPool;
+
+    private final AtomicInteger openWebSockets = new AtomicInteger();
+
+    private volatile int maxWebSockets;
+
+    private final AtomicInteger openEventStreams = new AtomicInteger();
+
+    private volatile int maxEventStreams;
+
+    private final Runnable eventStreamClosed = new Runnable() {
+
+        @Override
+        public void run() {
+            openEventStreams.decrementAndGet();
+        }
+    };
+
+    private final Runnable webSocketClosed = new Runnable() {
+
+        @Override
+        public void run() {
+            openWebSockets.decrementAndGet();
+        }
+    };
+
     public RouterNanoHTTPD(int port) {
         super(port);
         router = new UriRouter();
@@ -588,9 +1302,271 @@ public class RouterNanoHTTPD extends NanoHTTPD {
         router.removeRoute(url);
     }
 
+    /**
+     * @return a batch to add and remove several routes at once, the routes are
+     *         published by {@link UriRouter.RouteBatch#commit()}.
+     */
+    public UriRouter.RouteBatch newRouteBatch() {
+        return router.newRouteBatch();
+    }
+
+    /**
+     * Serves connections with a few selector based event loops instead of a
+     * thread per connection, handlers are run unchanged on the given number
+     * of workers. Call it before {@link #start()}, it replaces the server
+     * socket factory and the async runner.
+     * 
+     * @return the engine, to query the number of open connections
+     */
+    public SelectorEngine useSelectorEngine(int eventLoops, int workers) {
+        if (http2Workers > 0) {
+            throw new IllegalStateException("HTTP/2 is not supported by the selector engine");
+        }
+        SelectorEngine engine = new SelectorEngine(this, eventLoops, workers);
+        setServerSocketFactory(engine);
+        setAsyncRunner(engine);
+        this.selectorEngine = engine;
+        return engine;
+    }
+
+    /**
+     * Limits the requests of every client, see {@link RateLimiter}.
+     * 
+     * @param rateLimiter
+     *            null for no limits
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        router.setRateLimiter(rateLimiter);
+    }
+
+    /**
+     * Sets how the bodies {@link UriBodyResponder}s buffer are kept, see
+     * {@link SpillBuffer}.
+     * 
+     * @param memoryThreshold
+     *            bytes kept in memory before spilling to a file
+     * @param tempDir
+     *            directory of the spilled bodies, null for the default
+     *            temporary directory
+     */
+    public void setBodyBuffering(int memoryThreshold, File tempDir) {
+        router.setBodyBuffering(memoryThreshold, tempDir);
+    }
+
+    /**
+     * Serves cleartext HTTP/2 to clients which start a connection with the
+     * HTTP/2 preface or ask to upgrade with "Upgrade: h2c", besides HTTP/1.1.
+     * The streams of all connections are served on the given number of
+     * workers, the thread of a connection only reads its frames. A connection
+     * uses at most half of them, streams beyond the queue of the workers are
+     * refused. Not available together with the {@link SelectorEngine}.
+     * 
+     * @see Http2Connection
+     */
+    public void enableHttp2(int workers) {
+        if (selectorEngine != null) {
+            throw new IllegalStateException("HTTP/2 is not supported by the selector engine");
+        }
+        this.http2Workers = Math.max(1, workers);
+    }
+
+    synchronized ExecutorService getHttp2Workers() {
+        if (http2WorkerPool == null) {
+            final AtomicInteger workerNumber = new AtomicInteger();
+            // a full queue refuses the streams, instead of letting them wait
+            // without limit
+            http2WorkerPool = new ThreadPoolExecutor(http2Workers, http2Workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(http2Workers
+                    * HTTP2_QUEUED_STREAMS_PER_WORKER), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "NanoHttpd HTTP/2 Worker #" + workerNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return http2WorkerPool;
+    }
+
+    /**
+     * Gzip encodes responses of compressible types on the fly, see
+     * {@link ResponseCompressor}. Off by default,
+     * {@value ResponseCompressor#SUGGESTED_MIN_SIZE} bytes are a reasonable
+     * threshold.
+     * 
+     * @param minSize
+     *            smallest body in bytes which gets encoded, 0 to leave it to
+     *            NanoHTTPD, which encodes every text response
+     */
+    public void setCompressionThreshold(int minSize) {
+        router.setCompressionThreshold(minSize);
+    }
+
+    /**
+     * Closes keep-alive connections waiting longer than this for their next
+     * request. With the blocking core the socket read timeout passed to
+     * {@link #start(int)} still applies, if it is shorter.
+     * 
+     * @param idleTimeout
+     *            in milliseconds, 0 to only rely on the socket read timeout
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        keepAliveManager.setIdleTimeout(idleTimeout);
+    }
+
+    /**
+     * Limits the number of idle keep-alive connections, the ones idle for the
+     * longest time are closed first.
+     * 
+     * @param maxKeepAliveConnections
+     *            the limit or 0 for no limit
+     */
+    public void setMaxKeepAliveConnections(int maxKeepAliveConnections) {
+        keepAliveManager.setMaxIdleConnections(maxKeepAliveConnections);
+    }
+
+    /**
+     * Closes connections after the given number of requests.
+     * 
+     * @param maxRequestsPerConnection
+     *            the limit or 0 for no limit
+     */
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        keepAliveManager.setMaxRequests(maxRequestsPerConnection);
+    }
+
+    /**
+     * Limits the number of open WebSockets, further upgrade requests are
+     * answered with 503 Service Unavailable. A socket keeps the thread of its
+     * connection until it is closed, with a bounded worker pool the limit
+     * should leave enough workers to the other clients.
+     * 
+     * @param maxWebSockets
+     *            the limit or 0 for no limit
+     */
+    public void setMaxWebSockets(int maxWebSockets) {
+        this.maxWebSockets = Math.max(0, maxWebSockets);
+    }
+
+    /**
+     * Limits the number of open {@link EventTopic} streams of all topics,
+     * further subscriptions are answered with 503 Service Unavailable. Like
+     * a WebSocket, a stream keeps the thread of its connection until it
+     * ends. Browsers do not retry an event source which got refused, the
+     * page has to open it again.
+     * 
+     * @param maxEventStreams
+     *            the limit or 0 for no limit
+     */
+    public void setMaxEventStreams(int maxEventStreams) {
+        this.maxEventStreams = Math.max(0, maxEventStreams);
+    }
+
+    KeepAliveManager getKeepAliveManager() {
+        return keepAliveManager;
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        SelectorEngine engine = this.selectorEngine;
+        if (engine != null) {
+            engine.register(finalAccept);
+            return super.createClientHandler(finalAccept, inputStream);
+        }
+        InputStream trackedStream = keepAliveManager.track(finalAccept, inputStream);
+        if (http2Workers > 0) {
+            trackedStream = new Http2Connection.PrefaceDetector(this, finalAccept, trackedStream);
+        }
+        return super.createClientHandler(finalAccept, trackedStream);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        keepAliveManager.stop();
+        synchronized (this) {
+            if (http2WorkerPool != null) {
+                http2WorkerPool.shutdownNow();
+                http2WorkerPool = null;
+            }
+        }
+    }
+
+    /**
+     * Creates a session reading one request from the given stream, used by
+     * the {@link SelectorEngine}.
+     */
+    IHTTPSession createSession(InputStream inputStream, OutputStream outputStream, InetAddress remoteAddress) {
+        return new HTTPSession(getTempFileManagerFactory().create(), inputStream, outputStream, remoteAddress);
+    }
+
+    /**
+     * Responses which already carry a content coding, like precompressed
+     * assets, are sent as they are.
+     */
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        if (router.isCompressing()) {
+            // already decided by the compressor
+            return false;
+        }
+        // byte ranges refer to the unencoded representation, also the ones a
+        // client resumes after a full response advertising them, a strong etag
+        // would be shared by both codings without a vary, a cached body would
+        // be encoded again for every response, and the gzip stream would hold
+        // back events until its buffer is full
+        final String etag = r.getHeader("etag");
+        return r.getHeader("content-encoding") == null && r.getHeader("accept-ranges") == null && r.getStatus() != Response.Status.PARTIAL_CONTENT
+                && (etag == null || etag.startsWith("W/")) && !ResponseCompressor.CachedBody.isCached(RouteMetrics.originalData(r)) && !"text/event-stream".equals(r.getMimeType())
+                && super.useGzipWhenAccepted(r);
+    }
+
+    /**
+     * Replaces a response which would keep its connection over the limit,
+     * closing it releases what it holds.
+     */
+    private static Response refuse(Response response, String message) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Could not close refused response", e);
+        }
+        return newUnavailableResponse(message);
+    }
+
+    private static Response newUnavailableResponse(String message) {
+        Response unavailable = NanoHTTPD.newFixedLengthResponse(WebSocket.SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, message);
+        unavailable.addHeader("Retry-After", "5");
+        return unavailable;
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
-        // Try to find match
-        return router.process(session);
+        if (http2Workers > 0 && Http2Connection.isUpgradeRequest(session)) {
+            Response upgrade = Http2Connection.newUpgradeResponse(this, getHttp2Workers(), session);
+            if (upgrade != null) {
+                return upgrade;
+            }
+        }
+        if (selectorEngine != null && WebSocket.isUpgradeRequest(session)) {
+            // the selector engine owns the connections, they can not be handed over
+            return NanoHTTPD.newFixedLengthResponse(Status.NOT_IMPLEMENTED, NanoHTTPD.MIME_PLAINTEXT, "WebSockets are not supported by the selector engine");
+        }
+        // Try to find match, without opening sockets which would be refused
+        // anyway; racing upgrades are caught once they are counted
+        int maxWebSockets = this.maxWebSockets;
+        Response response = router.process(session, maxWebSockets > 0 && openWebSockets.get() >= maxWebSockets);
+        if (WebSocket.whenClosed(response, webSocketClosed) && openWebSockets.incrementAndGet() > maxWebSockets && maxWebSockets > 0) {
+            response = refuse(response, "Too many WebSockets");
+        } else if (EventTopic.whenClosed(response, eventStreamClosed) && openEventStreams.incrementAndGet() > maxEventStreams && maxEventStreams > 0) {
+            response = refuse(response, "Too many event streams");
+        }
+        if (response != null && response.getStatus() == Status.SWITCH_PROTOCOL) {
+            keepAliveManager.upgrade();
+        } else {
+            keepAliveManager.onResponse(response);
+        }
+        return response;
     }
 }
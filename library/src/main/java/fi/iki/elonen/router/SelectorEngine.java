@@ -0,0 +1,709 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.ClientHandler;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+
+/**
+ * Selector based connection handling for {@link RouterNanoHTTPD}.
+ * <p/>
+ * Connections are still accepted by the listener thread of NanoHTTPD, but on
+ * a channel backed server socket, and then handed to one of a few event loops.
+ * An event loop reads until a request is complete, the request is then served
+ * by the unchanged NanoHTTPD session code on a small worker pool, and the
+ * response is written back by the event loop. Idle keep-alive connections
+ * therefore do not hold a thread, they are closed by the
+ * {@link KeepAliveManager} of the server.
+ * <p/>
+ * Request bodies are buffered in memory and limited to
+ * {@link #MAX_REQUEST_SIZE}, chunked request bodies are not supported, just
+ * like with the blocking core.
+ */
+public class SelectorEngine implements NanoHTTPD.AsyncRunner, NanoHTTPD.ServerSocketFactory {
+
+    /**
+     * logger to log to.
+     */
+    private static final Logger LOG = Logger.getLogger(SelectorEngine.class.getName());
+
+    /**
+     * Same limit as the blocking core uses for the request line and headers.
+     */
+    public static final int MAX_HEADER_SIZE = 8192;
+
+    public static final int MAX_REQUEST_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Workers writing a response wait while more than this is not yet written
+     * to the socket.
+     */
+    private static final int HIGH_WATER_MARK = 256 * 1024;
+
+    private static final byte[] BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
+
+    private static final byte[] PAYLOAD_TOO_LARGE = "HTTP/1.1 413 Payload Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
+
+    private final RouterNanoHTTPD server;
+
+    private final int eventLoopCount;
+
+    private final int workerCount;
+
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    private volatile EventLoop[] eventLoops;
+
+    private volatile ExecutorService workers;
+
+    SelectorEngine(RouterNanoHTTPD server, int eventLoopCount, int workerCount) {
+        this.server = server;
+        this.eventLoopCount = Math.max(1, eventLoopCount);
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    /**
+     * Starts the event loops, called by NanoHTTPD when the server starts.
+     */
+    @Override
+    public synchronized ServerSocket create() throws IOException {
+        shutdown();
+        EventLoop[] loops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(loops[i], "NanoHttpd Event Loop #" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        final AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NanoHttpd Event Worker #" + workerNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.eventLoops = loops;
+        return ServerSocketChannel.open().socket();
+    }
+
+    /**
+     * Takes over a socket accepted by NanoHTTPD.
+     */
+    void register(Socket socket) {
+        SocketChannel channel = socket.getChannel();
+        EventLoop[] loops = this.eventLoops;
+        if (channel == null || loops == null) {
+            // not accepted from our server socket or already stopped
+            closeQuietly(socket);
+            return;
+        }
+        int idleTimeout;
+        try {
+            idleTimeout = socket.getSoTimeout();
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            SelectorEngine.LOG.log(Level.FINE, "Could not register connection", e);
+            closeQuietly(socket);
+            return;
+        }
+        EventLoop loop = loops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        loop.register(new Connection(loop, channel, socket.getInetAddress(), idleTimeout));
+    }
+
+    @Override
+    public void exec(ClientHandler clientHandler) {
+        // the connection got registered with an event loop already
+    }
+
+    @Override
+    public void closed(ClientHandler clientHandler) {
+    }
+
+    /**
+     * Closes all connections and stops the event loops, called by NanoHTTPD
+     * when the server stops.
+     */
+    @Override
+    public void closeAll() {
+        shutdown();
+    }
+
+    private synchronized void shutdown() {
+        EventLoop[] loops = this.eventLoops;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.stop();
+            }
+            this.eventLoops = null;
+        }
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+            this.workers = null;
+        }
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        EventLoop[] loops = this.eventLoops;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                count += loop.connectionCount;
+            }
+        }
+        return count;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    /**
+     * @return the length of the request line and headers including the empty
+     *         line, or 0 if they are not complete yet
+     */
+    static int findHeaderEnd(byte[] buf, int length) {
+        for (int i = 0; i + 1 < length; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n' && i + 3 < length && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                return i + 4;
+            }
+            // tolerance, as in NanoHTTPD
+            if (buf[i] == '\n' && buf[i + 1] == '\n') {
+                return i + 2;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the value of the content-length header or 0 if there is none,
+     *         -1 if it is invalid
+     */
+    static long parseContentLength(byte[] buf, int headerEnd) {
+        int lineStart = 0;
+        for (int i = 0; i < headerEnd; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            String line = new String(buf, lineStart, i - lineStart).trim();
+            lineStart = i + 1;
+            if (line.regionMatches(true, 0, "content-length:", 0, 15)) {
+                try {
+                    long length = Long.parseLong(line.substring(15).trim());
+                    return length < 0 ? -1 : length;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        private final Set<Connection> connections = new HashSet<Connection>();
+
+        private volatile boolean running = true;
+
+        private volatile int connectionCount;
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(final Connection connection) {
+            execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        connections.add(connection);
+                        connectionCount = connections.size();
+                        server.getKeepAliveManager().idle(connection);
+                    } catch (ClosedChannelException e) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                SelectorEngine.LOG.log(Level.SEVERE, "Event loop failed", e);
+            } finally {
+                for (Connection connection : new ArrayList<Connection>(connections)) {
+                    connection.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        void removed(Connection connection) {
+            connections.remove(connection);
+            connectionCount = connections.size();
+        }
+    }
+
+    private final class Connection extends KeepAliveManager.Connection {
+
+        private final EventLoop loop;
+
+        private final SocketChannel channel;
+
+        private final InetAddress remoteAddress;
+
+        private final int idleTimeout;
+
+        private SelectionKey key;
+
+        private byte[] input = new byte[4096];
+
+        private int inputLength;
+
+        private boolean processing;
+
+        private boolean closeAfterWrite;
+
+        // guarded by this, written by workers and the event loop
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+
+        private long pendingBytes;
+
+        private boolean writeScheduled;
+
+        private volatile boolean closed;
+
+        private Connection(EventLoop loop, SocketChannel channel, InetAddress remoteAddress, int idleTimeout) {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = remoteAddress;
+            this.idleTimeout = idleTimeout;
+        }
+
+        @Override
+        int getIdleTimeout() {
+            int timeout = server.getKeepAliveManager().getIdleTimeout();
+            return timeout > 0 ? timeout : idleTimeout;
+        }
+
+        @Override
+        void expire() {
+            loop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!processing && !closeAfterWrite) {
+                        close();
+                    }
+                }
+            });
+        }
+
+        void onReadable() {
+            if (inputLength == input.length) {
+                int limit = inputLength < MAX_HEADER_SIZE ? MAX_HEADER_SIZE : MAX_REQUEST_SIZE;
+                if (inputLength >= limit) {
+                    reject(inputLength < MAX_REQUEST_SIZE ? BAD_REQUEST : PAYLOAD_TOO_LARGE);
+                    return;
+                }
+                grow(Math.min(limit, input.length * 2));
+            }
+            int read;
+            try {
+                read = channel.read(ByteBuffer.wrap(input, inputLength, input.length - inputLength));
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            if (read > 0) {
+                server.getKeepAliveManager().active(this);
+            }
+            inputLength += read;
+            dispatch();
+        }
+
+        private void grow(int capacity) {
+            byte[] grown = new byte[capacity];
+            System.arraycopy(input, 0, grown, 0, inputLength);
+            input = grown;
+        }
+
+        /**
+         * Hands the next complete request to a worker.
+         */
+        private void dispatch() {
+            if (processing || closed || inputLength == 0) {
+                return;
+            }
+            int headerEnd = findHeaderEnd(input, inputLength);
+            if (headerEnd == 0) {
+                if (inputLength >= MAX_HEADER_SIZE) {
+                    reject(BAD_REQUEST);
+                }
+                return;
+            }
+            long contentLength = parseContentLength(input, headerEnd);
+            if (contentLength < 0) {
+                reject(BAD_REQUEST);
+                return;
+            }
+            if (headerEnd + contentLength > MAX_REQUEST_SIZE) {
+                reject(PAYLOAD_TOO_LARGE);
+                return;
+            }
+            int requestLength = (int) (headerEnd + contentLength);
+            if (inputLength < requestLength) {
+                if (input.length < requestLength) {
+                    grow(requestLength);
+                }
+                return;
+            }
+
+            final byte[] request = new byte[requestLength];
+            System.arraycopy(input, 0, request, 0, requestLength);
+            // keep pipelined requests
+            System.arraycopy(input, requestLength, input, 0, inputLength - requestLength);
+            inputLength -= requestLength;
+            if (input.length > MAX_HEADER_SIZE && inputLength <= 4096) {
+                byte[] shrunk = new byte[4096];
+                System.arraycopy(input, 0, shrunk, 0, inputLength);
+                input = shrunk;
+            }
+
+            processing = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            ExecutorService executor = workers;
+            if (executor == null) {
+                close();
+                return;
+            }
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    serve(request);
+                }
+            });
+        }
+
+        /**
+         * Runs on a worker.
+         */
+        private void serve(byte[] request) {
+            boolean keepAlive = true;
+            KeepAliveManager keepAliveManager = server.getKeepAliveManager();
+            keepAliveManager.setCurrent(this);
+            try {
+                IHTTPSession session = server.createSession(new ByteArrayInputStream(request), new ConnectionOutputStream(this), remoteAddress);
+                session.execute();
+            } catch (SocketException e) {
+                // the session asks to close the connection
+                keepAlive = false;
+            } catch (IOException e) {
+                keepAlive = false;
+            } catch (RuntimeException e) {
+                SelectorEngine.LOG.log(Level.SEVERE, "Could not serve request", e);
+                keepAlive = false;
+            } finally {
+                keepAliveManager.setCurrent(null);
+            }
+            final boolean keepConnection = keepAlive;
+            loop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    requestDone(keepConnection);
+                }
+            });
+        }
+
+        private void requestDone(boolean keepAlive) {
+            processing = false;
+            if (closed) {
+                return;
+            }
+            if (!keepAlive || closeAfterWrite) {
+                closeAfterWrite = true;
+                onWritable();
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            dispatch();
+            if (!processing) {
+                server.getKeepAliveManager().idle(this);
+            }
+        }
+
+        /**
+         * Called by workers, waits while too much is pending.
+         */
+        void write(ByteBuffer buffer) throws IOException {
+            boolean schedule = false;
+            synchronized (this) {
+                if (closed) {
+                    throw new SocketException("connection closed");
+                }
+                if (output.isEmpty()) {
+                    channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    output.add(buffer);
+                    pendingBytes += buffer.remaining();
+                    schedule = !writeScheduled;
+                    writeScheduled = true;
+                }
+            }
+            if (schedule) {
+                loop.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!closed) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+            }
+            synchronized (this) {
+                while (pendingBytes > HIGH_WATER_MARK && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SocketException("interrupted while writing");
+                    }
+                }
+                if (closed) {
+                    throw new SocketException("connection closed");
+                }
+            }
+        }
+
+        void onWritable() {
+            boolean drained;
+            synchronized (this) {
+                try {
+                    while (!output.isEmpty()) {
+                        ByteBuffer buffer = output.peek();
+                        int written = channel.write(buffer);
+                        pendingBytes -= written;
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+                        output.poll();
+                    }
+                } catch (IOException e) {
+                    output.clear();
+                    pendingBytes = 0;
+                    closeAfterWrite = true;
+                }
+                drained = output.isEmpty();
+                if (drained) {
+                    writeScheduled = false;
+                }
+                notifyAll();
+            }
+            if (!drained) {
+                return;
+            }
+            if (closeAfterWrite && !processing) {
+                close();
+            } else if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void reject(byte[] response) {
+            inputLength = 0;
+            closeAfterWrite = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            synchronized (this) {
+                output.add(ByteBuffer.wrap(response));
+                pendingBytes += response.length;
+            }
+            onWritable();
+        }
+
+        /**
+         * Closes the connection once everything is written, called when the
+         * session closes its output stream.
+         */
+        void closeGracefully() {
+            loop.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    closeAfterWrite = true;
+                }
+            });
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                output.clear();
+                pendingBytes = 0;
+                notifyAll();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignored
+            }
+            loop.removed(this);
+            server.getKeepAliveManager().active(this);
+        }
+    }
+
+    /**
+     * Copies everything the session writes, as callers reuse their buffers.
+     */
+    private static final class ConnectionOutputStream extends OutputStream {
+
+        private final Connection connection;
+
+        private ConnectionOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{
+                (byte) b
+            }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+            connection.write(ByteBuffer.wrap(copy));
+        }
+
+        @Override
+        public void close() {
+            connection.closeGracefully();
+        }
+    }
+}
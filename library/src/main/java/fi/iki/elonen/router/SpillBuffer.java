@@ -0,0 +1,235 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Collects bytes in memory up to a threshold and continues in a temporary
+ * file once they exceed it, so small request bodies never touch the disk
+ * and large ones never sit in the heap.
+ * <p/>
+ * Buffers handed out by a {@link RequestBody} are deleted after the request
+ * was answered, {@link #moveTo(File)} keeps the bytes.
+ */
+public final class SpillBuffer extends OutputStream {
+
+    private final int memoryThreshold;
+
+    private final File tempDir;
+
+    private byte[] memory;
+
+    private int count;
+
+    private long length;
+
+    private File file;
+
+    private OutputStream fileOutputStream;
+
+    private boolean released;
+
+    /**
+     * @param memoryThreshold
+     *            bytes kept in memory before spilling to a file
+     * @param tempDir
+     *            directory of the temporary file, null for the default one
+     */
+    public SpillBuffer(int memoryThreshold, File tempDir) {
+        this.memoryThreshold = Math.max(0, memoryThreshold);
+        this.tempDir = tempDir;
+        this.memory = new byte[Math.min(this.memoryThreshold, 4096)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{
+            (byte) b
+        }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (released) {
+            throw new IOException("buffer was moved or deleted");
+        }
+        if (file == null && count + len <= memoryThreshold) {
+            if (count + len > memory.length) {
+                byte[] grown = new byte[Math.min(memoryThreshold, Math.max(memory.length * 2, count + len))];
+                System.arraycopy(memory, 0, grown, 0, count);
+                memory = grown;
+            }
+            System.arraycopy(b, off, memory, count, len);
+            count += len;
+        } else {
+            if (file == null) {
+                spill();
+            } else if (fileOutputStream == null) {
+                fileOutputStream = new FileOutputStream(file, true);
+            }
+            fileOutputStream.write(b, off, len);
+        }
+        length += len;
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("NanoHTTPD-body-", "", tempDir);
+        fileOutputStream = new FileOutputStream(file);
+        fileOutputStream.write(memory, 0, count);
+        memory = null;
+        count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+        }
+    }
+
+    /**
+     * Closes the temporary file, the buffer may still be written to.
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileOutputStream != null) {
+            OutputStream out = fileOutputStream;
+            fileOutputStream = null;
+            out.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true as long as the bytes did not exceed the threshold.
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * @return the temporary file, null while the bytes are kept in memory.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the bytes written so far, read from the memory or the file.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (released) {
+            throw new IOException("buffer was moved or deleted");
+        }
+        if (file == null) {
+            return new ByteArrayInputStream(memory, 0, count);
+        }
+        close();
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Moves the bytes to the target file, renaming the temporary file if it
+     * is on the same file system. The buffer can not be used afterwards.
+     */
+    public void moveTo(File target) throws IOException {
+        if (released) {
+            throw new IOException("buffer was moved or deleted");
+        }
+        close();
+        if (file == null || !file.renameTo(target)) {
+            InputStream in = getInputStream();
+            OutputStream out = new FileOutputStream(target);
+            byte[] chunk = BufferPool.shared().acquire(8192);
+            try {
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    out.write(chunk, 0, read);
+                }
+            } finally {
+                BufferPool.shared().release(chunk);
+                closeQuietly(in);
+                out.close();
+            }
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        file = null;
+        memory = null;
+        released = true;
+    }
+
+    /**
+     * Drops the bytes and deletes the temporary file.
+     */
+    public void delete() {
+        if (released) {
+            return;
+        }
+        released = true;
+        closeQuietly(fileOutputStream);
+        fileOutputStream = null;
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+        file = null;
+        memory = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
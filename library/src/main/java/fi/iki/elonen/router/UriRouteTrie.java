@@ -0,0 +1,431 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fi.iki.elonen.router.RouterNanoHTTPD.UriResource;
+
+/**
+ * Segment trie over a set of {@link UriResource}s. Literal segments,
+ * <code>:param</code> segments and a trailing wildcard (<code>(.)+</code>,
+ * <code>(.)*</code> and their short forms) are compiled into the trie, every
+ * other route falls back to its regular expression.
+ * <p/>
+ * A lookup returns the same route a linear scan over the priority sorted
+ * mappings would return: the matching route with the lowest priority wins, so
+ * a literal still beats a parameter. Subtrees that can not beat the best match
+ * found so far are skipped, which keeps the common lookup linear in the length
+ * of the uri.
+ * <p/>
+ * Note: a '.' inside a compiled segment is matched literally.
+ */
+final class UriRouteTrie {
+
+    static final int WILDCARD_NONE = 0;
+
+    static final int WILDCARD_ONE_OR_MORE = 1;
+
+    static final int WILDCARD_ANY = 2;
+
+    private static final String REGEX_META_CHARS = "\\^$|?*+()[]{}";
+
+    private static final String PARAM_CHARS = "-._~:/?#[]@!$&'()*+,;=";
+
+    private static final Map<String, String> EMPTY = Collections.unmodifiableMap(new HashMap<String, String>());
+
+    /**
+     * A route uri split into its segments, parameter segments are stored as
+     * <code>null</code>.
+     */
+    static final class Segments {
+
+        final String[] literals;
+
+        final String[] params;
+
+        final int wildcard;
+
+        private Segments(String[] literals, String[] params, int wildcard) {
+            this.literals = literals;
+            this.params = params;
+            this.wildcard = wildcard;
+        }
+    }
+
+    /**
+     * The result of a lookup.
+     */
+    static final class Match {
+
+        final UriResource resource;
+
+        final Map<String, String> params;
+
+        private Match(UriResource resource, Map<String, String> params) {
+            this.resource = resource;
+            this.params = params;
+        }
+    }
+
+    private static final class Node {
+
+        private String[] keys = new String[0];
+
+        private int[] hashes = new int[0];
+
+        private Node[] children = new Node[0];
+
+        private Node param;
+
+        private UriResource terminal;
+
+        private UriResource oneOrMore;
+
+        private UriResource any;
+
+        private int minPriority = Integer.MAX_VALUE;
+
+        private Node literal(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < keys.length; i++) {
+                if (hashes[i] == hash && keys[i].equals(key)) {
+                    return children[i];
+                }
+            }
+            int size = keys.length;
+            String[] newKeys = new String[size + 1];
+            int[] newHashes = new int[size + 1];
+            Node[] newChildren = new Node[size + 1];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            System.arraycopy(hashes, 0, newHashes, 0, size);
+            System.arraycopy(children, 0, newChildren, 0, size);
+            newKeys[size] = key;
+            newHashes[size] = hash;
+            newChildren[size] = new Node();
+            keys = newKeys;
+            hashes = newHashes;
+            children = newChildren;
+            return newChildren[size];
+        }
+
+        private Node find(String uri, int start, int end, int hash) {
+            int length = end - start;
+            for (int i = 0; i < keys.length; i++) {
+                if (hashes[i] == hash && keys[i].length() == length && keys[i].regionMatches(0, uri, start, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private int computeMinPriority() {
+            int min = Math.min(priority(terminal), Math.min(priority(oneOrMore), priority(any)));
+            for (Node child : children) {
+                min = Math.min(min, child.computeMinPriority());
+            }
+            if (param != null) {
+                min = Math.min(min, param.computeMinPriority());
+            }
+            minPriority = min;
+            return min;
+        }
+
+        private static UriResource lower(UriResource current, UriResource candidate) {
+            return (current == null || candidate.getPriority() < current.getPriority()) ? candidate : current;
+        }
+
+        private static int priority(UriResource resource) {
+            return resource == null ? Integer.MAX_VALUE : resource.getPriority();
+        }
+    }
+
+    /**
+     * State of a single lookup.
+     */
+    private static final class Lookup {
+
+        private final String uri;
+
+        private final int length;
+
+        private final int lastLineTerminator;
+
+        private final int[] captures;
+
+        private int[] bestCaptures;
+
+        private UriResource best;
+
+        private Lookup(String uri, int maxParams) {
+            this.uri = uri;
+            this.length = uri.length();
+            this.lastLineTerminator = lastLineTerminator(uri);
+            this.captures = new int[maxParams * 2];
+        }
+
+        private int bestPriority() {
+            return best == null ? Integer.MAX_VALUE : best.getPriority();
+        }
+
+        private void offer(UriResource resource, int depth) {
+            if (resource != null && resource.getPriority() < bestPriority()) {
+                best = resource;
+                bestCaptures = new int[depth * 2];
+                System.arraycopy(captures, 0, bestCaptures, 0, depth * 2);
+            }
+        }
+    }
+
+    private final Node root = new Node();
+
+    private final List<UriResource> regexRoutes = new ArrayList<UriResource>();
+
+    private final int maxParams;
+
+    /**
+     * @param resources
+     *            the routes to compile, sorted by priority.
+     */
+    UriRouteTrie(List<UriResource> resources) {
+        int params = 0;
+        for (UriResource resource : resources) {
+            Segments segments = resource.getSegments();
+            if (segments == null) {
+                regexRoutes.add(resource);
+            } else {
+                insert(resource, segments);
+                params = Math.max(params, segments.params.length);
+            }
+        }
+        root.computeMinPriority();
+        maxParams = params;
+    }
+
+    private void insert(UriResource resource, Segments segments) {
+        Node node = root;
+        for (String literal : segments.literals) {
+            if (literal == null) {
+                if (node.param == null) {
+                    node.param = new Node();
+                }
+                node = node.param;
+            } else {
+                node = node.literal(literal);
+            }
+        }
+        switch (segments.wildcard) {
+            case WILDCARD_ONE_OR_MORE:
+                node.oneOrMore = Node.lower(node.oneOrMore, resource);
+                break;
+            case WILDCARD_ANY:
+                node.any = Node.lower(node.any, resource);
+                break;
+            default:
+                node.terminal = Node.lower(node.terminal, resource);
+                break;
+        }
+    }
+
+    /**
+     * @param uri
+     *            the normalized uri.
+     * @return the matching route with the lowest priority and its parameters
+     *         or <code>null</code> if no route matches.
+     */
+    Match match(String uri) {
+        Lookup lookup = new Lookup(uri, maxParams);
+        // an empty uri has no segments at all
+        walk(lookup, root, uri.isEmpty() ? 1 : 0, 0);
+
+        for (UriResource resource : regexRoutes) {
+            if (resource.getPriority() >= lookup.bestPriority()) {
+                break;
+            }
+            Map<String, String> params = resource.matchPattern(uri);
+            if (params != null) {
+                return new Match(resource, params);
+            }
+        }
+
+        if (lookup.best == null) {
+            return null;
+        }
+        String[] names = lookup.best.getSegments().params;
+        if (names.length == 0) {
+            return new Match(lookup.best, EMPTY);
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 0; i < names.length; i++) {
+            params.put(names[i], uri.substring(lookup.bestCaptures[i * 2], lookup.bestCaptures[i * 2 + 1]));
+        }
+        return new Match(lookup.best, params);
+    }
+
+    /**
+     * @param pos
+     *            start of the next segment, <code>length + 1</code> once all
+     *            segments are consumed.
+     * @param depth
+     *            number of parameters captured so far.
+     */
+    private void walk(Lookup lookup, Node node, int pos, int depth) {
+        if (node.minPriority >= lookup.bestPriority()) {
+            return;
+        }
+        String uri = lookup.uri;
+        int length = lookup.length;
+        if (pos > length) {
+            lookup.offer(node.terminal, depth);
+            if (node == root && length == 0) {
+                lookup.offer(node.any, depth);
+            }
+            return;
+        }
+
+        // wildcards take the remainder, '.' does not match line terminators
+        if (lookup.lastLineTerminator < pos) {
+            if (pos < length) {
+                lookup.offer(node.oneOrMore, depth);
+            }
+            lookup.offer(node.any, depth);
+        }
+
+        int end = uri.indexOf('/', pos);
+        if (end < 0) {
+            end = length;
+        }
+        if (node.keys.length > 0) {
+            int hash = 0;
+            for (int i = pos; i < end; i++) {
+                hash = 31 * hash + uri.charAt(i);
+            }
+            Node child = node.find(uri, pos, end, hash);
+            if (child != null) {
+                walk(lookup, child, end + 1, depth);
+            }
+        }
+
+        if (node.param != null) {
+            // parameters may span several segments, try the longest first
+            int limit = pos;
+            while (limit < length && isParamChar(uri.charAt(limit))) {
+                limit++;
+            }
+            int paramEnd = limit == length ? length : uri.lastIndexOf('/', limit);
+            while (paramEnd > pos) {
+                lookup.captures[depth * 2] = pos;
+                lookup.captures[depth * 2 + 1] = paramEnd;
+                walk(lookup, node.param, paramEnd + 1, depth + 1);
+                paramEnd = uri.lastIndexOf('/', paramEnd - 1);
+            }
+        }
+    }
+
+    /**
+     * Splits the given normalized route uri into segments.
+     *
+     * @return the segments or <code>null</code> if the route needs a regular
+     *         expression.
+     */
+    static Segments compile(String uri) {
+        List<String> literals = new ArrayList<String>();
+        List<String> params = new ArrayList<String>();
+        int wildcard = WILDCARD_NONE;
+        if (!uri.isEmpty()) {
+            String[] parts = uri.split("/", -1);
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i];
+                boolean last = i == parts.length - 1;
+                if (isParam(part)) {
+                    literals.add(null);
+                    params.add(part.substring(1));
+                } else if (last && ("(.)+".equals(part) || "(.+)".equals(part) || ".+".equals(part))) {
+                    wildcard = WILDCARD_ONE_OR_MORE;
+                } else if (last && ("(.)*".equals(part) || "(.*)".equals(part) || ".*".equals(part))) {
+                    wildcard = WILDCARD_ANY;
+                } else if (hasRegexMetaChars(part)) {
+                    return null;
+                } else {
+                    literals.add(part);
+                }
+            }
+        }
+        return new Segments(literals.toArray(new String[literals.size()]), params.toArray(new String[params.size()]), wildcard);
+    }
+
+    private static boolean isParam(String part) {
+        if (part.length() < 2 || part.charAt(0) != ':') {
+            return false;
+        }
+        for (int i = 1; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (!isAsciiLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasRegexMetaChars(String part) {
+        for (int i = 0; i < part.length(); i++) {
+            if (REGEX_META_CHARS.indexOf(part.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isParamChar(char c) {
+        return isAsciiLetterOrDigit(c) || PARAM_CHARS.indexOf(c) >= 0;
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static int lastLineTerminator(String uri) {
+        for (int i = uri.length() - 1; i >= 0; i--) {
+            char c = uri.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,710 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * A WebSocket connection (RFC 6455) opened through a route whose handler is
+ * a {@link RouterNanoHTTPD.UriWebSocketResponder}.
+ * <p/>
+ * The socket is read by the thread which served the upgrade request, it
+ * calls the {@link Listener}. Messages can be sent from any thread.
+ * Fragmented messages are put together before they are delivered, and
+ * <code>permessage-deflate</code> (RFC 7692) is negotiated if the client
+ * offers it.
+ * <p/>
+ * The read timeout of the server socket doubles as keepalive interval: a
+ * socket which was silent that long gets a ping, and it is closed if it is
+ * silent for another interval.
+ * <p/>
+ * Every open socket keeps the thread of its connection, with a bounded
+ * worker pool it is taken from the other clients for as long as the socket
+ * lives. {@link RouterNanoHTTPD#setMaxWebSockets(int)} limits them.
+ */
+public final class WebSocket {
+
+    /**
+     * Receives the events of a socket on its reading thread.
+     */
+    public interface Listener {
+
+        void onOpen(WebSocket socket);
+
+        void onMessage(WebSocket socket, String text);
+
+        void onMessage(WebSocket socket, byte[] data);
+
+        /**
+         * @param code
+         *            the status code of the close frame, or
+         *            {@link WebSocket#CLOSE_ABNORMAL} if the connection was
+         *            lost without one
+         */
+        void onClose(WebSocket socket, int code, String reason);
+    }
+
+    public static final int CLOSE_NORMAL = 1000;
+
+    public static final int CLOSE_GOING_AWAY = 1001;
+
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+    public static final int CLOSE_UNSUPPORTED_DATA = 1003;
+
+    public static final int CLOSE_NO_STATUS = 1005;
+
+    public static final int CLOSE_ABNORMAL = 1006;
+
+    public static final int CLOSE_INVALID_DATA = 1007;
+
+    public static final int CLOSE_POLICY_VIOLATION = 1008;
+
+    public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+
+    public static final int CLOSE_INTERNAL_ERROR = 1011;
+
+    /**
+     * Largest message accepted from a client, after decompression.
+     */
+    public static final int MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * 426 is not part of NanoHTTPD's status codes.
+     */
+    public static final Response.IStatus UPGRADE_REQUIRED = new Response.IStatus() {
+
+        @Override
+        public String getDescription() {
+            return "426 Upgrade Required";
+        }
+
+        @Override
+        public int getRequestStatus() {
+            return 426;
+        }
+    };
+
+    /**
+     * 503 is not part of NanoHTTPD's status codes.
+     */
+    public static final Response.IStatus SERVICE_UNAVAILABLE = new Response.IStatus() {
+
+        @Override
+        public String getDescription() {
+            return "503 Service Unavailable";
+        }
+
+        @Override
+        public int getRequestStatus() {
+            return 503;
+        }
+    };
+
+    private static final Logger LOG = Logger.getLogger(WebSocket.class.getName());
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final byte[] DEFLATE_TAIL = {
+        0,
+        0,
+        (byte) 0xff,
+        (byte) 0xff
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A violation of the protocol, the socket is closed with its code.
+     */
+    private static final class ProtocolException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        private ProtocolException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private final IHTTPSession session;
+
+    private final Map<String, String> urlParams;
+
+    private final Listener listener;
+
+    private final boolean deflate;
+
+    private final boolean clientNoContextTakeover;
+
+    private final Object writeLock = new Object();
+
+    private OutputStream out;
+
+    private Inflater inflater;
+
+    private volatile boolean open;
+
+    private boolean closeSent;
+
+    private volatile Object attachment;
+
+    private WebSocket(IHTTPSession session, Map<String, String> urlParams, Listener listener, boolean deflate, boolean clientNoContextTakeover) {
+        this.session = session;
+        this.urlParams = urlParams;
+        this.listener = listener;
+        this.deflate = deflate;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+    }
+
+    /**
+     * @return the upgrade request of the socket.
+     */
+    public IHTTPSession getSession() {
+        return session;
+    }
+
+    /**
+     * @return the parameters of the route the socket was opened on, may be
+     *         null.
+     */
+    public Map<String, String> getUrlParams() {
+        return urlParams;
+    }
+
+    /**
+     * @return true until a close frame was sent or the connection got lost.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return whether the socket negotiated <code>permessage-deflate</code>.
+     */
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+    /**
+     * Keeps an object of the application with the socket, for listeners
+     * which serve many sockets.
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void send(String text) throws IOException {
+        send(WebSocketMessage.text(text));
+    }
+
+    public void send(byte[] data) throws IOException {
+        send(WebSocketMessage.binary(data));
+    }
+
+    public void send(WebSocketMessage message) throws IOException {
+        write(message.getFrame(deflate), false);
+    }
+
+    public void ping(byte[] payload) throws IOException {
+        if (payload.length > 125) {
+            throw new IllegalArgumentException("ping payload longer than 125 bytes");
+        }
+        write(WebSocketMessage.frame(WebSocketMessage.OP_PING, false, payload, 0, payload.length), false);
+    }
+
+    /**
+     * Starts the closing handshake, the connection is closed once the client
+     * answered it.
+     */
+    public void close(int code, String reason) {
+        byte[] reasonBytes = reason != null ? reason.getBytes(UTF_8) : new byte[0];
+        int reasonLength = Math.min(reasonBytes.length, 123);
+        byte[] payload = new byte[2 + reasonLength];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+        try {
+            write(WebSocketMessage.frame(WebSocketMessage.OP_CLOSE, false, payload, 0, payload.length), true);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Could not send WebSocket close frame", e);
+        }
+    }
+
+    private void write(byte[] frame, boolean close) throws IOException {
+        synchronized (writeLock) {
+            if (closeSent || out == null) {
+                if (close) {
+                    return;
+                }
+                throw new IOException("WebSocket is closed");
+            }
+            if (close) {
+                closeSent = true;
+                open = false;
+            }
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the socket until it is closed, called by the thread which served
+     * the upgrade request.
+     */
+    private void run(InputStream inputStream, OutputStream outputStream) {
+        synchronized (writeLock) {
+            this.out = outputStream;
+        }
+        this.open = true;
+        if (deflate) {
+            this.inflater = new Inflater(true);
+        }
+        int code = CLOSE_ABNORMAL;
+        String reason = "";
+        try {
+            listener.onOpen(this);
+            String[] close = readFrames(new DataInputStream(inputStream));
+            if (close != null) {
+                code = Integer.parseInt(close[0]);
+                reason = close[1];
+            }
+        } catch (ProtocolException e) {
+            LOG.log(Level.FINE, "WebSocket protocol error", e);
+            close(e.code, e.getMessage());
+            code = e.code;
+            reason = e.getMessage();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "WebSocket connection lost", e);
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "WebSocket listener failed", e);
+            close(CLOSE_INTERNAL_ERROR, "");
+            code = CLOSE_INTERNAL_ERROR;
+        } finally {
+            synchronized (writeLock) {
+                open = false;
+                closeSent = true;
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        try {
+            listener.onClose(this, code, reason);
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "WebSocket listener failed", e);
+        }
+    }
+
+    /**
+     * @return the status code and reason of the close frame, null if the
+     *         connection ended without one.
+     */
+    private String[] readFrames(DataInputStream in) throws IOException {
+        ByteArrayOutputStream fragments = null;
+        int fragmentsOpcode = 0;
+        boolean fragmentsCompressed = false;
+        boolean awaitingPong = false;
+        byte[] mask = new byte[4];
+        while (true) {
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException e) {
+                if (awaitingPong) {
+                    return null;
+                }
+                awaitingPong = true;
+                ping(new byte[0]);
+                continue;
+            }
+            if (first < 0) {
+                return null;
+            }
+            awaitingPong = false;
+            int second = in.readUnsignedByte();
+            boolean fin = (first & 0x80) != 0;
+            boolean compressed = (first & 0x40) != 0;
+            int opcode = first & 0x0f;
+            boolean control = (opcode & 0x08) != 0;
+            if ((first & 0x30) != 0 || (compressed && (!deflate || control || opcode == WebSocketMessage.OP_CONTINUATION))) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "reserved bits set");
+            }
+            if ((second & 0x80) == 0) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "client frame not masked");
+            }
+            long length = second & 0x7f;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            if (control && (length > 125 || !fin)) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "invalid control frame");
+            }
+            if (length < 0 || length > MAX_MESSAGE_SIZE - (fragments != null ? fragments.size() : 0)) {
+                throw new ProtocolException(CLOSE_MESSAGE_TOO_BIG, "message too big");
+            }
+            in.readFully(mask);
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            switch (opcode) {
+                case WebSocketMessage.OP_CONTINUATION:
+                    if (fragments == null) {
+                        throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "continuation without a message");
+                    }
+                    fragments.write(payload);
+                    if (fin) {
+                        deliver(fragmentsOpcode, fragments.toByteArray(), fragmentsCompressed);
+                        fragments = null;
+                    }
+                    break;
+                case WebSocketMessage.OP_TEXT:
+                case WebSocketMessage.OP_BINARY:
+                    if (fragments != null) {
+                        throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "message within a fragmented message");
+                    }
+                    if (fin) {
+                        deliver(opcode, payload, compressed);
+                    } else {
+                        fragments = new ByteArrayOutputStream();
+                        fragments.write(payload);
+                        fragmentsOpcode = opcode;
+                        fragmentsCompressed = compressed;
+                    }
+                    break;
+                case WebSocketMessage.OP_CLOSE:
+                    return closeReceived(payload);
+                case WebSocketMessage.OP_PING:
+                    write(WebSocketMessage.frame(WebSocketMessage.OP_PONG, false, payload, 0, payload.length), false);
+                    break;
+                case WebSocketMessage.OP_PONG:
+                    break;
+                default:
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "unknown opcode " + opcode);
+            }
+        }
+    }
+
+    private String[] closeReceived(byte[] payload) throws IOException {
+        int code = CLOSE_NO_STATUS;
+        String reason = "";
+        if (payload.length == 1) {
+            throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "invalid close frame");
+        }
+        if (payload.length >= 2) {
+            code = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+            if (!isValidCloseCode(code)) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "invalid close code " + code);
+            }
+            reason = decodeText(payload, 2, payload.length - 2);
+        }
+        // answer with the same code, unless the close was ours
+        if (code == CLOSE_NO_STATUS) {
+            write(WebSocketMessage.frame(WebSocketMessage.OP_CLOSE, false, new byte[0], 0, 0), true);
+        } else {
+            write(WebSocketMessage.frame(WebSocketMessage.OP_CLOSE, false, payload, 0, 2), true);
+        }
+        return new String[]{
+            String.valueOf(code),
+            reason
+        };
+    }
+
+    private static boolean isValidCloseCode(int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1011) || (code >= 3000 && code <= 4999);
+    }
+
+    private void deliver(int opcode, byte[] payload, boolean compressed) throws IOException {
+        byte[] data = compressed ? inflate(payload) : payload;
+        if (opcode == WebSocketMessage.OP_TEXT) {
+            listener.onMessage(this, decodeText(data, 0, data.length));
+        } else {
+            listener.onMessage(this, data);
+        }
+    }
+
+    private byte[] inflate(byte[] payload) throws IOException {
+        byte[] input = new byte[payload.length + DEFLATE_TAIL.length];
+        System.arraycopy(payload, 0, input, 0, payload.length);
+        System.arraycopy(DEFLATE_TAIL, 0, input, payload.length, DEFLATE_TAIL.length);
+        inflater.setInput(input);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream(payload.length * 2);
+        byte[] chunk = BufferPool.shared().acquire(8192);
+        try {
+            while (!inflater.finished() && !inflater.needsInput()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && inflater.needsDictionary()) {
+                    throw new ProtocolException(CLOSE_INVALID_DATA, "deflate dictionary not supported");
+                }
+                if (inflated.size() + length > MAX_MESSAGE_SIZE) {
+                    throw new ProtocolException(CLOSE_MESSAGE_TOO_BIG, "message too big");
+                }
+                inflated.write(chunk, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException(CLOSE_INVALID_DATA, "invalid compressed message");
+        } finally {
+            BufferPool.shared().release(chunk);
+        }
+        // a final block ends the compression context as well
+        if (clientNoContextTakeover || inflater.finished()) {
+            inflater.reset();
+        }
+        return inflated.toByteArray();
+    }
+
+    private static String decodeText(byte[] data, int offset, int length) throws ProtocolException {
+        try {
+            return UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(data, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            throw new ProtocolException(CLOSE_INVALID_DATA, "invalid UTF-8 text");
+        }
+    }
+
+    /**
+     * @return whether the request asks to open a WebSocket.
+     */
+    static boolean isUpgradeRequest(IHTTPSession session) {
+        if (session.getMethod() != Method.GET) {
+            return false;
+        }
+        Map<String, String> headers = session.getHeaders();
+        String upgrade = headers.get("upgrade");
+        String connection = headers.get("connection");
+        return upgrade != null && upgrade.toLowerCase(Locale.US).contains("websocket") && connection != null
+                && connection.toLowerCase(Locale.US).contains("upgrade");
+    }
+
+    /**
+     * @return the response which completes the handshake and serves the
+     *         socket, or an error response if the handshake is invalid.
+     */
+    static Response newUpgradeResponse(IHTTPSession session, Map<String, String> urlParams, Listener listener) {
+        Map<String, String> headers = session.getHeaders();
+        if (!"13".equals(headers.get("sec-websocket-version"))) {
+            Response response = NanoHTTPD.newFixedLengthResponse(UPGRADE_REQUIRED, NanoHTTPD.MIME_PLAINTEXT, "Unsupported WebSocket version");
+            response.addHeader("Sec-WebSocket-Version", "13");
+            return response;
+        }
+        String key = headers.get("sec-websocket-key");
+        if (key == null || key.trim().isEmpty()) {
+            return NanoHTTPD.newFixedLengthResponse(Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT, "Missing WebSocket key");
+        }
+        String extension = negotiateDeflate(headers.get("sec-websocket-extensions"));
+        boolean clientNoContextTakeover = extension != null && extension.contains("client_no_context_takeover");
+        WebSocket socket = new WebSocket(session, urlParams, listener, extension != null, clientNoContextTakeover);
+        return new UpgradeResponse(socket, acceptKey(key.trim()), extension);
+    }
+
+    /**
+     * Runs the action once the socket of an upgrade response is closed, or
+     * the response got dropped without opening it.
+     * 
+     * @return false if the response does not open a socket
+     */
+    static boolean whenClosed(Response response, Runnable action) {
+        if (!(response instanceof UpgradeResponse)) {
+            return false;
+        }
+        ((UpgradeResponse) response).closeAction = action;
+        return true;
+    }
+
+    /**
+     * @return the accepted <code>permessage-deflate</code> extension, null
+     *         if the client offers none the server can serve.
+     */
+    private static String negotiateDeflate(String offers) {
+        if (offers == null) {
+            return null;
+        }
+        for (String offer : offers.split(",")) {
+            String[] parameters = offer.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase("permessage-deflate")) {
+                continue;
+            }
+            boolean acceptable = true;
+            boolean clientNoContextTakeover = false;
+            for (int i = 1; i < parameters.length && acceptable; i++) {
+                String parameter = parameters[i].trim().toLowerCase(Locale.US);
+                String name = parameter;
+                String value = null;
+                int equals = parameter.indexOf('=');
+                if (equals >= 0) {
+                    name = parameter.substring(0, equals).trim();
+                    value = parameter.substring(equals + 1).trim().replace("\"", "");
+                }
+                if (name.equals("client_no_context_takeover")) {
+                    clientNoContextTakeover = true;
+                } else if (name.equals("server_max_window_bits")) {
+                    // the Deflater always uses a window of 15 bits
+                    acceptable = "15".equals(value);
+                } else if (!name.equals("server_no_context_takeover") && !name.equals("client_max_window_bits")) {
+                    acceptable = false;
+                }
+            }
+            if (acceptable) {
+                // every message is compressed on its own, so broadcasts can share the compressed frame
+                return "permessage-deflate; server_no_context_takeover" + (clientNoContextTakeover ? "; client_no_context_takeover" : "");
+            }
+        }
+        return null;
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + ACCEPT_GUID).getBytes("US-ASCII")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String base64(byte[] data) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int remaining = Math.min(3, data.length - i);
+            int bits = (data[i] & 0xff) << 16;
+            if (remaining > 1) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                bits |= data[i + 2] & 0xff;
+            }
+            encoded.append(alphabet.charAt((bits >>> 18) & 0x3f));
+            encoded.append(alphabet.charAt((bits >>> 12) & 0x3f));
+            encoded.append(remaining > 1 ? alphabet.charAt((bits >>> 6) & 0x3f) : '=');
+            encoded.append(remaining > 2 ? alphabet.charAt(bits & 0x3f) : '=');
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Completes the handshake and serves the socket until it is closed, the
+     * connection is closed afterwards.
+     */
+    private static final class UpgradeResponse extends Response {
+
+        private final WebSocket socket;
+
+        private final String accept;
+
+        private final String extension;
+
+        private Runnable closeAction;
+
+        private UpgradeResponse(WebSocket socket, String accept, String extension) {
+            super(Status.SWITCH_PROTOCOL, null, new ByteArrayInputStream(new byte[0]), 0);
+            this.socket = socket;
+            this.accept = accept;
+            this.extension = extension;
+            addHeader("Connection", "close");
+        }
+
+        @Override
+        protected void send(OutputStream outputStream) {
+            StringBuilder head = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n");
+            head.append("Sec-WebSocket-Accept: ").append(accept).append("\r\n");
+            if (extension != null) {
+                head.append("Sec-WebSocket-Extensions: ").append(extension).append("\r\n");
+            }
+            head.append("\r\n");
+            try {
+                outputStream.write(head.toString().getBytes("US-ASCII"));
+                outputStream.flush();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not open WebSocket", e);
+                return;
+            }
+            socket.run(socket.session.getInputStream(), outputStream);
+        }
+
+        /**
+         * Called by the session after sending, also if that failed.
+         */
+        @Override
+        public void close() throws IOException {
+            Runnable action = closeAction;
+            closeAction = null;
+            try {
+                super.close();
+            } finally {
+                if (action != null) {
+                    action.run();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sockets which get the same messages, like all clients watching a
+ * dashboard. A message is encoded once per broadcast and its frame is
+ * written to every open socket in the group, sockets which got closed are
+ * dropped from the group.
+ * <p/>
+ * Broadcasts write on the calling thread, one socket after the other.
+ */
+public final class WebSocketGroup {
+
+    private static final Logger LOG = Logger.getLogger(WebSocketGroup.class.getName());
+
+    private final Set<WebSocket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<WebSocket, Boolean>());
+
+    public void add(WebSocket socket) {
+        if (socket.isOpen()) {
+            sockets.add(socket);
+        }
+    }
+
+    public void remove(WebSocket socket) {
+        sockets.remove(socket);
+    }
+
+    /**
+     * @return the number of sockets in the group, including sockets which
+     *         got closed since the last broadcast.
+     */
+    public int size() {
+        return sockets.size();
+    }
+
+    /**
+     * @return the number of sockets the message was written to.
+     */
+    public int broadcast(String text) {
+        return broadcast(WebSocketMessage.text(text));
+    }
+
+    /**
+     * @return the number of sockets the message was written to.
+     */
+    public int broadcast(byte[] data) {
+        return broadcast(WebSocketMessage.binary(data));
+    }
+
+    /**
+     * @return the number of sockets the message was written to.
+     */
+    public int broadcast(WebSocketMessage message) {
+        int sent = 0;
+        for (WebSocket socket : sockets) {
+            if (!socket.isOpen()) {
+                sockets.remove(socket);
+                continue;
+            }
+            try {
+                socket.send(message);
+                sent++;
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not broadcast to a WebSocket", e);
+                sockets.remove(socket);
+            }
+        }
+        return sent;
+    }
+}
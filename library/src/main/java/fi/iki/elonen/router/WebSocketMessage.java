@@ -0,0 +1,173 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+
+/**
+ * A message encoded as a WebSocket frame once, which can be sent to any
+ * number of sockets without encoding it again, see {@link WebSocketGroup}.
+ * <p/>
+ * Sockets with <code>permessage-deflate</code> get a compressed frame. The
+ * server compresses every message on its own (it negotiates
+ * <code>server_no_context_takeover</code>), so the compressed frame is the
+ * same for all sockets and is also only created once.
+ */
+public final class WebSocketMessage {
+
+    static final int OP_CONTINUATION = 0x0;
+
+    static final int OP_TEXT = 0x1;
+
+    static final int OP_BINARY = 0x2;
+
+    static final int OP_CLOSE = 0x8;
+
+    static final int OP_PING = 0x9;
+
+    static final int OP_PONG = 0xa;
+
+    /**
+     * Smaller payloads are not worth compressing.
+     */
+    private static final int MIN_DEFLATE_SIZE = 256;
+
+    private final int opcode;
+
+    private final byte[] payload;
+
+    private final byte[] frame;
+
+    private volatile byte[] deflatedFrame;
+
+    private WebSocketMessage(int opcode, byte[] payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+        this.frame = frame(opcode, false, payload, 0, payload.length);
+    }
+
+    public static WebSocketMessage text(String text) {
+        try {
+            return new WebSocketMessage(OP_TEXT, text.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param data
+     *            not copied, it must not change afterwards
+     */
+    public static WebSocketMessage binary(byte[] data) {
+        return new WebSocketMessage(OP_BINARY, data);
+    }
+
+    /**
+     * @return the size of the payload before compression.
+     */
+    public int getLength() {
+        return payload.length;
+    }
+
+    /**
+     * @return the complete frame, compressed for sockets which negotiated
+     *         <code>permessage-deflate</code>.
+     */
+    byte[] getFrame(boolean deflate) {
+        if (!deflate || payload.length < MIN_DEFLATE_SIZE) {
+            return frame;
+        }
+        byte[] deflated = deflatedFrame;
+        if (deflated == null) {
+            // a concurrent first send may compress twice, both are equal
+            deflated = deflate();
+            deflatedFrame = deflated;
+        }
+        return deflated;
+    }
+
+    private byte[] deflate() {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2);
+            byte[] chunk = BufferPool.shared().acquire(4096);
+            try {
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(chunk);
+                    compressed.write(chunk, 0, length);
+                }
+            } finally {
+                BufferPool.shared().release(chunk);
+            }
+            // the final block is followed by an empty stored block header,
+            // as RFC 7692 section 7.2.3.5 allows
+            compressed.write(0);
+            if (compressed.size() >= payload.length) {
+                return frame;
+            }
+            byte[] data = compressed.toByteArray();
+            return frame(opcode, true, data, 0, data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Encodes an unmasked frame with the FIN bit set.
+     */
+    static byte[] frame(int opcode, boolean compressed, byte[] payload, int offset, int length) {
+        int headerLength = length < 126 ? 2 : length <= 0xffff ? 4 : 10;
+        byte[] frame = new byte[headerLength + length];
+        frame[0] = (byte) (0x80 | (compressed ? 0x40 : 0) | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length <= 0xffff) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[9 - i] = (byte) ((long) length >>> (8 * i));
+            }
+        }
+        System.arraycopy(payload, offset, frame, headerLength, length);
+        return frame;
+    }
+}
@@ -0,0 +1,194 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The examples of RFC 7541 appendix C.
+ */
+public class HpackTest {
+
+    @Test
+    public void decodesLiteralFields() throws Exception {
+        // C.2.1 to C.2.4, each on a fresh table
+        assertHeaders(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "400a637573746f6d2d6b65790d637573746f6d2d686561646572", "custom-key", "custom-header");
+        assertHeaders(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "040c2f73616d706c652f70617468", ":path", "/sample/path");
+        assertHeaders(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "100870617373776f726406736563726574", "password", "secret");
+        assertHeaders(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "82", ":method", "GET");
+    }
+
+    @Test
+    public void decodesRequestsWithoutHuffman() throws Exception {
+        // C.3, the later requests refer to the dynamic table
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decoder, "828684410f7777772e6578616d706c652e636f6d", //
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertHeaders(decoder, "828684be58086e6f2d6361636865", //
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        assertHeaders(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565", //
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    @Test
+    public void decodesRequestsWithHuffman() throws Exception {
+        // C.4
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        for (int i = 0; i < C4_BLOCKS.length; i++) {
+            assertHeaders(decoder, C4_BLOCKS[i], C4_HEADERS[i]);
+        }
+    }
+
+    @Test
+    public void decodesResponsesWithEviction() throws Exception {
+        // C.5 and C.6, the table of 256 bytes evicts the oldest entries
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        for (int i = 0; i < C5_BLOCKS.length; i++) {
+            assertHeaders(decoder, C5_BLOCKS[i], C5_HEADERS[i]);
+        }
+        decoder = new Hpack.Decoder(256);
+        for (int i = 0; i < C6_BLOCKS.length; i++) {
+            assertHeaders(decoder, C6_BLOCKS[i], C5_HEADERS[i]);
+        }
+    }
+
+    @Test
+    public void encodesRequestsWithHuffman() {
+        // the encoder indexes and Huffman codes these fields just like C.4
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        for (int i = 0; i < C4_BLOCKS.length; i++) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(block, headers(C4_HEADERS[i]));
+            assertArrayEquals(bytes(C4_BLOCKS[i]), block.toByteArray());
+        }
+    }
+
+    @Test
+    public void encodedResponsesDecode() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        encoder.setMaxTableSize(256);
+        for (String[] fields : C5_HEADERS) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(block, headers(fields));
+            byte[] data = block.toByteArray();
+            assertHeaderList(fields, decoder.decode(data, 0, data.length));
+        }
+    }
+
+    @Test(expected = Hpack.HpackException.class)
+    public void rejectsUnknownIndex() throws Exception {
+        new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(bytes("be"), 0, 1);
+    }
+
+    private static final String[] C4_BLOCKS = {
+        "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+        "828684be5886a8eb10649cbf",
+        "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"
+    };
+
+    private static final String[][] C4_HEADERS = {
+        {
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"
+        },
+        {
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache"
+        },
+        {
+            ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value"
+        }
+    };
+
+    private static final String[] C5_BLOCKS = {
+        "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d",
+        "4803333037c1c0bf",
+        "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31"
+    };
+
+    private static final String[] C6_BLOCKS = {
+        "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+        "4883640effc1c0bf",
+        "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"
+    };
+
+    private static final String[][] C5_HEADERS = {
+        {
+            ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"
+        },
+        {
+            ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"
+        },
+        {
+            ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com", "content-encoding", "gzip",
+            "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"
+        }
+    };
+
+    private static void assertHeaders(Hpack.Decoder decoder, String block, String... fields) throws Hpack.HpackException {
+        byte[] data = bytes(block);
+        assertHeaderList(fields, decoder.decode(data, 0, data.length));
+    }
+
+    private static void assertHeaderList(String[] fields, List<String[]> headers) {
+        assertEquals(fields.length / 2, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(fields[2 * i], headers.get(i)[0]);
+            assertEquals(fields[2 * i + 1], headers.get(i)[1]);
+        }
+    }
+
+    private static List<String[]> headers(String[] fields) {
+        List<String[]> headers = new ArrayList<String[]>();
+        for (int i = 0; i < fields.length; i += 2) {
+            headers.add(new String[]{fields[i], fields[i + 1]});
+        }
+        return headers;
+    }
+
+    private static byte[] bytes(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,326 @@
+package fi.iki.elonen.router;
+
+/*
+ * #%L
+ * NanoHttpd-Samples
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.IStatus;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import fi.iki.elonen.router.RouterNanoHTTPD.UriResource;
+
+/**
+ * Sends frames to a server with HTTP/2 enabled and checks the frames it
+ * answers with.
+ */
+public class Http2ConnectionTest {
+
+    private static final int DATA = 0x0;
+
+    private static final int HEADERS = 0x1;
+
+    private static final int SETTINGS = 0x4;
+
+    private static final int PING = 0x6;
+
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int FLAG_END_STREAM = 0x1;
+
+    private static final int FLAG_ACK = 0x1;
+
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final int WINDOW_SIZE = 65535;
+
+    /**
+     * Answers with the number of body bytes it received.
+     */
+    public static class CountHandler extends RouterNanoHTTPD.DefaultBodyHandler {
+
+        @Override
+        public String getText() {
+            return "hello";
+        }
+
+        @Override
+        public String getMimeType() {
+            return "text/plain";
+        }
+
+        @Override
+        public IStatus getStatus() {
+            return Status.OK;
+        }
+
+        @Override
+        public Response post(UriResource uriResource, Map<String, String> urlParams, IHTTPSession session, RequestBody body) throws IOException {
+            InputStream in = body.getInputStream();
+            byte[] buffer = new byte[4096];
+            long count = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                count += read;
+            }
+            return NanoHTTPD.newFixedLengthResponse(getStatus(), getMimeType(), String.valueOf(count));
+        }
+    }
+
+    private static final class Frame {
+
+        private final int type;
+
+        private final int flags;
+
+        private final int streamId;
+
+        private final byte[] payload;
+
+        private Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+    }
+
+    private RouterNanoHTTPD server;
+
+    private Socket socket;
+
+    private DataInputStream in;
+
+    private OutputStream out;
+
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    // windows the server granted
+    private long connectionWindow = WINDOW_SIZE;
+
+    private long streamWindow = WINDOW_SIZE;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RouterNanoHTTPD(0);
+        server.enableHttp2(2);
+        server.addRoute("/count", CountHandler.class);
+        server.start();
+        socket = new Socket("localhost", server.getListeningPort());
+        socket.setSoTimeout(10000);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        out.write(Http2Connection.PREFACE);
+        writeFrame(SETTINGS, 0, 0, new byte[0]);
+
+        Frame settings = readFrame();
+        assertEquals(SETTINGS, settings.type);
+        assertEquals(0, settings.flags);
+        assertEquals(Http2Connection.MAX_CONCURRENT_STREAMS, setting(settings.payload, 0x3));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        server.stop();
+    }
+
+    @Test
+    public void servesRequest() throws Exception {
+        writeHeaders(1, "GET", "/count", true);
+        List<String[]> headers = readResponseHeaders(1);
+        assertEquals(":status", headers.get(0)[0]);
+        assertEquals("200", headers.get(0)[1]);
+        assertEquals("hello", readResponseBody(1));
+    }
+
+    @Test
+    public void echoesPing() throws Exception {
+        byte[] data = {
+            1,
+            2,
+            3,
+            4,
+            5,
+            6,
+            7,
+            8
+        };
+        writeFrame(PING, 0, 0, data);
+        Frame frame = readFrame(PING);
+        assertEquals(FLAG_ACK, frame.flags);
+        assertArrayEquals(data, frame.payload);
+    }
+
+    @Test
+    public void returnsWindowOnceBodyIsConsumed() throws Exception {
+        int size = 300000;
+        writeHeaders(1, "POST", "/count", false);
+        byte[] chunk = new byte[16384];
+        int left = size;
+        while (left > 0) {
+            while (connectionWindow <= 0 || streamWindow <= 0) {
+                readFrame(WINDOW_UPDATE);
+            }
+            int length = (int) Math.min(Math.min(left, chunk.length), Math.min(connectionWindow, streamWindow));
+            left -= length;
+            connectionWindow -= length;
+            streamWindow -= length;
+            writeFrame(DATA, left == 0 ? FLAG_END_STREAM : 0, 1, chunk, length);
+        }
+        readResponseHeaders(1);
+        assertEquals(String.valueOf(size), readResponseBody(1));
+
+        // the whole budget is open again after the worker is done
+        while (connectionWindow < Http2Connection.MAX_BUFFERED_BODY_SIZE) {
+            readFrame(WINDOW_UPDATE);
+        }
+        assertEquals(Http2Connection.MAX_BUFFERED_BODY_SIZE, connectionWindow);
+    }
+
+    private List<String[]> readResponseHeaders(int streamId) throws IOException {
+        Frame frame = readFrame(HEADERS);
+        assertEquals(streamId, frame.streamId);
+        assertTrue((frame.flags & FLAG_END_HEADERS) != 0);
+        return decoder.decode(frame.payload, 0, frame.payload.length);
+    }
+
+    private String readResponseBody(int streamId) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            Frame frame = readFrame(DATA);
+            assertEquals(streamId, frame.streamId);
+            body.write(frame.payload);
+            if ((frame.flags & FLAG_END_STREAM) != 0) {
+                return body.toString("UTF-8");
+            }
+        }
+    }
+
+    /**
+     * Reads frames until one of the given type, keeps track of the windows.
+     */
+    private Frame readFrame(int type) throws IOException {
+        while (true) {
+            Frame frame = readFrame();
+            if (frame.type == type) {
+                return frame;
+            }
+        }
+    }
+
+    private Frame readFrame() throws IOException {
+        byte[] header = new byte[9];
+        in.readFully(header);
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        Frame frame = new Frame(header[3] & 0xff, header[4] & 0xff, readInt(header, 5) & 0x7fffffff, payload);
+        if (frame.type == SETTINGS && (frame.flags & FLAG_ACK) == 0) {
+            writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+        } else if (frame.type == WINDOW_UPDATE) {
+            if (frame.streamId == 0) {
+                connectionWindow += readInt(payload, 0);
+            } else {
+                streamWindow += readInt(payload, 0);
+            }
+        }
+        return frame;
+    }
+
+    private void writeHeaders(int streamId, String method, String path, boolean endStream) throws IOException {
+        List<String[]> headers = new ArrayList<String[]>();
+        headers.add(new String[]{":method", method});
+        headers.add(new String[]{":scheme", "http"});
+        headers.add(new String[]{":path", path});
+        headers.add(new String[]{":authority", "localhost"});
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.encode(block, headers);
+        writeFrame(HEADERS, FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), streamId, block.toByteArray());
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        writeFrame(type, flags, streamId, payload, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int length) throws IOException {
+        byte[] header = {
+            (byte) (length >>> 16),
+            (byte) (length >>> 8),
+            (byte) length,
+            (byte) type,
+            (byte) flags,
+            (byte) (streamId >>> 24),
+            (byte) (streamId >>> 16),
+            (byte) (streamId >>> 8),
+            (byte) streamId
+        };
+        out.write(header);
+        out.write(payload, 0, length);
+        out.flush();
+    }
+
+    private static int setting(byte[] payload, int id) {
+        for (int i = 0; i < payload.length; i += 6) {
+            if ((((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff)) == id) {
+                return readInt(payload, i + 2);
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}